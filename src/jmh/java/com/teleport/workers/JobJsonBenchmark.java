@@ -0,0 +1,72 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for APIServer.writeJobFields
+ * Serializes a finished job with a large output, the most expensive query response, into a stream that only
+ * counts bytes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class JobJsonBenchmark {
+
+    @Param({"1024", "65536", "4194304"})
+    public int outputBytes;
+
+    private Job job;
+    private final CountingStream out = new CountingStream();
+
+    private static class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        char[] line = new char[80];
+        Arrays.fill(line, 'x');
+        line[line.length - 1] = '\n';
+        StringBuilder output = new StringBuilder(outputBytes);
+        while (output.length() < outputBytes) {
+            output.append(line, 0, Math.min(line.length, outputBytes - output.length()));
+        }
+
+        job = new Job("cat output.txt");
+        job.setStatus(Job.JobStatus.RUNNING);
+        job.setResult(new Result(output.toString()));
+        job.setStatus(Job.JobStatus.FINISHED);
+    }
+
+    @Benchmark
+    public long writeJobJson() throws IOException {
+        JsonWriter writer = new JsonWriter(out, 0);
+        writer.beginObject();
+        APIServer.writeJobFields(writer, job, false);
+        writer.endObject();
+        writer.flush();
+        return out.count;
+    }
+}
@@ -0,0 +1,89 @@
+package com.teleport.workers;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmarks for JobManager under contention
+ * Several threads share one manager, adding jobs while others query jobs that already exist.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class JobManagerBenchmark {
+
+    private final static int PRELOADED_JOBS = 1024;
+
+    private JobManager manager;
+    private long[] ids;
+
+    @Setup
+    public void setUp() throws Exception {
+        manager = new JobManager(new JobManagerConfig().setMaxQueuedJobs(1 << 16));
+        ids = new long[PRELOADED_JOBS];
+        for (int i = 0; i < ids.length; ++i) {
+            Job job = new Job("true");
+            ids[i] = manager.addJob(job);
+            job.getCompletion().get();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    private Job queryRandom() {
+        return manager.queryJob(ids[ThreadLocalRandom.current().nextInt(ids.length)]);
+    }
+
+    private long add() {
+        try {
+            return manager.addJob(new Job("true"));
+        } catch (RejectedExecutionException e) {
+            return -1;
+        }
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Job queryJob() {
+        return queryRandom();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long addJob() {
+        return add();
+    }
+
+    /**
+     * Queries racing with a steady stream of new jobs, as seen by the API server under load
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public long mixedAddJob() {
+        return add();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public Job mixedQueryJob() {
+        return queryRandom();
+    }
+}
@@ -0,0 +1,58 @@
+package com.teleport.workers;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the pump's read path
+ * Workers read process output with OutputBuffer.readFrom, this feeds it synthetic multi-MB outputs instead of a
+ * process pipe so only the copy into the buffer is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReadStreamBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int outputBytes;
+
+    /**
+     * Cap on the buffer, outputs above it exercise head/tail retention
+     */
+    @Param({"67108864", "4194304"})
+    public long maxOutputBytes;
+
+    @Param({"HEAD", "TAIL"})
+    public OutputBuffer.Retain retain;
+
+    private byte[] output;
+
+    @Setup
+    public void setUp() {
+        output = new byte[outputBytes];
+        // Printable text with newlines, like typical process output
+        Random random = new Random(42);
+        for (int i = 0; i < output.length; ++i) {
+            output[i] = i % 80 == 79 ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+    }
+
+    @Benchmark
+    public long readStream() throws IOException {
+        OutputBuffer buffer = new OutputBuffer(maxOutputBytes, retain);
+        buffer.readFrom(new ByteArrayInputStream(output));
+        buffer.close();
+        return buffer.size();
+    }
+}
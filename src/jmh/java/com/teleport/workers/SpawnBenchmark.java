@@ -0,0 +1,89 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for Worker.execute
+ * Measures how many short-lived processes a worker can start and pump to completion per second, forked by the
+ * JVM or by a ForkServer (whose output is spooled).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SpawnBenchmark {
+
+    @Param({"false", "true"})
+    public boolean forkServer;
+
+    private PumpExecutor pumps;
+    private JobManagerConfig config;
+    private JobMetrics metrics;
+    private ScheduledExecutorService timer;
+    private SpoolDirectory spool;
+    private ForkServer server;
+
+    @Setup
+    public void setUp() throws IOException {
+        config = new JobManagerConfig();
+        pumps = PumpExecutor.create(config.useVirtualPumps(), config.getMaxPumpThreads());
+        metrics = new JobMetrics(new Metrics());
+        timer = Executors.newSingleThreadScheduledExecutor();
+        if (forkServer) {
+            spool = new SpoolDirectory(Files.createTempDirectory("spawn-benchmark"), timer);
+            server = new ForkServer();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+        timer.shutdown();
+        pumps.shutdown();
+    }
+
+    private Worker newWorker() {
+        return new Worker(pumps, spool, server, metrics, config);
+    }
+
+    /**
+     * Start to finish, including reading the output and reaping the process
+     */
+    @Benchmark
+    public Job spawnAndWait() throws Exception {
+        Worker worker = newWorker();
+        worker.execute(new Job("true"));
+        Job job = worker.getCompletion().get();
+        // Spool files would pile up otherwise
+        if (job.getOutput() != null) {
+            job.getOutput().release();
+        }
+        if (job.getErrorOutput() != null) {
+            job.getErrorOutput().release();
+        }
+        return job;
+    }
+
+    /**
+     * Only the time until execute returns, i.e. fork/exec plus pump scheduling
+     */
+    @Benchmark
+    public long spawnOnly() {
+        return newWorker().execute(new Job("true"));
+    }
+}
@@ -1,7 +1,9 @@
 package com.teleport.workers;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -11,9 +13,23 @@ import java.util.logging.Logger;
 import java.util.StringJoiner;
 import java.io.PrintWriter;
 import java.io.BufferedReader;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -30,53 +46,362 @@ import org.json.JSONObject;
 public class APIServer extends HttpServlet {
 
     private final static Logger LOGGER = Logger.getLogger(APIServer.class.getName());
-    private final static int INDENT_SIZE = 4;
     private final static String file_path_key = "file_path";
+    private final static String file_paths_key = "file_paths";
+    private final static String ids_key = "ids";
+    private final static String status_only_key = "status_only";
+    private final static String status_key = "status";
+    private final static String command_prefix_key = "command_prefix";
+    private final static String grace_key = "grace_ms";
+    private final static String tenant_key = "tenant";
+    private final static String priority_key = "priority";
+    private final static String cacheable_key = "cacheable";
+    private final static String max_age_key = "max_age";
+    private final static String virtual_pumps_param = "pump.virtual";
+    private final static String max_pump_threads_param = "pump.maxThreads";
+    private final static String max_running_param = "jobs.maxRunning";
+    private final static String launcher_threads_param = "jobs.launcherThreads";
+    private final static String max_queued_param = "jobs.maxQueued";
+    private final static String retry_after_param = "jobs.retryAfterSecs";
+    private final static String tenant_weights_param = "scheduling.tenantWeights";
+    private final static String stop_grace_param = "stop.graceMillis";
+    private final static String usage_interval_param = "usage.intervalMillis";
+    private final static String max_cpu_param = "limits.cpuMillis";
+    private final static String max_rss_param = "limits.rssBytes";
+    private final static String max_wall_param = "limits.wallMillis";
+    private final static String max_output_param = "output.maxBytes";
+    private final static String output_retention_param = "output.retain";
+    private final static String separate_stderr_param = "output.separateStderr";
+    private final static String max_error_param = "output.maxErrorBytes";
+    private final static String timestamps_param = "output.timestamps";
+    private final static String line_index_param = "output.lineIndex";
+    private final static String retention_ttl_param = "retention.ttlSecs";
+    private final static String retained_jobs_param = "retention.maxJobs";
+    private final static String retained_bytes_param = "retention.maxBytes";
+    private final static String compress_param = "retention.compress";
+    private final static String compress_min_param = "retention.compressMinBytes";
+    private final static String decoded_cache_param = "retention.decodedCacheBytes";
+    private final static String cache_entries_param = "cache.maxEntries";
+    private final static String cache_age_param = "cache.maxAgeSecs";
+    private final static String spool_param = "spool.enabled";
+    private final static String spool_dir_param = "spool.dir";
+    private final static String spool_bytes_param = "spool.maxBytes";
+    private final static String fork_server_param = "spawn.forkServer";
+    private final static String journal_param = "journal.enabled";
+    private final static String journal_dir_param = "journal.dir";
+    private final static String journal_compact_param = "journal.compactBytes";
+    private final static String journal_output_param = "journal.maxOutputBytes";
+    private final static String event_queue_param = "events.queueSize";
+    private final static String event_buffer_param = "events.bufferSize";
+    private final static String event_heartbeat_param = "events.heartbeatSecs";
+    private final static String shard_id_param = "shard.id";
+    private final static String shard_bits_param = "shard.bits";
+    private final static String json_indent_param = "json.indent";
+    private final static String sendfile_support_attr = "org.apache.tomcat.sendfile.support";
+    private final static int SC_TOO_MANY_REQUESTS = 429;
+    private final static int MAX_OUTPUT_READ = 1024 * 1024;
+    private final static long FOLLOW_TIMEOUT_MS = 10 * 60 * 1000;
+    private final static long DEFAULT_WAIT_SECS = 30;
+    private final static long MAX_WAIT_SECS = 300;
+    private final static int MAX_LINES = 100000;
+    private final static int GZIP_MIN_BYTES = 1024;
+    private final static int GZIP_BUFFER_SIZE = 8192;
 
     private JobManager manager;
-    private String invalidRequest;
-    private Map<Job.JobStatus, String> statusMap;
+    private int indent;
+    private byte[] invalidRequest;
+    private byte[] jobNotFound;
+    private byte[] emptyObject;
+    private byte[] tooManyRequests;
+    private final static Map<Job.JobStatus, String> statusMap = new EnumMap<>(Job.JobStatus.class);
+    private int retryAfterSecs;
+    private long stopGraceMillis;
+    private long cacheMaxAgeMillis;
+    private Map<String, Metrics.Histogram> endpointLatency;
+    private Metrics.Histogram otherLatency;
 
-    @Override
-    public void init() throws ServletException {
-        manager = new JobManager();
-        invalidRequest = new JSONObject().put("error", "invalid request").toString(INDENT_SIZE);
-        statusMap = new HashMap<>();
+    static {
         statusMap.put(Job.JobStatus.STOPPED, "stopped");
         statusMap.put(Job.JobStatus.FINISHED, "finished");
+        statusMap.put(Job.JobStatus.QUEUED, "queued");
+        statusMap.put(Job.JobStatus.LAUNCHING, "launching");
         statusMap.put(Job.JobStatus.RUNNING, "running");
+        statusMap.put(Job.JobStatus.ERROR, "error");
+    }
+
+    @Override
+    public void init() throws ServletException {
+        JobManagerConfig config = buildConfig();
+        manager = new JobManager(config);
+        retryAfterSecs = config.getRetryAfterSecs();
+        stopGraceMillis = config.getStopGraceMillis();
+        cacheMaxAgeMillis = config.getResultCacheMaxAgeMillis();
+        // Bodies that never change are encoded once
+        indent = getIntParameter(json_indent_param, 0);
+        invalidRequest = JsonWriter.toBytes(indent, "error", "invalid request");
+        jobNotFound = JsonWriter.toBytes(indent, "error", "job does not exist");
+        emptyObject = JsonWriter.toBytes(indent);
+        tooManyRequests = JsonWriter.toBytes(indent, "error", "too many queued jobs", "retry_after", retryAfterSecs);
+        endpointLatency = new HashMap<>();
+        for (String endpoint : Route.ENDPOINTS) {
+            endpointLatency.put(endpoint, manager.getMetrics().histogram("worker_http_request_duration_seconds",
+                "endpoint=\"" + endpoint + "\"", "Time spent handling API requests"));
+        }
+        otherLatency = manager.getMetrics().histogram("worker_http_request_duration_seconds",
+            "endpoint=\"other\"", "Time spent handling API requests");
+    }
+
+    @Override
+    public void destroy() {
+        manager.shutdown();
     }
 
     /**
-     * Helper functions
+     * Servlet init parameters (see web.xml) override the JobManager defaults
      */
-    public String[] getPaths(HttpServletRequest request) {
-        String requestUrl = request.getRequestURI();
-        return requestUrl.split("/");
+    private JobManagerConfig buildConfig() {
+        JobManagerConfig config = new JobManagerConfig();
+        config.setVirtualPumps(getBooleanParameter(virtual_pumps_param, config.useVirtualPumps()));
+        config.setMaxPumpThreads(getIntParameter(max_pump_threads_param, config.getMaxPumpThreads()));
+        config.setMaxRunningJobs(getIntParameter(max_running_param, config.getMaxRunningJobs()));
+        config.setLauncherThreads(getIntParameter(launcher_threads_param, config.getLauncherThreads()));
+        config.setMaxQueuedJobs(getIntParameter(max_queued_param, config.getMaxQueuedJobs()));
+        config.setRetryAfterSecs(getIntParameter(retry_after_param, config.getRetryAfterSecs()));
+        String weights = getInitParameter(tenant_weights_param);
+        if (weights != null) {
+            // tenant=weight pairs separated by commas
+            for (String pair : weights.split(",")) {
+                if (pair.trim().isEmpty()) {
+                    continue;
+                }
+                String[] parts = pair.split("=");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid tenant weight " + pair.trim());
+                }
+                config.setTenantWeight(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        config.setStopGraceMillis(getLongParameter(stop_grace_param, config.getStopGraceMillis()));
+        config.setUsageIntervalMillis(getLongParameter(usage_interval_param, config.getUsageIntervalMillis()));
+        config.setMaxCpuMillis(getLongParameter(max_cpu_param, config.getMaxCpuMillis()));
+        config.setMaxRssBytes(getLongParameter(max_rss_param, config.getMaxRssBytes()));
+        config.setMaxWallMillis(getLongParameter(max_wall_param, config.getMaxWallMillis()));
+        config.setMaxOutputBytes(getLongParameter(max_output_param, config.getMaxOutputBytes()));
+        String retention = getInitParameter(output_retention_param);
+        if (retention != null) {
+            config.setOutputRetention(OutputBuffer.Retain.valueOf(retention.trim().toUpperCase()));
+        }
+        config.setSeparateStderr(getBooleanParameter(separate_stderr_param, config.isSeparateStderr()));
+        config.setMaxErrorBytes(getLongParameter(max_error_param, config.getMaxErrorBytes()));
+        config.setOutputTimestamps(getBooleanParameter(timestamps_param, config.isOutputTimestamps()));
+        config.setLineIndex(getBooleanParameter(line_index_param, config.isLineIndex()));
+        config.setRetentionTtlMillis(getLongParameter(retention_ttl_param, config.getRetentionTtlMillis() / 1000) * 1000);
+        config.setMaxRetainedJobs(getIntParameter(retained_jobs_param, config.getMaxRetainedJobs()));
+        config.setMaxRetainedBytes(getLongParameter(retained_bytes_param, config.getMaxRetainedBytes()));
+        config.setCompressResults(getBooleanParameter(compress_param, config.isCompressResults()));
+        config.setCompressMinBytes(getLongParameter(compress_min_param, config.getCompressMinBytes()));
+        config.setDecodedCacheBytes(getLongParameter(decoded_cache_param, config.getDecodedCacheBytes()));
+        config.setResultCacheEntries(getIntParameter(cache_entries_param, config.getResultCacheEntries()));
+        config.setResultCacheMaxAgeMillis(
+            getLongParameter(cache_age_param, config.getResultCacheMaxAgeMillis() / 1000) * 1000);
+        config.setSpoolOutput(getBooleanParameter(spool_param, config.isSpoolOutput()));
+        if (getInitParameter(spool_dir_param) != null) {
+            config.setSpoolDirectory(getInitParameter(spool_dir_param).trim());
+        }
+        config.setMaxSpoolBytes(getLongParameter(spool_bytes_param, config.getMaxSpoolBytes()));
+        config.setForkServer(getBooleanParameter(fork_server_param, config.isForkServer()));
+        config.setJournal(getBooleanParameter(journal_param, config.isJournal()));
+        if (getInitParameter(journal_dir_param) != null) {
+            config.setJournalDirectory(getInitParameter(journal_dir_param).trim());
+        }
+        config.setJournalCompactBytes(getLongParameter(journal_compact_param, config.getJournalCompactBytes()));
+        config.setJournalOutputBytes(getLongParameter(journal_output_param, config.getJournalOutputBytes()));
+        config.setEventQueueSize(getIntParameter(event_queue_param, config.getEventQueueSize()));
+        config.setEventBufferSize(getIntParameter(event_buffer_param, config.getEventBufferSize()));
+        config.setEventHeartbeatMillis(
+            getLongParameter(event_heartbeat_param, config.getEventHeartbeatMillis() / 1000) * 1000);
+        config.setShard(getIntParameter(shard_id_param, config.getShardId()),
+            getIntParameter(shard_bits_param, config.getShardBits()));
+        return config;
+    }
+
+    private int getIntParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private long getLongParameter(String name, long defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    private boolean getBooleanParameter(String name, boolean defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
     }
 
-    private void printAndFlush(PrintWriter out, String output) {
-        out.print(output);
+    /**
+     * Routes GET and POST requests with the URI parsed once, and times every request by endpoint. For async
+     * requests (output follow, wait) this only covers the time until the request thread is released.
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+
+        long startNanos = System.nanoTime();
+        Route route = Route.parse(request.getRequestURI());
+        try {
+            String method = request.getMethod();
+            if (method.equals("GET")) {
+                doGet(request, response, route);
+            } else if (method.equals("POST")) {
+                doPost(request, response, route);
+            } else {
+                super.service(request, response);
+            }
+        } finally {
+            Metrics.Histogram latency = route.getEndpoint() == null ? otherLatency
+                : endpointLatency.get(route.getEndpoint());
+            latency.recordSince(startNanos);
+        }
+    }
+
+    /**
+     * Helper functions
+     */
+
+    private void sendJson(HttpServletResponse response, byte[] body) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
         out.flush();
     }
 
-    private String buildJobJson(Job job) {
+    /**
+     * Starts a streamed JSON body. Bodies that can get big are gzipped when the client accepts it.
+     */
+    private JsonWriter openJson(HttpServletRequest request, HttpServletResponse response, boolean compressible)
+        throws IOException {
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        OutputStream out = response.getOutputStream();
+        if (compressible) {
+            response.addHeader("Vary", "Accept-Encoding");
+            if (acceptsGzip(request)) {
+                response.setHeader("Content-Encoding", "gzip");
+                out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+            }
+        }
+        return new JsonWriter(out, indent);
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String accepted = request.getHeader("Accept-Encoding");
+        return accepted != null && accepted.contains("gzip");
+    }
+
+    private void sendJobJson(HttpServletRequest request, HttpServletResponse response, Job job) throws IOException {
         if (job == null) {
-            return new JSONObject().put("error", "job does not exist").toString(INDENT_SIZE);
+            sendJson(response, jobNotFound);
+            return;
         }
+        try (JsonWriter writer = openJson(request, response, outputSize(job) >= GZIP_MIN_BYTES)) {
+            writer.beginObject();
+            writeJobFields(writer, job, false);
+            writer.endObject();
+        }
+    }
 
-        String status = statusMap.get(job.getStatus());
-        JSONObject outputJson = new JSONObject();
-        try {
-            outputJson = outputJson.put("status", status);
-            outputJson = outputJson.put("command", job.getCommandString());
-            if (job.getResult() != null) {
-                outputJson = outputJson.put("output", job.getResult().getOutput());
+    private static long outputSize(Job job) {
+        JobOutput buffer = job.getOutput();
+        JobOutput errorBuffer = job.getErrorOutput();
+        return (buffer == null ? 0 : buffer.size()) + (errorBuffer == null ? 0 : errorBuffer.size());
+    }
+
+    /**
+     * Writes a job's fields into an open object. Output is escaped straight from the job's buffer or spool file.
+     * Jobs with stderr captured separately get stdout and stderr fields instead of output, sampled jobs get their
+     * resource usage, and jobs recording output timestamps get their chunk timeline.
+     * Static and package-private so the benchmarks can call it without a servlet container.
+     */
+    static void writeJobFields(JsonWriter writer, Job job, boolean statusOnly) throws IOException {
+        writer.name("status").value(statusMap.get(job.getStatus()));
+        if (statusOnly) {
+            return;
+        }
+        writer.name("command").value(job.getCommandString());
+        writer.name("tenant").value(job.getTenant());
+        writer.name("priority").value(job.getPriority());
+        if (job.getError() != null) {
+            writer.name("error_message").value(job.getError());
+        }
+        Result result = job.getResult();
+        JobOutput buffer = job.getOutput();
+        if (result != null) {
+            writeOutputFields(writer, result.getJobOutput(), result.getErrorJobOutput(), true);
+        } else if (buffer != null) {
+            // Still running, return what we have so far
+            writeOutputFields(writer, buffer, job.getErrorOutput(), false);
+        }
+        JobUsage usage = job.getUsage();
+        if (usage.getSampledAt() > 0) {
+            writer.name("usage").beginObject()
+                .name("cpu_ms").value(usage.getCpuMillis())
+                .name("peak_rss_bytes").value(usage.getPeakRssBytes())
+                .name("read_bytes").value(usage.getReadBytes())
+                .name("write_bytes").value(usage.getWriteBytes())
+                .endObject();
+        }
+        OutputTimeline timeline = job.getTimeline();
+        if (timeline != null && buffer != null) {
+            writer.name("chunks").beginArray();
+            timeline.forEach((time, stream, offset, length) -> writer.beginObject()
+                .name("time").value(time)
+                .name("stream").value(stream == OutputTimeline.STDERR ? "stderr" : "stdout")
+                .name("offset").value(offset)
+                .name("length").value(length)
+                .endObject());
+            writer.endArray();
+        }
+    }
+
+    private static void writeOutputFields(JsonWriter writer, JobOutput stdout, JobOutput stderr, boolean finished)
+        throws IOException {
+
+        if (stderr == null) {
+            writer.name("output").value(stdout, finished);
+            if (finished && stdout.isTruncated()) {
+                writer.name("truncated").value(true);
             }
-        } catch (JSONException e) {
-            LOGGER.warning(String.format("Exception while creating JSONOjbect: %s", e.getMessage()));
+            return;
+        }
+        writer.name("stdout").value(stdout, finished);
+        writer.name("stderr").value(stderr, finished);
+        if (finished && stdout.isTruncated()) {
+            writer.name("stdout_truncated").value(true);
+        }
+        if (finished && stderr.isTruncated()) {
+            writer.name("stderr_truncated").value(true);
+        }
+    }
+
+    private void sendTooManyRequests(HttpServletResponse response) throws IOException {
+        // Too many jobs waiting already, tell the client to back off instead of piling on more
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        response.setHeader("Retry-After", Integer.toString(retryAfterSecs));
+        sendJson(response, tooManyRequests);
+    }
+
+    private long[] getIds(JSONObject requestData) throws JSONException {
+        JSONArray idArray = requestData.getJSONArray(ids_key);
+        long[] ids = new long[idArray.length()];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = idArray.getLong(i);
         }
-        return outputJson.toString(INDENT_SIZE);
+        return ids;
     }
 
     private JSONObject getRequestData(HttpServletRequest request) throws IOException, JSONException {
@@ -96,6 +421,272 @@ public class APIServer extends HttpServlet {
         return new JSONObject(jsonJoiner.toString());
     }
 
+    /**
+     * Throws NumberFormatException if the parameter isn't a number, callers answer with invalidRequest
+     */
+    private long getLongQueryParameter(HttpServletRequest request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    /**
+     * Raw output bytes from an offset onwards. Offsets are positions in everything the job has written, so clients
+     * can keep passing back X-Next-Offset to tail a running job. With follow=true the response stays open and
+     * streams output as it arrives until the job ends.
+     *
+     * Jobs that haven't started yet have no output, so they return an empty body. With stream=stderr the job's
+     * separately captured stderr is read instead, which is empty if stderr is merged into the output.
+     */
+    private void doGetOutput(HttpServletRequest request, HttpServletResponse response, long id) throws IOException {
+        Job job = manager.queryJob(id);
+        if (job == null) {
+            sendJson(response, jobNotFound);
+            return;
+        }
+
+        long offset;
+        int limit;
+        try {
+            offset = getLongQueryParameter(request, "offset", 0);
+            limit = (int) Math.min(getLongQueryParameter(request, "limit", MAX_OUTPUT_READ), MAX_OUTPUT_READ);
+        } catch (NumberFormatException e) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+        if (limit < 1) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+        JobOutput buffer = "stderr".equals(request.getParameter("stream")) ? job.getErrorOutput() : job.getOutput();
+        response.setContentType("application/octet-stream");
+        response.setHeader("X-Job-Status", statusMap.get(job.getStatus()));
+        if (buffer == null) {
+            response.setHeader("X-Output-Offset", Long.toString(offset));
+            response.setHeader("X-Next-Offset", Long.toString(offset));
+            response.setContentLength(0);
+            return;
+        }
+
+        if (Boolean.parseBoolean(request.getParameter("follow"))) {
+            AsyncContext context = request.startAsync();
+            context.setTimeout(FOLLOW_TIMEOUT_MS);
+            new OutputFollower(context, buffer, offset).start();
+            return;
+        }
+
+        boolean closed = buffer.isClosed();
+        if (buffer.isSpooled()) {
+            sendSpooled(request, response, (SpoolFile) buffer, offset, limit, closed);
+            return;
+        }
+        if (buffer instanceof CompressedOutput && request.getParameter("limit") == null
+            && offset <= ((CompressedOutput) buffer).getFirstOffset()) {
+            response.addHeader("Vary", "Accept-Encoding");
+            if (acceptsGzip(request)) {
+                sendCompressed(response, (CompressedOutput) buffer);
+                return;
+            }
+        }
+
+        JobOutput.Slice slice = buffer.read(offset, limit);
+        response.setHeader("X-Output-Offset", Long.toString(slice.getOffset()));
+        response.setHeader("X-Next-Offset", Long.toString(slice.getNextOffset()));
+        response.setHeader("X-Output-Complete", Boolean.toString(closed && slice.getNextOffset() >= buffer.getTotalBytes()));
+        response.setContentLength(slice.getBytes().length);
+        response.getOutputStream().write(slice.getBytes());
+    }
+
+    private static boolean hasLineOptions(HttpServletRequest request) {
+        return request.getParameter("tail") != null || request.getParameter("lines") != null
+            || request.getParameter("grep") != null;
+    }
+
+    /**
+     * Query with tail=N, lines=a-b (1-based and inclusive, b can be left out) and/or grep=regex, returning
+     * {"status", "line_count", "lines": [{"line", "text"}, ...]} instead of the whole output. tail and lines pick a
+     * range through the output's LineIndex, so only those lines are read; grep keeps the lines in the range (all of
+     * them if there's none) that match. stream=stderr reads separately captured stderr. At most MAX_LINES lines
+     * are returned, with "lines_truncated" set if there were more.
+     */
+    private void doGetLines(HttpServletRequest request, HttpServletResponse response, Job job) throws IOException {
+        String tail = request.getParameter("tail");
+        String range = request.getParameter("lines");
+        String grep = request.getParameter("grep");
+        Pattern pattern;
+        long tailLines;
+        long first;
+        long last;
+        try {
+            pattern = grep == null ? null : Pattern.compile(grep);
+            tailLines = tail == null ? -1 : Long.parseLong(tail);
+            int dash = range == null ? -1 : range.indexOf('-');
+            if (range == null) {
+                first = 1;
+                last = Long.MAX_VALUE;
+            } else if (dash < 0) {
+                first = Long.parseLong(range);
+                last = first;
+            } else {
+                first = Long.parseLong(range.substring(0, dash));
+                last = dash == range.length() - 1 ? Long.MAX_VALUE : Long.parseLong(range.substring(dash + 1));
+            }
+        } catch (NumberFormatException | PatternSyntaxException e) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+        if ((tail != null && (range != null || tailLines < 0)) || first < 1 || last < first) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+
+        JobOutput output = "stderr".equals(request.getParameter("stream")) ? job.getErrorOutput() : job.getOutput();
+        LineIndex index = null;
+        if (output != null) {
+            index = output.getLineIndex();
+            if (index == null) {
+                // Not indexed as it arrived, this costs a pass over the output
+                index = LineIndex.scan(output);
+            }
+        }
+        long lineCount = index == null ? 0 : index.getLineCount();
+        long from = tail != null ? Math.max(lineCount - tailLines, 0) : first - 1;
+        long to = tail != null ? lineCount : Math.min(last, lineCount);
+
+        try (JsonWriter writer = openJson(request, response, true)) {
+            writer.beginObject().name("status").value(statusMap.get(job.getStatus()));
+            writer.name("line_count").value(lineCount);
+            writer.name("lines").beginArray();
+            int[] count = new int[1];
+            if (index != null) {
+                index.forEach(output, from, to, (line, bytes, offset, length) -> {
+                    if (pattern != null
+                        && !pattern.matcher(new String(bytes, offset, length, StandardCharsets.UTF_8)).find()) {
+                        return true;
+                    }
+                    if (count[0]++ == MAX_LINES) {
+                        return false;
+                    }
+                    writer.beginObject().name("line").value(line + 1)
+                        .name("text").value(bytes, offset, length).endObject();
+                    return true;
+                });
+            }
+            writer.endArray();
+            if (count[0] > MAX_LINES) {
+                writer.name("lines_truncated").value(true);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Finished output that was compressed is sent as is with a gzip header and trailer, so the client gets the whole
+     * output without it being decoded here. The 1MB read cap doesn't apply since nothing is copied.
+     */
+    private void sendCompressed(HttpServletResponse response, CompressedOutput output) throws IOException {
+        response.setHeader("Content-Encoding", "gzip");
+        response.setHeader("X-Output-Offset", Long.toString(output.getFirstOffset()));
+        response.setHeader("X-Next-Offset", Long.toString(output.getTotalBytes()));
+        response.setHeader("X-Output-Complete", "true");
+        response.setContentLengthLong(output.getGzipSize());
+        output.writeGzipTo(response.getOutputStream());
+    }
+
+    /**
+     * Spooled output is sent straight from the file. Once the spool is complete and Tomcat supports it we hand the
+     * range to sendfile, which is the only zero-copy path. Otherwise the spool's read channel transfers into the
+     * response stream, which copies through a buffer on the way.
+     */
+    private void sendSpooled(HttpServletRequest request, HttpServletResponse response, SpoolFile spool, long offset,
+        int limit, boolean closed) throws IOException {
+
+        long size = spool.size();
+        long from = Math.min(Math.max(offset, 0), size);
+        long length = Math.min(size - from, limit);
+        response.setHeader("X-Output-Offset", Long.toString(from));
+        response.setHeader("X-Next-Offset", Long.toString(from + length));
+        response.setHeader("X-Output-Complete", Boolean.toString(closed && from + length >= size));
+        response.setContentLengthLong(length);
+
+        if (closed && Boolean.TRUE.equals(request.getAttribute(sendfile_support_attr))) {
+            request.setAttribute("org.apache.tomcat.sendfile.filename", spool.getPath().toAbsolutePath().toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", from);
+            request.setAttribute("org.apache.tomcat.sendfile.end", from + length);
+            return;
+        }
+        spool.transferTo(from, length, Channels.newChannel(response.getOutputStream()));
+    }
+
+    /**
+     * Long poll that answers once the job is done, or after timeout seconds with the job as it is then.
+     * A timeout of 0 answers straight away, since an async timeout of 0 would never expire.
+     * The request is parked with async servlet support, so waiting clients don't hold a request thread.
+     */
+    private void doGetWait(HttpServletRequest request, HttpServletResponse response, long id) throws IOException {
+        long timeoutSecs;
+        try {
+            timeoutSecs = Math.min(Math.max(getLongQueryParameter(request, "timeout", DEFAULT_WAIT_SECS), 0), MAX_WAIT_SECS);
+        } catch (NumberFormatException e) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+        Job job = manager.queryJob(id);
+        if (job == null || job.isDone() || timeoutSecs == 0) {
+            sendJobJson(request, response, job);
+            return;
+        }
+
+        new JobWaiter(request.startAsync(), job, waited -> sendJobJson(request, response, waited))
+            .start(TimeUnit.SECONDS.toMillis(timeoutSecs));
+    }
+
+    /**
+     * Server-Sent Events stream of status changes and output progress, optionally only for ids=1,2,3 and/or
+     * status=running,finished, and without output events with output=false. The request is parked with async
+     * servlet support and stays open until the client goes away or falls too far behind (see EventStream).
+     */
+    private void doGetEvents(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Set<Long> ids = null;
+        Set<Job.JobStatus> statuses = null;
+        String idList = request.getParameter("ids");
+        String statusList = request.getParameter("status");
+        try {
+            if (idList != null) {
+                ids = new HashSet<>();
+                for (String id : idList.split(",")) {
+                    ids.add(Long.parseLong(id.trim()));
+                }
+            }
+            if (statusList != null) {
+                statuses = EnumSet.noneOf(Job.JobStatus.class);
+                for (String name : statusList.split(",")) {
+                    Job.JobStatus status = statusOf(name.trim());
+                    if (status == null) {
+                        throw new IllegalArgumentException("Unknown status " + name);
+                    }
+                    statuses.add(status);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        AsyncContext context = request.startAsync();
+        // Open until the client leaves, heartbeats find out when it has
+        context.setTimeout(0);
+        try {
+            new EventStream(context).start(manager, ids, statuses,
+                !"false".equals(request.getParameter("output")));
+        } catch (RejectedExecutionException e) {
+            sendTooManyRequests(response);
+            context.complete();
+        }
+    }
+
     /**
      * GET endpoints
      */
@@ -103,30 +694,54 @@ public class APIServer extends HttpServlet {
     public void doGet(HttpServletRequest request, HttpServletResponse response)
         throws ServletException, IOException {
 
-        PrintWriter out = response.getWriter();
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
+        doGet(request, response, Route.parse(request.getRequestURI()));
+    }
 
-        // Basic url filtering
-        String[] paths = getPaths(request);
-        if (paths.length != 4) {
-            printAndFlush(out, invalidRequest);
+    private void doGet(HttpServletRequest request, HttpServletResponse response, Route route) throws IOException {
+        // Route endpoints are constants, so they compare by reference
+        String endpoint = route.getEndpoint();
+        if (endpoint == Route.EVENTS && !route.hasArgument()) {
+            doGetEvents(request, response);
+            return;
+        }
+        if (endpoint == Route.METRICS && !route.hasArgument()) {
+            response.setContentType("text/plain; version=0.0.4");
+            response.setCharacterEncoding("UTF-8");
+            PrintWriter out = response.getWriter();
+            manager.getMetrics().writePrometheus(out);
+            out.flush();
             return;
         }
 
-        String endpoint = paths[2];
-        Long pid = Long.parseLong(paths[3]);
-
-        if (endpoint.equals("query")) {
-            Job job = manager.queryJob(pid);
-            out.print(buildJobJson(job));
-        } else if (endpoint.equals("stop")) {
-            manager.stopJob(pid);
-            out.print(new JSONObject().toString(INDENT_SIZE));
+        long id = route.getId();
+        if (id < 0) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+        if (endpoint == Route.OUTPUT) {
+            doGetOutput(request, response, id);
+        } else if (endpoint == Route.WAIT) {
+            doGetWait(request, response, id);
+        } else if (endpoint == Route.QUERY) {
+            Job job = manager.queryJob(id);
+            if (job != null && hasLineOptions(request)) {
+                doGetLines(request, response, job);
+                return;
+            }
+            sendJobJson(request, response, job);
+        } else if (endpoint == Route.STOP) {
+            long grace;
+            try {
+                grace = getLongQueryParameter(request, grace_key, stopGraceMillis);
+            } catch (NumberFormatException e) {
+                sendJson(response, invalidRequest);
+                return;
+            }
+            manager.stopJob(id, grace);
+            sendJson(response, emptyObject);
         } else {
-            out.print(invalidRequest);
+            sendJson(response, invalidRequest);
         }
-        out.flush();
     }
 
     /**
@@ -136,36 +751,202 @@ public class APIServer extends HttpServlet {
     public void doPost(HttpServletRequest request, HttpServletResponse response)
         throws IOException, ServletException {
 
-        PrintWriter out = response.getWriter();
-        response.setContentType("application/json");
-        response.setCharacterEncoding("UTF-8");
+        doPost(request, response, Route.parse(request.getRequestURI()));
+    }
 
-        // Basic url filtering
-        String[] paths = getPaths(request);
-        if (paths.length != 3 || !paths[2].equals("start")) {
-            printAndFlush(out, invalidRequest);
+    private void doPost(HttpServletRequest request, HttpServletResponse response, Route route) throws IOException {
+        boolean start = route.getEndpoint() == Route.START && !route.hasArgument();
+        boolean batch = route.getEndpoint() == Route.BATCH && route.getAction() != null;
+        if (!start && !batch) {
+            sendJson(response, invalidRequest);
             return;
         }
 
         JSONObject requestData;
-        String command;
         try {
             requestData = getRequestData(request);
-            command = requestData.getString(file_path_key);
         } catch (IOException | JSONException e) {
             // Exceptions are caught together for now just because our response is the same for both and is not critical
             // The error message in logging should determine which part of the process caused the exception (JSONObject creation vs stream reading)
             LOGGER.warning(String.format("Exception while retrieving request data: %s", e.getMessage()));
-            printAndFlush(out, invalidRequest);
+            sendJson(response, invalidRequest);
+            return;
+        }
+        if (batch) {
+            try {
+                doPostBatch(request, response, route.getAction(), requestData);
+            } catch (JSONException e) {
+                LOGGER.warning(String.format("Exception while retrieving request data: %s", e.getMessage()));
+                sendJson(response, invalidRequest);
+            }
+            return;
+        }
+
+        String command;
+        String tenant;
+        int priority;
+        boolean cacheable;
+        long maxAgeMillis;
+        try {
+            command = requestData.getString(file_path_key);
+            tenant = getTenant(requestData);
+            priority = getPriority(requestData);
+            cacheable = requestData.has(cacheable_key) && requestData.getBoolean(cacheable_key);
+            maxAgeMillis = requestData.has(max_age_key) ? requestData.getLong(max_age_key) * 1000 : cacheMaxAgeMillis;
+        } catch (JSONException e) {
+            LOGGER.warning(String.format("Exception while retrieving request data: %s", e.getMessage()));
+            sendJson(response, invalidRequest);
             return;
         }
 
-        long pid = manager.addJob(new Job(command));
-        if (pid == -1) {
-            printAndFlush(out, new JSONObject().put("error", "could not execute command").toString(INDENT_SIZE));
+        Job job = new Job(command, tenant, priority);
+        long id;
+        try {
+            // Returns straight away, spawn failures show up as an error status on query
+            id = cacheable ? manager.addCacheableJob(job, maxAgeMillis) : manager.addJobAsync(job);
+        } catch (RejectedExecutionException e) {
+            sendTooManyRequests(response);
+            return;
+        }
+        try (JsonWriter writer = openJson(request, response, false)) {
+            writer.beginObject().name("id").value(id);
+            if (cacheable && manager.queryJob(id) != job) {
+                // Answered by an earlier or in flight run of the same command
+                writer.name("cached").value(true);
+            }
+            writer.endObject();
+        }
+    }
+
+    /**
+     * Batch endpoints under /worker/batch/ handle a whole list of jobs in one request and one pass through the
+     * JobManager:
+     * start - {"file_paths": [...]} returns {"jobs": [{"id": 1}, {"error": "too many queued jobs"}, ...]}
+     * query - {"ids": [...], "status_only": false} returns {"jobs": [...]} in the same order as the ids
+     * stop - {"ids": [...]} returns an empty object
+     *
+     * Request data is fully read before anything is written, so a JSONException always leaves the response untouched.
+     * endpoint is one of Route's actions.
+     */
+    private void doPostBatch(HttpServletRequest request, HttpServletResponse response, String endpoint,
+        JSONObject requestData) throws JSONException, IOException {
+
+        if (endpoint == Route.START) {
+            JSONArray commands = requestData.getJSONArray(file_paths_key);
+            String tenant = getTenant(requestData);
+            int priority = getPriority(requestData);
+            List<Job> batch = new ArrayList<>(commands.length());
+            for (int i = 0; i < commands.length(); ++i) {
+                batch.add(new Job(commands.getString(i), tenant, priority));
+            }
+
+            long[] ids = manager.addJobsAsync(batch);
+            boolean accepted = false;
+            for (long id : ids) {
+                accepted |= id != -1;
+            }
+            if (!accepted && ids.length > 0) {
+                sendTooManyRequests(response);
+                return;
+            }
+            try (JsonWriter writer = openJson(request, response, true)) {
+                writer.beginObject().name("jobs").beginArray();
+                for (long id : ids) {
+                    writer.beginObject();
+                    if (id == -1) {
+                        writer.name("error").value("too many queued jobs");
+                    } else {
+                        writer.name("id").value(id);
+                    }
+                    writer.endObject();
+                }
+                writer.endArray().endObject();
+            }
+        } else if (endpoint == Route.QUERY) {
+            long[] ids = getIds(requestData);
+            boolean statusOnly = requestData.optBoolean(status_only_key, false);
+            List<Job> jobs = manager.queryJobs(ids);
+            try (JsonWriter writer = openJson(request, response, true)) {
+                writer.beginObject().name("jobs").beginArray();
+                for (int i = 0; i < ids.length; ++i) {
+                    Job job = jobs.get(i);
+                    writer.beginObject().name("id").value(ids[i]);
+                    if (job == null) {
+                        writer.name("error").value("job does not exist");
+                    } else {
+                        writeJobFields(writer, job, statusOnly);
+                    }
+                    writer.endObject();
+                }
+                writer.endArray().endObject();
+            }
+        } else if (endpoint == Route.STOP) {
+            doPostBatchStop(request, response, requestData);
+        } else {
+            sendJson(response, invalidRequest);
+        }
+    }
+
+    /**
+     * Stops jobs by id, or every job in a status or with a command prefix. Stops never wait on a process, so
+     * cancelling thousands of jobs is one pass over the manager's jobs on this thread.
+     */
+    private void doPostBatchStop(HttpServletRequest request, HttpServletResponse response, JSONObject requestData)
+        throws JSONException, IOException {
+
+        long graceMillis = requestData.optLong(grace_key, stopGraceMillis);
+        int stopped;
+        if (requestData.has(status_key)) {
+            Job.JobStatus status = statusOf(requestData.getString(status_key));
+            if (status == null) {
+                throw new JSONException("Unknown status " + requestData.getString(status_key));
+            }
+            stopped = manager.stopJobs(status, graceMillis);
+        } else if (requestData.has(command_prefix_key)) {
+            stopped = manager.stopJobsByCommand(requestData.getString(command_prefix_key), graceMillis);
+        } else {
+            for (long id : getIds(requestData)) {
+                manager.stopJob(id, graceMillis);
+            }
+            sendJson(response, emptyObject);
             return;
         }
+        try (JsonWriter writer = openJson(request, response, false)) {
+            writer.beginObject().name("stopped").value(stopped).endObject();
+        }
+    }
+
+    /**
+     * Optional tenant of the jobs being started, the default tenant if it's missing
+     */
+    private static String getTenant(JSONObject requestData) throws JSONException {
+        if (!requestData.has(tenant_key)) {
+            return Job.DEFAULT_TENANT;
+        }
+        String tenant = requestData.getString(tenant_key).trim();
+        if (tenant.isEmpty()) {
+            throw new JSONException("Empty tenant");
+        }
+        return tenant;
+    }
+
+    private static int getPriority(JSONObject requestData) throws JSONException {
+        return requestData.has(priority_key) ? requestData.getInt(priority_key) : 0;
+    }
 
-        printAndFlush(out, new JSONObject().put("pid", pid).toString(INDENT_SIZE));
+    /**
+     * Status as it's named in responses
+     */
+    static String statusName(Job.JobStatus status) {
+        return statusMap.get(status);
+    }
+
+    private static Job.JobStatus statusOf(String name) {
+        for (Map.Entry<Job.JobStatus, String> entry : statusMap.entrySet()) {
+            if (entry.getValue().equals(name)) {
+                return entry.getKey();
+            }
+        }
+        return null;
     }
 }
@@ -0,0 +1,281 @@
+package com.teleport.workers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed Output class
+ * Finished heap output compressed with Deflater, so retained jobs that are rarely queried take a fraction of the
+ * memory. Job logs usually shrink 5-10x.
+ *
+ * The output is deflated as one stream with a full flush every BLOCK_SIZE bytes. A full flush resets the
+ * compressor, so each block can be inflated on its own and a read only decodes the blocks it covers. Decoded
+ * blocks go through a shared DecodedCache. The blocks put together are still a single valid deflate stream, so
+ * with a gzip header and trailer the whole output can be sent to clients that accept gzip without decoding it.
+ *
+ * Immutable once built, the LineIndex of the original output is kept so line queries still only decode the
+ * blocks they need.
+ */
+public class CompressedOutput implements JobOutput {
+
+    final static int BLOCK_SIZE = 64 * 1024;
+    private final static byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final byte[][] blocks;
+    private final long firstOffset;
+    private final long size;
+    private final long total;
+    private final long compressedSize;
+    private final int crc;
+    private final LineIndex lines;
+    private final DecodedCache cache;
+
+    private CompressedOutput(byte[][] blocks, long firstOffset, long size, long total, int crc, LineIndex lines,
+        DecodedCache cache) {
+
+        this.blocks = blocks;
+        this.firstOffset = firstOffset;
+        this.size = size;
+        this.total = total;
+        this.crc = crc;
+        this.lines = lines;
+        this.cache = cache;
+        long compressed = 0;
+        for (byte[] block : blocks) {
+            compressed += block.length;
+        }
+        this.compressedSize = compressed;
+    }
+
+    /**
+     * Compresses a closed output. Reads go through the output's own read(), so it can keep serving requests while
+     * this runs. cache can be null.
+     */
+    public static CompressedOutput compress(JobOutput output, DecodedCache cache) throws IOException {
+        if (!output.isClosed()) {
+            throw new IllegalStateException("Only closed output can be compressed");
+        }
+        long size = output.size();
+        int count = (int) Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        byte[][] blocks = new byte[count][];
+        CRC32 checksum = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        long firstOffset = -1;
+        try {
+            long offset = 0;
+            byte[] buffer = new byte[8192];
+            for (int i = 0; i < count; ++i) {
+                JobOutput.Slice slice = output.read(offset, BLOCK_SIZE);
+                byte[] raw = slice.getBytes();
+                if (firstOffset < 0) {
+                    firstOffset = slice.getOffset();
+                }
+                offset = slice.getOffset() + raw.length;
+                checksum.update(raw, 0, raw.length);
+                deflater.setInput(raw);
+                ByteArrayOutputStream block = new ByteArrayOutputStream(raw.length / 4 + 16);
+                if (i == count - 1) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        block.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    int length;
+                    do {
+                        length = deflater.deflate(buffer, 0, buffer.length, Deflater.FULL_FLUSH);
+                        block.write(buffer, 0, length);
+                    } while (length == buffer.length);
+                }
+                blocks[i] = block.toByteArray();
+            }
+        } finally {
+            deflater.end();
+        }
+        return new CompressedOutput(blocks, Math.max(firstOffset, 0), size, output.getTotalBytes(),
+            (int) checksum.getValue(), output.getLineIndex(), cache);
+    }
+
+    private int rawLength(int block) {
+        return (int) Math.min(BLOCK_SIZE, size - (long) block * BLOCK_SIZE);
+    }
+
+    private byte[] decode(int block) throws IOException {
+        byte[] compressed = blocks[block];
+        byte[] decoded = cache == null ? null : cache.get(compressed);
+        if (decoded != null) {
+            return decoded;
+        }
+        decoded = new byte[rawLength(block)];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int position = 0;
+            while (position < decoded.length) {
+                int read = inflater.inflate(decoded, position, decoded.length - position);
+                if (read == 0 && (inflater.needsInput() || inflater.finished())) {
+                    throw new IOException("Compressed output block " + block + " is truncated");
+                }
+                position += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed output block " + block + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        if (cache != null) {
+            cache.put(compressed, decoded);
+        }
+        return decoded;
+    }
+
+    /**
+     * Same semantics as OutputBuffer.read(), only the blocks covering the range are decoded
+     */
+    @Override
+    public Slice read(long offset, int maxLength) throws IOException {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength can't be negative");
+        }
+        long from = Math.max(offset, firstOffset);
+        long available = firstOffset + size - from;
+        if (available <= 0) {
+            return new Slice(Math.min(from, total), new byte[0], total);
+        }
+
+        byte[] bytes = new byte[(int) Math.min(available, maxLength)];
+        long position = from - firstOffset;
+        int copied = 0;
+        while (copied < bytes.length) {
+            int block = (int) (position / BLOCK_SIZE);
+            int skip = (int) (position % BLOCK_SIZE);
+            int length = Math.min(rawLength(block) - skip, bytes.length - copied);
+            System.arraycopy(decode(block), skip, bytes, copied, length);
+            copied += length;
+            position += length;
+        }
+        long next = from + bytes.length;
+        if (next == firstOffset + size) {
+            next = total;
+        }
+        return new Slice(from, bytes, next);
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        byte[] bytes = new byte[(int) size];
+        for (int i = 0; i < blocks.length && size > 0; ++i) {
+            System.arraycopy(decode(i), 0, bytes, i * BLOCK_SIZE, rawLength(i));
+        }
+        return bytes;
+    }
+
+    /**
+     * Decodes one block at a time into the stream
+     */
+    @Override
+    public void writeTo(OutputStream stream) throws IOException {
+        for (int i = 0; i < blocks.length && size > 0; ++i) {
+            stream.write(decode(i), 0, rawLength(i));
+        }
+    }
+
+    /**
+     * Writes the retained output as a gzip stream made from the compressed blocks, without decoding anything
+     */
+    public void writeGzipTo(OutputStream stream) throws IOException {
+        stream.write(GZIP_HEADER);
+        for (byte[] block : blocks) {
+            stream.write(block);
+        }
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; ++i) {
+            trailer[i] = (byte) (crc >>> (8 * i));
+            trailer[4 + i] = (byte) (size >>> (8 * i));
+        }
+        stream.write(trailer);
+    }
+
+    /**
+     * Size of writeGzipTo()'s output
+     */
+    public long getGzipSize() {
+        return GZIP_HEADER.length + compressedSize + 8;
+    }
+
+    /**
+     * Absolute offset of the first retained byte
+     */
+    public long getFirstOffset() {
+        return firstOffset;
+    }
+
+    /**
+     * Bytes held by the compressed blocks, which is what the output costs on the heap
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Number of output bytes held, decoded
+     */
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return total;
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return total > size;
+    }
+
+    @Override
+    public boolean isSpooled() {
+        return false;
+    }
+
+    @Override
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * Already closed, compressed output never changes
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public boolean isClosed() {
+        return true;
+    }
+
+    /**
+     * Nothing is ever added, so listeners would never run
+     */
+    @Override
+    public void addListener(Runnable listener) {
+    }
+
+    @Override
+    public void removeListener(Runnable listener) {
+    }
+
+    /**
+     * Nothing to free, the blocks go away with the job
+     */
+    @Override
+    public void release() {
+    }
+}
@@ -0,0 +1,72 @@
+package com.teleport.workers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decoded Cache class
+ * Small LRU cache of decompressed blocks of CompressedOutputs, so results that are being queried don't get
+ * inflated again for every request. Keys are the compressed blocks themselves, which arrays compare by identity,
+ * so the entries of an output that was released simply age out.
+ *
+ * Bounded by the total size of the decoded blocks. Hits and misses are counted in the shared Metrics registry.
+ */
+public class DecodedCache {
+
+    private final long maxBytes;
+    private final Metrics.Counter hits;
+    private final Metrics.Counter misses;
+
+    // Guarded by this, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<byte[], byte[]> blocks;
+    private long bytes;
+
+    public DecodedCache(long maxBytes, Metrics metrics) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes can't be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = metrics.counter("worker_decoded_cache_hits_total",
+            "Compressed output blocks read from the decoded cache");
+        this.misses = metrics.counter("worker_decoded_cache_misses_total",
+            "Compressed output blocks that had to be inflated");
+    }
+
+    /**
+     * Returns the decoded block, or null if it isn't cached
+     */
+    public byte[] get(byte[] compressed) {
+        byte[] decoded;
+        synchronized (this) {
+            decoded = blocks.get(compressed);
+        }
+        if (decoded == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return decoded;
+    }
+
+    public synchronized void put(byte[] compressed, byte[] decoded) {
+        if (decoded.length > maxBytes) {
+            return;
+        }
+        byte[] previous = blocks.put(compressed, decoded);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += decoded.length;
+        Iterator<Map.Entry<byte[], byte[]>> eldest = blocks.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,496 @@
+package com.teleport.workers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+import java.util.logging.Logger;
+
+/**
+ * Event Dispatcher class
+ * Fans job status changes and output progress out to subscribers, so clients watching many jobs get pushed what
+ * changed instead of polling each one.
+ *
+ * Producers (whichever thread changes a status, output pumps) only offer an event to a bounded queue and never
+ * block; if the queue is full the event is dropped and counted. A single dispatcher thread takes events off the
+ * queue and appends them to the buffer of each subscription whose filter matches. Subscription buffers are
+ * bounded too. Output events only say that a job has new output, so there is at most one per job in the queue
+ * and in each buffer, and they're skipped when a buffer is full. A subscriber that falls so far behind that a
+ * status event doesn't fit is dropped rather than slowing anything else down, and finds out from its buffer.
+ * A status event dropped from the full queue could have been for anyone, so every subscription that was already
+ * there when it was dropped is dropped the same way, and reconnects instead of silently missing a transition.
+ *
+ * Subscriptions for specific jobs start with each job's current status, queued through the dispatcher so no
+ * transition between subscribing and the first event is lost (one can be repeated). Heartbeats are added to
+ * idle subscriptions so consumers notice dead connections.
+ */
+public class EventDispatcher {
+
+    private final static Logger LOGGER = Logger.getLogger(EventDispatcher.class.getName());
+    private final static int MAX_BATCH = 4096;
+    private final static long SUBSCRIBE_TIMEOUT_MS = 1000;
+
+    public final static byte STATUS = 1;
+    public final static byte OUTPUT = 2;
+    public final static byte HEARTBEAT = 3;
+    private final static byte SUBSCRIBE = 4;
+    private final static byte CLOSE = 5;
+
+    private final BlockingQueue<Event> queue;
+    private final int bufferSize;
+    private final long heartbeatMillis;
+    private final LongFunction<Job> jobs;
+    private final List<Subscription> subscriptions;
+    private final Set<Long> pendingOutput;
+    private final AtomicInteger outputSubscribers;
+    private final AtomicLong sequence;
+    // Subscriptions take a ticket before they're queued, a dropped status event takes one after it failed
+    private final AtomicLong tickets;
+    private final AtomicLong lostTicket;
+    private final Metrics.Counter published;
+    private final Metrics.Counter dropped;
+    private final Metrics.Counter coalesced;
+    private final Metrics.Counter slowSubscribers;
+    private final Thread dispatcher;
+
+    /**
+     * Something that happened to a job. Sequence numbers increase in the order events were dispatched.
+     */
+    public static class Event {
+        private final byte type;
+        private final long id;
+        private final Job job;
+        private final Job.JobStatus status;
+        private final long time;
+        private final Subscription subscription;
+        private long sequence;
+
+        private Event(byte type, long id, Job job, Job.JobStatus status, long time, Subscription subscription) {
+            this.type = type;
+            this.id = id;
+            this.job = job;
+            this.status = status;
+            this.time = time;
+            this.subscription = subscription;
+        }
+
+        /**
+         * STATUS, OUTPUT or HEARTBEAT
+         */
+        public byte getType() {
+            return type;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * The job itself, for OUTPUT events the current output sizes are read from it
+         */
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * Status the job moved to, for STATUS events
+         */
+        public Job.JobStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * Milliseconds since the Unix epoch at which the status changed
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    /**
+     * Events for one subscriber, buffered until it polls them. ids and statuses are null to match everything.
+     * Status filters apply to STATUS events, OUTPUT events are only kept if RUNNING matches.
+     */
+    public class Subscription {
+        private final Set<Long> ids;
+        private final Set<Job.JobStatus> statuses;
+        private final boolean output;
+        private final Runnable ready;
+        private final long ticket;
+
+        // Guarded by this
+        private final ArrayDeque<Event> events;
+        private final Set<Long> queuedOutput;
+        private boolean slow;
+        private boolean closed;
+
+        private Subscription(Set<Long> ids, Set<Job.JobStatus> statuses, boolean output, Runnable ready) {
+            this.ids = ids;
+            this.statuses = statuses;
+            this.output = output && (statuses == null || statuses.contains(Job.JobStatus.RUNNING));
+            this.ready = ready;
+            this.ticket = tickets.incrementAndGet();
+            this.events = new ArrayDeque<>();
+            this.queuedOutput = new HashSet<>();
+        }
+
+        private boolean matches(Event event) {
+            if (ids != null && !ids.contains(event.id)) {
+                return false;
+            }
+            if (event.type == OUTPUT) {
+                return output;
+            }
+            return event.type != STATUS || statuses == null || statuses.contains(event.status);
+        }
+
+        /**
+         * Runs on the dispatcher thread, returns false if the subscription was dropped for falling behind
+         */
+        private boolean offer(Event event) {
+            synchronized (this) {
+                if (closed) {
+                    return true;
+                }
+                if (event.type == OUTPUT && !queuedOutput.add(event.id)) {
+                    // The notice already waiting covers this one
+                    coalesced.increment();
+                    return true;
+                }
+                if (event.type == HEARTBEAT && !events.isEmpty()) {
+                    return true;
+                }
+                if (events.size() >= bufferSize) {
+                    if (event.type == OUTPUT) {
+                        queuedOutput.remove(event.id);
+                        coalesced.increment();
+                        return true;
+                    }
+                    drop();
+                } else {
+                    events.add(event);
+                }
+            }
+            ready.run();
+            return !slow;
+        }
+
+        /**
+         * Runs on the dispatcher thread once the subscription can't be sure it has seen every status change
+         */
+        private synchronized void drop() {
+            slow = true;
+            closed = true;
+            events.clear();
+            queuedOutput.clear();
+        }
+
+        /**
+         * Next buffered event, or null if there's none for now
+         */
+        public synchronized Event poll() {
+            Event event = events.poll();
+            if (event != null && event.type == OUTPUT) {
+                queuedOutput.remove(event.id);
+            }
+            return event;
+        }
+
+        /**
+         * True once the subscription was dropped because its buffer filled up or a status event it could have
+         * matched was dropped from the dispatcher queue
+         */
+        public synchronized boolean isSlow() {
+            return slow;
+        }
+
+        /**
+         * True once no more events will be added, because the subscription was closed or dropped or the
+         * dispatcher shut down
+         */
+        public synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Stops delivering events, safe to call more than once
+         */
+        public void close() {
+            synchronized (this) {
+                closed = true;
+                events.clear();
+                queuedOutput.clear();
+            }
+            if (subscriptions.remove(this) && output) {
+                outputSubscribers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * jobs looks up a job by id, for the current status of jobs a subscription asks for
+     */
+    public EventDispatcher(int queueSize, int bufferSize, long heartbeatMillis, LongFunction<Job> jobs,
+        Metrics metrics) {
+
+        if (queueSize <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Event queue and buffer sizes must be positive");
+        }
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.bufferSize = bufferSize;
+        this.heartbeatMillis = heartbeatMillis;
+        this.jobs = jobs;
+        this.subscriptions = new CopyOnWriteArrayList<>();
+        this.pendingOutput = ConcurrentHashMap.newKeySet();
+        this.outputSubscribers = new AtomicInteger();
+        this.sequence = new AtomicLong();
+        this.tickets = new AtomicLong();
+        this.lostTicket = new AtomicLong();
+        this.published = metrics.counter("worker_events_published_total", "Job events handed to subscribers");
+        this.dropped = metrics.counter("worker_events_dropped_total",
+            "Job events dropped because the dispatcher queue was full");
+        this.coalesced = metrics.counter("worker_events_coalesced_total",
+            "Output events merged into one already buffered or skipped for a full buffer");
+        this.slowSubscribers = metrics.counter("worker_event_subscribers_dropped_total",
+            "Event subscribers dropped for falling behind");
+        metrics.gauge("worker_event_subscribers", "Open event subscriptions", subscriptions::size);
+        this.dispatcher = new Thread(this::dispatchLoop, "event-dispatcher");
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+    /**
+     * Called after a job changed status, on the thread that changed it
+     */
+    public void statusChanged(long id, Job job, Job.JobStatus status, long time) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        enqueue(new Event(STATUS, id, job, status, time, null));
+    }
+
+    /**
+     * Called by output listeners whenever a job has new output. Only one notice per job waits in the queue.
+     */
+    public void outputChanged(long id, Job job) {
+        if (outputSubscribers.get() == 0 || !pendingOutput.add(id)) {
+            return;
+        }
+        if (!enqueue(new Event(OUTPUT, id, job, null, 0, null))) {
+            pendingOutput.remove(id);
+        }
+    }
+
+    /**
+     * Sends output notices for a job that just started running, until its output is closed
+     */
+    public void watchOutput(long id, Job job) {
+        watch(id, job, job.getOutput());
+        watch(id, job, job.getErrorOutput());
+    }
+
+    private void watch(long id, Job job, JobOutput output) {
+        if (output == null || output.isClosed()) {
+            return;
+        }
+        output.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (output.isClosed()) {
+                    output.removeListener(this);
+                }
+                outputChanged(id, job);
+            }
+        });
+    }
+
+    private boolean enqueue(Event event) {
+        if (queue.offer(event)) {
+            return true;
+        }
+        dropped.increment();
+        if (event.type == STATUS) {
+            lostTicket.accumulateAndGet(tickets.incrementAndGet(), Math::max);
+        }
+        return false;
+    }
+
+    /**
+     * Registers a subscriber. ready is called on the dispatcher thread whenever events were added to the
+     * subscription's buffer or it was dropped, and must not block.
+     * Throws RejectedExecutionException if the dispatcher is too far behind to take it.
+     */
+    public Subscription subscribe(Set<Long> ids, Set<Job.JobStatus> statuses, boolean output, Runnable ready)
+        throws RejectedExecutionException {
+
+        Subscription subscription = new Subscription(ids, statuses, output, ready);
+        try {
+            if (queue.offer(new Event(SUBSCRIBE, 0, null, null, 0, subscription), SUBSCRIBE_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS)) {
+                return subscription;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new RejectedExecutionException("Event dispatcher is falling behind");
+    }
+
+    private void dispatchLoop() {
+        List<Event> batch = new ArrayList<>();
+        long lastHeartbeat = System.currentTimeMillis();
+        long handledTicket = 0;
+        while (true) {
+            try {
+                Event first = queue.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH);
+
+            try {
+                for (Event event : batch) {
+                    if (event.type == CLOSE) {
+                        closeAll();
+                        return;
+                    }
+                    dispatch(event);
+                }
+                long lost = lostTicket.get();
+                if (lost > handledTicket) {
+                    handledTicket = lost;
+                    dropLossy(lost);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastHeartbeat >= heartbeatMillis) {
+                    lastHeartbeat = now;
+                    dispatch(new Event(HEARTBEAT, -1, null, null, now, null));
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warning(String.format("Exception while dispatching job events: %s", e.getMessage()));
+            }
+            batch.clear();
+        }
+    }
+
+    private void dispatch(Event event) {
+        if (event.type == SUBSCRIBE) {
+            start(event.subscription);
+            return;
+        }
+        if (event.type == OUTPUT) {
+            pendingOutput.remove(event.id);
+        }
+        if (event.type != HEARTBEAT) {
+            event.sequence = sequence.incrementAndGet();
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(event)) {
+                deliver(subscription, event);
+            }
+        }
+    }
+
+    /**
+     * Seeds a subscription for specific jobs with their current status, then lets it see new events
+     */
+    private void start(Subscription subscription) {
+        subscriptions.add(subscription);
+        if (subscription.output) {
+            outputSubscribers.incrementAndGet();
+        }
+        if (subscription.isClosed()) {
+            // Closed before it was started, close() may have missed it in the list
+            subscription.close();
+            return;
+        }
+        if (subscription.ticket < lostTicket.get()) {
+            // Queued before a status event that was dropped, so it may have missed it
+            dropSlow(subscription);
+            return;
+        }
+        if (subscription.ids == null) {
+            return;
+        }
+        for (long id : subscription.ids) {
+            Job job = jobs.apply(id);
+            if (job == null) {
+                continue;
+            }
+            Job.JobStatus status = job.getStatus();
+            Event current = new Event(STATUS, id, job, status, job.getStatusTime(status), null);
+            current.sequence = sequence.incrementAndGet();
+            if (subscription.matches(current)) {
+                deliver(subscription, current);
+            }
+        }
+    }
+
+    private void deliver(Subscription subscription, Event event) {
+        if (!subscription.offer(event)) {
+            slowSubscribers.increment();
+            subscription.close();
+            return;
+        }
+        if (event.type != HEARTBEAT) {
+            published.increment();
+        }
+    }
+
+    /**
+     * Drops every subscription queued before the last status event that didn't fit in the queue
+     */
+    private void dropLossy(long lost) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.ticket < lost) {
+                dropSlow(subscription);
+            }
+        }
+    }
+
+    private void dropSlow(Subscription subscription) {
+        subscription.drop();
+        slowSubscribers.increment();
+        subscription.close();
+        subscription.ready.run();
+    }
+
+    private void closeAll() {
+        for (Subscription subscription : subscriptions) {
+            subscription.close();
+            subscription.ready.run();
+        }
+    }
+
+    /**
+     * Number of open subscriptions
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Closes every subscription and stops the dispatcher thread
+     */
+    public void shutdown() {
+        if (!queue.offer(new Event(CLOSE, 0, null, null, 0, null))) {
+            dispatcher.interrupt();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Event Stream class
+ * Writes the events of a JobManager subscription to an async servlet response as Server-Sent Events:
+ *
+ * id: 42
+ * event: status
+ * data: {"id":1,"status":"running","time":1690000000000}
+ *
+ * Output events carry the job's output sizes at the time they're written, heartbeats are SSE comments. If the
+ * subscription is dropped for falling behind, a final "dropped" event tells the client to reconnect and query.
+ *
+ * Like OutputFollower no thread is held while waiting. The dispatcher only hands a drain to the container,
+ * and the drain stops as soon as the response isn't ready, so a slow client just fills its own buffer.
+ */
+class EventStream implements WriteListener, AsyncListener {
+
+    private final static Logger LOGGER = Logger.getLogger(EventStream.class.getName());
+    private final static byte[] OPENED = ": connected\n\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] HEARTBEAT = ": heartbeat\n\n".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] DROPPED = "event: dropped\ndata: {}\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final AtomicBoolean dispatched;
+    private volatile EventDispatcher.Subscription subscription;
+    private boolean opened;
+    private boolean done;
+
+    EventStream(AsyncContext context) throws IOException {
+        this.context = context;
+        this.out = context.getResponse().getOutputStream();
+        this.dispatched = new AtomicBoolean();
+    }
+
+    /**
+     * Subscribes and registers with the response, the first write happens once the container calls
+     * onWritePossible. Throws RejectedExecutionException if the manager can't take the subscription.
+     */
+    void start(JobManager manager, Set<Long> ids, Set<Job.JobStatus> statuses, boolean output)
+        throws RejectedExecutionException {
+
+        subscription = manager.subscribe(ids, statuses, output, this::dispatch);
+        context.addListener(this);
+        out.setWriteListener(this);
+    }
+
+    /**
+     * Called on the dispatcher thread, so only hand the drain off to the container
+     */
+    private void dispatch() {
+        if (dispatched.compareAndSet(false, true)) {
+            context.start(() -> {
+                dispatched.set(false);
+                try {
+                    drain();
+                } catch (IOException e) {
+                    onError(e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        drain();
+    }
+
+    /**
+     * Writes buffered events for as long as the response takes them without blocking
+     */
+    private synchronized void drain() throws IOException {
+        EventDispatcher.Subscription events = subscription;
+        while (!done && events != null && out.isReady()) {
+            if (!opened) {
+                // Gets the headers out, so clients know they're subscribed
+                opened = true;
+                out.write(OPENED);
+                continue;
+            }
+            EventDispatcher.Event event = events.poll();
+            if (event == null) {
+                if (events.isClosed()) {
+                    if (events.isSlow()) {
+                        out.write(DROPPED);
+                    }
+                    finish();
+                } else {
+                    out.flush();
+                }
+                return;
+            }
+            write(event);
+        }
+    }
+
+    private void write(EventDispatcher.Event event) throws IOException {
+        if (event.getType() == EventDispatcher.HEARTBEAT) {
+            out.write(HEARTBEAT);
+            return;
+        }
+        byte[] data;
+        String name;
+        if (event.getType() == EventDispatcher.STATUS) {
+            name = "status";
+            data = JsonWriter.toBytes(0, "id", event.getId(), "status", APIServer.statusName(event.getStatus()),
+                "time", event.getTime());
+        } else {
+            name = "output";
+            JobOutput output = event.getJob().getOutput();
+            JobOutput errorOutput = event.getJob().getErrorOutput();
+            long outputBytes = output == null ? 0 : output.getTotalBytes();
+            data = errorOutput == null
+                ? JsonWriter.toBytes(0, "id", event.getId(), "output_bytes", outputBytes)
+                : JsonWriter.toBytes(0, "id", event.getId(), "output_bytes", outputBytes,
+                    "stderr_bytes", errorOutput.getTotalBytes());
+        }
+        out.write(("id: " + event.getSequence() + "\nevent: " + name + "\ndata: ").getBytes(StandardCharsets.US_ASCII));
+        out.write(data);
+        out.write('\n');
+        out.write('\n');
+    }
+
+    private void finish() {
+        done = true;
+        subscription.close();
+        context.complete();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        // Usually the client went away
+        LOGGER.info(String.format("Stopped streaming events: %s", t.getMessage()));
+        if (!done) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        subscription.close();
+    }
+
+    @Override
+    public synchronized void onTimeout(AsyncEvent event) {
+        if (!done) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
@@ -0,0 +1,183 @@
+package com.teleport.workers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Fair Queue class
+ * Queue of job ids waiting for a running slot, shared fairly between tenants. Each tenant gets a share of the
+ * slots in proportion to its weight, and within a tenant higher priority jobs go first, oldest first for equal
+ * priorities. A tenant submitting thousands of jobs only delays the others by its share, instead of making them
+ * wait behind the whole batch.
+ *
+ * Shares use stride scheduling: every tenant with queued jobs has a pass, the tenant with the lowest pass is
+ * served next and its pass then moves ahead by a stride inversely proportional to its weight. A tenant that had
+ * nothing queued starts again from the later of its own pass and the current pass, so being idle doesn't bank
+ * credit, and a tenant that queues one job at a time as soon as the last one was taken can't jump ahead of busy
+ * tenants either. Idle tenants are only remembered until the current pass catches up with theirs. Tenants and the
+ * jobs of each tenant are kept in tree sets, which makes adding, taking and removing a job O(log n).
+ *
+ * Not thread safe, the JobManager only uses it under its admission lock.
+ */
+public class FairQueue {
+
+    private final static long STRIDE = 1L << 20;
+    // Heavier tenants would get a stride of 0, their pass would never move and nobody else would be served
+    final static int MAX_WEIGHT = (int) STRIDE;
+
+    private final Map<String, Integer> weights;
+    private final Map<String, Tenant> tenants;
+    private final TreeSet<Tenant> active;
+    // Tenants with nothing queued whose pass is still ahead of the current one
+    private final TreeSet<Tenant> idle;
+    private final Map<Long, Entry> entries;
+    private long pass;
+    private long sequence;
+
+    private static class Entry implements Comparable<Entry> {
+        private final long id;
+        private final int priority;
+        private final long sequence;
+        private final Tenant tenant;
+
+        Entry(long id, int priority, long sequence, Tenant tenant) {
+            this.id = id;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            if (priority != other.priority) {
+                return Integer.compare(other.priority, priority);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private static class Tenant implements Comparable<Tenant> {
+        private final String name;
+        private final long stride;
+        private final TreeSet<Entry> jobs = new TreeSet<>();
+        // Sequence of the tenant's activation, breaks ties between equal passes
+        private long order;
+        private long pass;
+
+        Tenant(String name, int weight) {
+            this.name = name;
+            this.stride = STRIDE / weight;
+        }
+
+        @Override
+        public int compareTo(Tenant other) {
+            if (pass != other.pass) {
+                return Long.compare(pass, other.pass);
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+
+    public FairQueue() {
+        this(Collections.emptyMap());
+    }
+
+    /**
+    * Tenants that aren't in weights have a weight of 1, weights go up to MAX_WEIGHT
+    */
+    public FairQueue(Map<String, Integer> weights) {
+        for (int weight : weights.values()) {
+            if (weight < 1 || weight > MAX_WEIGHT) {
+                throw new IllegalArgumentException("tenant weights must be between 1 and " + MAX_WEIGHT);
+            }
+        }
+        this.weights = new HashMap<>(weights);
+        this.tenants = new HashMap<>();
+        this.active = new TreeSet<>();
+        this.idle = new TreeSet<>();
+        this.entries = new HashMap<>();
+    }
+
+    public void add(long id, String tenantName, int priority) {
+        Tenant tenant = tenants.get(tenantName);
+        if (tenant == null) {
+            tenant = new Tenant(tenantName, weights.getOrDefault(tenantName, 1));
+            tenant.pass = pass;
+            tenants.put(tenantName, tenant);
+        }
+        if (tenant.jobs.isEmpty()) {
+            idle.remove(tenant);
+            tenant.order = sequence++;
+            tenant.pass = Math.max(tenant.pass, pass);
+            active.add(tenant);
+        }
+        Entry entry = new Entry(id, priority, sequence++, tenant);
+        tenant.jobs.add(entry);
+        entries.put(id, entry);
+    }
+
+    /**
+    * Takes the next job, or returns -1 if nothing is queued
+    */
+    public long poll() {
+        Tenant tenant = active.pollFirst();
+        if (tenant == null) {
+            return -1;
+        }
+        Entry entry = tenant.jobs.pollFirst();
+        entries.remove(entry.id);
+        pass = tenant.pass;
+        tenant.pass += tenant.stride;
+        if (tenant.jobs.isEmpty()) {
+            deactivate(tenant);
+        } else {
+            active.add(tenant);
+        }
+        // Idle tenants the current pass caught up with would restart from it anyway
+        while (!idle.isEmpty() && idle.first().pass <= pass) {
+            tenants.remove(idle.pollFirst().name);
+        }
+        return entry.id;
+    }
+
+    /**
+    * Removes a job that was stopped before its turn, returns false if it isn't queued
+    */
+    public boolean remove(long id) {
+        Entry entry = entries.remove(id);
+        if (entry == null) {
+            return false;
+        }
+        Tenant tenant = entry.tenant;
+        tenant.jobs.remove(entry);
+        if (tenant.jobs.isEmpty()) {
+            active.remove(tenant);
+            deactivate(tenant);
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a tenant that ran out of jobs only while its pass is ahead, so it resumes from there
+     */
+    private void deactivate(Tenant tenant) {
+        if (tenant.pass > pass) {
+            idle.add(tenant);
+        } else {
+            tenants.remove(tenant.name);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+    * Number of tenants with jobs queued
+    */
+    public int getTenantCount() {
+        return active.size();
+    }
+}
@@ -0,0 +1,236 @@
+package com.teleport.workers;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Fork Server class
+ * Small long-lived helper process that starts job processes on behalf of the JVM. ProcessBuilder.start() has to
+ * fork or spawn from the JVM itself, which dominates the latency of jobs that only run for a few milliseconds.
+ * The helper is a bash loop (fork-server.sh) that reads spawn requests from a pipe, forks the children itself and
+ * relays their pids and exit codes back. Children write their output straight into the given files, like
+ * spooled output.
+ *
+ * The helper is started on first use. If it dies, jobs it started can't be tracked anymore and fail, the next
+ * spawn starts a new helper.
+ */
+public class ForkServer {
+
+    private final static Logger LOGGER = Logger.getLogger(ForkServer.class.getName());
+    private final static String SCRIPT = "fork-server.sh";
+
+    private final AtomicLong tokens;
+    private Helper helper;
+    private boolean closed;
+
+    public ForkServer() {
+        this.tokens = new AtomicLong();
+    }
+
+    /**
+     * A child the helper was asked to start. The pid completes once it's running, or exceptionally if the command
+     * couldn't be started, and the exit completes with the exit code once the child is gone.
+     */
+    public static class Spawn {
+        private final CompletableFuture<Long> pid = new CompletableFuture<>();
+        private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+
+        /**
+         * Waits for the helper to report the pid
+         * Throws IOException if the command couldn't be started or the helper didn't answer in time
+         */
+        public long getPid(long timeoutMillis) throws IOException {
+            try {
+                return pid.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause().getMessage(), e.getCause());
+            } catch (TimeoutException e) {
+                throw new IOException("Fork server didn't answer in time");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the fork server");
+            }
+        }
+
+        public CompletableFuture<Integer> getExit() {
+            return exit;
+        }
+
+        private void fail(IOException e) {
+            pid.completeExceptionally(e);
+            exit.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * One run of the helper process along with the children it's tracking
+     */
+    private class Helper {
+        private final Process process;
+        private final OutputStream requests;
+        private final Map<Long, Spawn> spawns;
+
+        Helper() throws IOException {
+            process = new ProcessBuilder("bash", "-c", readScript(), "fork-server")
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+            requests = new BufferedOutputStream(process.getOutputStream());
+            spawns = new ConcurrentHashMap<>();
+            Thread reader = new Thread(this::readReplies, "fork-server-" + process.pid());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void readReplies() {
+            try (BufferedReader replies = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = replies.readLine()) != null) {
+                    dispatch(line);
+                }
+            } catch (IOException e) {
+                LOGGER.warning(String.format("Exception while reading fork server replies: %s", e.getMessage()));
+            }
+            // Nothing is left to report on the children this helper started
+            IOException exited = new IOException("Fork server exited");
+            for (Spawn spawn : spawns.values()) {
+                spawn.fail(exited);
+            }
+            spawns.clear();
+        }
+
+        /**
+         * Replies are "S token pid", "F token reason" or "E token code"
+         */
+        private void dispatch(String line) {
+            int first = line.indexOf(' ');
+            int second = line.indexOf(' ', first + 1);
+            if (first != 1 || second < 0) {
+                LOGGER.warning(String.format("Unexpected fork server reply: %s", line));
+                return;
+            }
+            long token = Long.parseLong(line.substring(first + 1, second));
+            String value = line.substring(second + 1);
+            switch (line.charAt(0)) {
+                case 'S': {
+                    Spawn spawn = spawns.get(token);
+                    if (spawn != null) {
+                        spawn.pid.complete(Long.parseLong(value));
+                    }
+                    break;
+                }
+                case 'F': {
+                    Spawn spawn = spawns.remove(token);
+                    if (spawn != null) {
+                        spawn.fail(new IOException(value));
+                    }
+                    break;
+                }
+                case 'E': {
+                    Spawn spawn = spawns.remove(token);
+                    if (spawn != null) {
+                        spawn.exit.complete(Integer.parseInt(value));
+                    }
+                    break;
+                }
+                default:
+                    LOGGER.warning(String.format("Unexpected fork server reply: %s", line));
+            }
+        }
+    }
+
+    private static String readScript() throws IOException {
+        try (InputStream script = ForkServer.class.getResourceAsStream(SCRIPT)) {
+            if (script == null) {
+                throw new IOException("Missing " + SCRIPT);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = script.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Asks the helper to start a command with its stdout written to out, and stderr to err or merged into
+     * stdout if err is null
+     * Throws IOException if the helper can't be started or written to
+     */
+    public Spawn spawn(List<String> command, Path out, Path err) throws IOException {
+        long token = tokens.incrementAndGet();
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeField(request, Long.toString(token));
+        writeField(request, out.toAbsolutePath().toString());
+        writeField(request, err == null ? "" : err.toAbsolutePath().toString());
+        writeField(request, Integer.toString(command.size()));
+        for (String argument : command) {
+            writeField(request, argument);
+        }
+
+        Spawn spawn = new Spawn();
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Fork server is closed");
+            }
+            if (helper == null || !helper.process.isAlive()) {
+                helper = new Helper();
+            }
+            helper.spawns.put(token, spawn);
+            try {
+                request.writeTo(helper.requests);
+                helper.requests.flush();
+            } catch (IOException e) {
+                helper.spawns.remove(token);
+                throw e;
+            }
+        }
+        return spawn;
+    }
+
+    private static void writeField(ByteArrayOutputStream request, String field) {
+        byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+        request.write(bytes, 0, bytes.length);
+        request.write(0);
+    }
+
+    /**
+     * Pid of the helper process, or -1 if it isn't running
+     */
+    public synchronized long getPid() {
+        return helper == null || !helper.process.isAlive() ? -1 : helper.process.pid();
+    }
+
+    /**
+     * Stops the helper. Children that are still running are left alone, they just won't be reported anymore.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (helper != null) {
+            try {
+                helper.requests.close();
+            } catch (IOException e) {
+                LOGGER.warning(String.format("Could not close fork server: %s", e.getMessage()));
+            }
+            helper.process.destroy();
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.teleport.workers;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Job class
@@ -10,13 +14,40 @@ import java.util.List;
  * Status values:
  * STOPPED - Not executing or stopped by API
  * FINISHED - Finished running
+ * QUEUED - Waiting in the JobManager for a free slot to run in
+ * LAUNCHING - Has a slot, the process is being started
  * RUNNING - Executing
  * ERROR - Job couldn't be ran or another error occured while creating the process
+ *
+ * Status is a small state machine updated with compare-and-set, so reads never block and racing updates resolve
+ * to whichever legal transition lands first. A new job starts as STOPPED and can only move forward:
+ * STOPPED -> QUEUED | LAUNCHING | RUNNING | ERROR
+ * QUEUED -> LAUNCHING | RUNNING | STOPPED | ERROR
+ * LAUNCHING -> RUNNING | STOPPED | ERROR
+ * RUNNING -> FINISHED | STOPPED | ERROR
+ * Once a job is FINISHED, STOPPED (after having left its initial state) or in ERROR it never changes again.
  */
 public class Job {
-    private List<String> command;
-    private JobStatus status;
-    private Result result;
+    private final static JobStatus[] STATUSES = JobStatus.values();
+    // Set in the state once the job has left its initial STOPPED status
+    private final static int MOVED = 1 << 8;
+    private final static int STATUS_MASK = MOVED - 1;
+    public final static String DEFAULT_TENANT = "default";
+
+    private final List<String> command;
+    private final String tenant;
+    private final int priority;
+    private final AtomicInteger state;
+    private final AtomicLongArray statusTimes;
+    private final long createdAt;
+    private final AtomicReference<Result> result;
+    private final AtomicReference<JobOutput> output;
+    private volatile JobOutput errorOutput;
+    private volatile OutputTimeline timeline;
+    private final JobUsage usage;
+    private volatile String error;
+    private final CompletableFuture<Job> completion;
+    private volatile StatusListener statusListener;
 
     /**
      * Enums provide more readibility in this case and also allows us to easily distinguish between
@@ -26,10 +57,19 @@ public class Job {
     public enum JobStatus {
         STOPPED,
         FINISHED,
+        QUEUED,
+        LAUNCHING,
         RUNNING,
         ERROR
     }
 
+    /**
+    * Told about every status change, on the thread that made it, so it shouldn't block
+    */
+    interface StatusListener {
+        void statusChanged(Job job, JobStatus status, long time);
+    }
+
     /**
     * Job constructor
     * Each job object must contain a command or file path to an application
@@ -37,8 +77,24 @@ public class Job {
     * when creating the Process with ProcessBuilder
     */
     public Job(String command) {
+        this(command, DEFAULT_TENANT, 0);
+    }
+
+    /**
+    * Job submitted on behalf of a tenant. While jobs wait for a running slot, tenants share the slots by weight
+    * and each tenant's jobs are started highest priority first.
+    */
+    public Job(String command, String tenant, int priority) {
         this.command = Arrays.asList(command.trim().split("\\s+"));
-        this.status = JobStatus.STOPPED;
+        this.tenant = tenant == null ? DEFAULT_TENANT : tenant;
+        this.priority = priority;
+        this.state = new AtomicInteger(JobStatus.STOPPED.ordinal());
+        this.statusTimes = new AtomicLongArray(STATUSES.length);
+        this.createdAt = System.currentTimeMillis();
+        this.result = new AtomicReference<>();
+        this.output = new AtomicReference<>();
+        this.usage = new JobUsage();
+        this.completion = new CompletableFuture<>();
     }
 
     public List<String> getCommand() {
@@ -49,27 +105,217 @@ public class Job {
         return String.join(" ", command);
     }
 
-    public synchronized void setStatus(JobStatus status) {
-        this.status = status;
+    public String getTenant() {
+        return tenant;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    private static boolean isLegal(int current, JobStatus next) {
+        JobStatus status = STATUSES[current & STATUS_MASK];
+        switch (status) {
+            case STOPPED:
+                return (current & MOVED) == 0 && next != JobStatus.STOPPED && next != JobStatus.FINISHED;
+            case QUEUED:
+                return next == JobStatus.LAUNCHING || next == JobStatus.RUNNING || next == JobStatus.STOPPED
+                    || next == JobStatus.ERROR;
+            case LAUNCHING:
+                return next == JobStatus.RUNNING || next == JobStatus.STOPPED || next == JobStatus.ERROR;
+            case RUNNING:
+                return next == JobStatus.FINISHED || next == JobStatus.STOPPED || next == JobStatus.ERROR;
+            default:
+                return false;
+        }
+    }
+
+    /**
+    * Moves the job to a new status if that's a legal transition from its current one
+    * Returns false, leaving the status alone, if it isn't.
+    */
+    public boolean setStatus(JobStatus status) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            int current = state.get();
+            if (!isLegal(current, status)) {
+                return false;
+            }
+            if (state.compareAndSet(current, status.ordinal() | MOVED)) {
+                statusTimes.set(status.ordinal(), now);
+                notifyListener(status, now);
+                return true;
+            }
+        }
+    }
+
+    /**
+    * Moves the job to a new status only if it currently has the expected one
+    */
+    public boolean compareAndSetStatus(JobStatus expected, JobStatus status) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            int current = state.get();
+            if (STATUSES[current & STATUS_MASK] != expected || !isLegal(current, status)) {
+                return false;
+            }
+            if (state.compareAndSet(current, status.ordinal() | MOVED)) {
+                statusTimes.set(status.ordinal(), now);
+                notifyListener(status, now);
+                return true;
+            }
+        }
+    }
+
+    /**
+    * Set by the JobManager when the job is admitted, status changes before that or of rejected jobs aren't reported
+    */
+    void setStatusListener(StatusListener listener) {
+        this.statusListener = listener;
+    }
+
+    private void notifyListener(JobStatus status, long time) {
+        StatusListener listener = statusListener;
+        if (listener != null) {
+            listener.statusChanged(this, status, time);
+        }
+    }
+
+    public JobStatus getStatus() {
+        return STATUSES[state.get() & STATUS_MASK];
+    }
+
+    /**
+    * True once the status can't change anymore
+    */
+    public boolean isDone() {
+        int current = state.get();
+        JobStatus status = STATUSES[current & STATUS_MASK];
+        return status == JobStatus.FINISHED || status == JobStatus.ERROR
+            || (status == JobStatus.STOPPED && (current & MOVED) != 0);
+    }
+
+    /**
+    * Milliseconds since the Unix epoch at which the job entered a status, or 0 if it never did
+    */
+    public long getStatusTime(JobStatus status) {
+        return statusTimes.get(status.ordinal());
+    }
+
+    /**
+    * Puts back the time a restored job entered a status, the status itself is set as usual
+    */
+    void restoreStatusTime(JobStatus status, long time) {
+        statusTimes.set(status.ordinal(), time);
     }
 
-    public synchronized JobStatus getStatus() {
-        return status;
+    public long getCreatedAt() {
+        return createdAt;
     }
 
     /**
-    * Synchronized methods to set/get the Result on Process termination
+    * Set/get the Result on Process termination
     * Workers will call this from a separate thread to store the result back into
-    * the job they have been tasked with. This should only be set once, hence the null check.
+    * the job they have been tasked with. This should only be set once, hence the compare-and-set.
     */
-    public synchronized void setResult(Result result) throws IllegalStateException {
-        if (this.result != null) {
+    public void setResult(Result result) throws IllegalStateException {
+        if (!this.result.compareAndSet(null, result)) {
             throw new IllegalStateException("Result already assigned");
         }
-        this.result = result;
     }
 
-    public synchronized Result getResult() {
-        return result;
+    public Result getResult() {
+        return result.get();
+    }
+
+    /**
+    * Live output of the job, filled by its Worker while the process runs
+    * Like the Result this is only attached once, later Workers running the same job keep their output to themselves.
+    */
+    public boolean attachOutput(JobOutput output) {
+        return attachOutput(output, null, null);
+    }
+
+    /**
+    * Attaches stdout along with separately captured stderr and the chunk timeline, either of which can be null
+    */
+    public boolean attachOutput(JobOutput output, JobOutput errorOutput, OutputTimeline timeline) {
+        if (!this.output.compareAndSet(null, output)) {
+            return false;
+        }
+        this.errorOutput = errorOutput;
+        this.timeline = timeline;
+        return true;
+    }
+
+    /**
+    * Swaps the output for the same bytes held differently, like a CompressedOutput once the job is done
+    * Readers that already have the old output can keep using it.
+    */
+    void replaceOutput(JobOutput output, JobOutput errorOutput) {
+        this.output.set(output);
+        this.errorOutput = errorOutput;
+        Result finished = result.get();
+        if (finished != null) {
+            finished.replaceOutput(output, errorOutput);
+        }
+    }
+
+    /**
+    * Returns null if the job hasn't started yet
+    */
+    public JobOutput getOutput() {
+        return output.get();
+    }
+
+    /**
+    * Live stderr of the job, null if it isn't captured separately
+    */
+    public JobOutput getErrorOutput() {
+        return errorOutput;
+    }
+
+    /**
+    * When each chunk of output arrived, null unless output timestamps are enabled
+    */
+    public OutputTimeline getTimeline() {
+        return timeline;
+    }
+
+    /**
+    * CPU, memory and I/O used by the job's processes, filled in while it runs if the JobManager samples usage
+    */
+    public JobUsage getUsage() {
+        return usage;
+    }
+
+    /**
+    * Why the job ended up in ERROR, if known
+    */
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+    * Completes with this job once it's done and whoever ran it is finished with it: after the output has been
+    * read for FINISHED jobs, once the process has exited for STOPPED jobs, and right away for ERROR.
+    * Each call returns a new dependent future, so callers can't complete or cancel it for everyone else.
+    */
+    public CompletableFuture<Job> getCompletion() {
+        return completion.copy();
+    }
+
+    /**
+    * Called by Workers and the JobManager whenever they're done with the job. Does nothing unless the job is
+    * in a final status, so it's safe to call from several places.
+    */
+    void complete() {
+        if (isDone()) {
+            completion.complete(this);
+        }
     }
 }
@@ -0,0 +1,82 @@
+package com.teleport.workers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Job Ids class
+ * Generates job ids that are unique across restarts, unlike pids which get reused.
+ *
+ * Ids are the seconds since EPOCH_MILLIS shifted left by SEQUENCE_BITS, plus a sequence number for ids
+ * generated within the same second. If more than 2^SEQUENCE_BITS ids are needed in one second the generator
+ * borrows from the next one, so ids always increase.
+ *
+ * Ids are written as plain JSON numbers, so they're kept within 53 bits (MAX_ID) where JavaScript clients can
+ * still hold them exactly. That leaves 31 bits of seconds, which last until 2089.
+ *
+ * When several JobManagers run behind a ShardRouter, the lowest shardBits bits of every id hold the shard of the
+ * manager that generated it, so any id can be routed to its owner without a lookup. Shard bits come out of the
+ * sequence, so each shard can hand out 2^(SEQUENCE_BITS - shardBits) ids per second before borrowing.
+ */
+public class JobIds {
+
+    final static long EPOCH_MILLIS = 1609459200000L; // 2021-01-01T00:00:00Z
+    final static int SEQUENCE_BITS = 22;
+    final static long MAX_ID = (1L << 53) - 1;
+    final static int MAX_SHARD_BITS = 10;
+
+    private final AtomicLong lastId;
+    private final int shard;
+    private final long step;
+
+    public JobIds() {
+        this(0, 0);
+    }
+
+    /**
+     * Ids ending in shard, which has to fit in shardBits bits
+     */
+    public JobIds(int shard, int shardBits) {
+        if (shardBits < 0 || shardBits > MAX_SHARD_BITS || shard < 0 || shard >= 1 << shardBits) {
+            throw new IllegalArgumentException("Invalid shard " + shard + " of " + shardBits + " bits");
+        }
+        this.lastId = new AtomicLong();
+        this.shard = shard;
+        this.step = 1L << shardBits;
+    }
+
+    public long next() {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - EPOCH_MILLIS);
+        long base = (seconds << SEQUENCE_BITS) | shard;
+        while (true) {
+            long last = lastId.get();
+            long id = Math.max(last + step, base);
+            if (lastId.compareAndSet(last, id)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Makes sure later ids are greater than one handed out before, e.g. by a previous run
+     */
+    public void advancePast(long id) {
+        // Rounded up to an id of this shard, so stepping from it keeps the shard bits
+        long aligned = (id & -step) | shard;
+        lastId.accumulateAndGet(aligned < id ? aligned + step : aligned, Math::max);
+    }
+
+    /**
+     * Shard that generated the id, for ids from managers using shardBits bits
+     */
+    public static int shardOf(long id, int shardBits) {
+        return (int) (id & ((1L << shardBits) - 1));
+    }
+
+    /**
+     * Milliseconds since the Unix epoch at which the id was generated, to the second
+     */
+    public static long timestampOf(long id) {
+        return TimeUnit.SECONDS.toMillis(id >>> SEQUENCE_BITS) + EPOCH_MILLIS;
+    }
+}
@@ -0,0 +1,589 @@
+package com.teleport.workers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Job Journal class
+ * Append-only log of job submissions, status changes, results and evictions, so a JobManager can rebuild its jobs
+ * after a restart.
+ *
+ * Callers only queue small events. A single writer thread encodes them, appends them to the journal file and
+ * forces the file once per batch (group commit), so a burst of events costs one fsync rather than one each.
+ * Events are durable once the batch they're in has been forced, sync() waits for that. If a write or force fails
+ * the file may end in a torn record, so the writer stops appending altogether: sync() and close() report the
+ * failure instead of claiming durability, and recovery later truncates the torn record away.
+ *
+ * Every record is framed with its length and a CRC32. On startup recover() scans the file through a memory
+ * mapped window and stops at the first torn or corrupt record, truncating it away. Once the file has grown past
+ * compactBytes (and twice its size after the last compaction) the writer rewrites it with only the jobs the
+ * manager still knows about, so recovery time is bounded by what's retained rather than by uptime.
+ *
+ * Results keep at most maxOutputBytes of heap output, the end of it for TAIL retention and the start for HEAD, so
+ * a job with a big log doesn't cost that much journal I/O, once when it finishes and again on every compaction.
+ * Spooled output is only referred to by its path.
+ *
+ * Records are applied in a way that doesn't depend on their order, since events for one job can be queued from
+ * different threads: a result always wins over a plain status, and a submission only fills in the command.
+ */
+public class JobJournal {
+
+    private final static Logger LOGGER = Logger.getLogger(JobJournal.class.getName());
+    private final static String JOURNAL_FILE = "journal.log";
+    private final static String COMPACT_FILE = "journal.compact";
+    private final static int HEADER_BYTES = 8;
+    private final static long MAP_WINDOW_BYTES = 256L * 1024 * 1024;
+    private final static int MAX_BATCH = 4096;
+
+    private final static byte SUBMIT = 1;
+    private final static byte STATUS = 2;
+    private final static byte RESULT = 3;
+    private final static byte EVICT = 4;
+    private final static byte SYNC = 5;
+    private final static byte CLOSE = 6;
+    // Submission with tenant and priority, plain SUBMIT records of older journals are still read
+    private final static byte SUBMIT_TENANT = 7;
+
+    private final static int FLAG_RESULT = 1;
+    private final static int FLAG_TRUNCATED = 2;
+    private final static int FLAG_SPOOLED = 4;
+    private final static int FLAG_OUTPUT = 8;
+
+    private final Path file;
+    private final Path compactFile;
+    private final long compactBytes;
+    private final long maxOutputBytes;
+    private final OutputBuffer.Retain retain;
+    private final BlockingQueue<Event> events;
+    private final RecordBuffer record;
+    private final CRC32 crc;
+    private FileChannel channel;
+    private Map<Long, Job> live;
+    private long compactedSize;
+    private Thread writer;
+    private volatile boolean closing;
+    // Set by the writer once a write failed, nothing is appended after it
+    private IOException failure;
+
+    private static class Event {
+        private final byte type;
+        private final long id;
+        private final long time;
+        private final Job job;
+        private final Job.JobStatus status;
+        private final CompletableFuture<Void> done;
+
+        Event(byte type, long id, Job job, Job.JobStatus status, CompletableFuture<Void> done) {
+            this(type, id, System.currentTimeMillis(), job, status, done);
+        }
+
+        Event(byte type, long id, long time, Job job, Job.JobStatus status, CompletableFuture<Void> done) {
+            this.type = type;
+            this.id = id;
+            this.time = time;
+            this.job = job;
+            this.status = status;
+            this.done = done;
+        }
+    }
+
+    /**
+     * Byte array stream that exposes its array, so records are checksummed and written without another copy
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    /**
+     * A job as rebuilt from the journal
+     */
+    static class Recovered {
+        private String command;
+        private String tenant = Job.DEFAULT_TENANT;
+        private int priority;
+        private final long[] statusTimes = new long[Job.JobStatus.values().length];
+        private Job.JobStatus status = Job.JobStatus.QUEUED;
+        private boolean done;
+        private boolean hasResult;
+        private long finishedAt;
+        private String error;
+        private boolean truncated;
+        private long totalBytes;
+        private String spoolPath;
+        private byte[] output;
+
+        String getCommand() {
+            return command;
+        }
+
+        String getTenant() {
+            return tenant;
+        }
+
+        int getPriority() {
+            return priority;
+        }
+
+        /**
+         * When the job first entered a status according to the journal, 0 if there's no record of it
+         */
+        long getStatusTime(Job.JobStatus status) {
+            return statusTimes[status.ordinal()];
+        }
+
+        Job.JobStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * False if the job was still queued or running when the journal ended
+         */
+        boolean isDone() {
+            return done;
+        }
+
+        boolean hasResult() {
+            return hasResult;
+        }
+
+        long getFinishedAt() {
+            return finishedAt;
+        }
+
+        String getError() {
+            return error;
+        }
+
+        boolean isTruncated() {
+            return truncated;
+        }
+
+        long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * Path of the spool file holding the output, or null if the output was kept in the journal
+         */
+        String getSpoolPath() {
+            return spoolPath;
+        }
+
+        byte[] getOutput() {
+            return output;
+        }
+    }
+
+    public JobJournal(Path directory, long compactBytes, long maxOutputBytes, OutputBuffer.Retain retain)
+        throws IOException {
+
+        Files.createDirectories(directory);
+        this.file = directory.resolve(JOURNAL_FILE);
+        this.compactFile = directory.resolve(COMPACT_FILE);
+        this.compactBytes = compactBytes;
+        this.maxOutputBytes = maxOutputBytes;
+        this.retain = retain;
+        this.events = new LinkedBlockingQueue<>();
+        this.record = new RecordBuffer();
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Reads back every job in the journal, in submission order. Evicted jobs are left out.
+     * Must be called before start().
+     */
+    Map<Long, Recovered> recover() throws IOException {
+        Map<Long, Recovered> recovered = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return recovered;
+        }
+
+        try (FileChannel readChannel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = readChannel.size();
+            long position = 0;
+            long windowStart = 0;
+            MappedByteBuffer window = null;
+            while (position + HEADER_BYTES <= size) {
+                if (window == null || position + HEADER_BYTES > windowStart + window.capacity()) {
+                    windowStart = position;
+                    window = readChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, MAP_WINDOW_BYTES));
+                }
+                int length = window.getInt((int) (position - windowStart));
+                int checksum = window.getInt((int) (position - windowStart) + 4);
+                long end = position + HEADER_BYTES + length;
+                if (length <= 0 || end > size) {
+                    break;
+                }
+                if (end > windowStart + window.capacity()) {
+                    // Record runs past the window, map one starting at it that's big enough
+                    windowStart = position;
+                    window = readChannel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, Math.max(MAP_WINDOW_BYTES, HEADER_BYTES + length)));
+                }
+
+                ByteBuffer body = window.duplicate();
+                body.position((int) (position - windowStart) + HEADER_BYTES);
+                body.limit(body.position() + length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(recovered, body);
+                position = end;
+            }
+
+            if (position < size) {
+                LOGGER.warning(String.format("Dropping %d bytes of torn or corrupt journal records from %s",
+                    size - position, file));
+                readChannel.truncate(position);
+            }
+        }
+        return recovered;
+    }
+
+    private void apply(Map<Long, Recovered> recovered, ByteBuffer body) {
+        byte type = body.get();
+        long id = body.getLong();
+        long time = body.getLong();
+        if (type == EVICT) {
+            recovered.remove(id);
+            return;
+        }
+
+        Recovered job = recovered.computeIfAbsent(id, key -> new Recovered());
+        Job.JobStatus status = Job.JobStatus.values()[body.get()];
+        if (job.statusTimes[status.ordinal()] == 0 || job.statusTimes[status.ordinal()] > time) {
+            job.statusTimes[status.ordinal()] = time;
+        }
+        if (type == SUBMIT || type == SUBMIT_TENANT) {
+            job.command = readString(body);
+            if (type == SUBMIT_TENANT) {
+                job.tenant = readString(body);
+                job.priority = body.getInt();
+            }
+            if (!job.done) {
+                job.status = status;
+            }
+        } else if (type == STATUS) {
+            if (!job.done) {
+                job.status = status;
+            }
+        } else if (type == RESULT) {
+            int flags = body.get();
+            job.status = status;
+            job.done = true;
+            job.finishedAt = time;
+            job.hasResult = (flags & FLAG_RESULT) != 0;
+            job.truncated = (flags & FLAG_TRUNCATED) != 0;
+            job.error = readString(body);
+            job.totalBytes = body.getLong();
+            if ((flags & FLAG_SPOOLED) != 0) {
+                job.spoolPath = readString(body);
+            } else if ((flags & FLAG_OUTPUT) != 0) {
+                job.output = new byte[body.getInt()];
+                body.get(job.output);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Opens the journal for appending and starts the writer thread. The journal is compacted down to the jobs in
+     * live first, which is also how jobs recovered as interrupted get their final status written.
+     */
+    void start(Map<Long, Job> live) throws IOException {
+        this.live = live;
+        compact();
+        writer = new Thread(this::writeLoop, "job-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void submitted(long id, Job job) {
+        events.add(new Event(SUBMIT_TENANT, id, job, job.getStatus(), null));
+    }
+
+    public void statusChanged(long id, Job job) {
+        events.add(new Event(STATUS, id, job, job.getStatus(), null));
+    }
+
+    /**
+     * Records a job's final status and output. Heap output is copied into the journal, spooled output is
+     * referred to by its file.
+     */
+    public void finished(long id, Job job) {
+        events.add(new Event(RESULT, id, job, job.getStatus(), null));
+    }
+
+    public void evicted(long id) {
+        events.add(new Event(EVICT, id, null, null, null));
+    }
+
+    /**
+     * Waits until every event queued so far has been written and forced to disk. Throws UncheckedIOException if
+     * they couldn't be, and IllegalStateException once the journal is closing.
+     */
+    public void sync() {
+        if (closing) {
+            throw new IllegalStateException("Job journal is closed");
+        }
+        Event event = new Event(SYNC, 0, null, null, new CompletableFuture<>());
+        events.add(event);
+        // The writer marks the journal closing before its last drain, so the event is either drained or still here
+        if (closing && events.remove(event)) {
+            throw new IllegalStateException("Job journal is closed");
+        }
+        await(event.done);
+    }
+
+    /**
+     * Writes out whatever is queued and stops the writer. Throws UncheckedIOException if that failed.
+     */
+    public synchronized void close() {
+        if (writer == null || closing) {
+            return;
+        }
+        closing = true;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        events.add(new Event(CLOSE, 0, null, null, done));
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        await(done);
+    }
+
+    private static void await(CompletableFuture<Void> done) {
+        try {
+            done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    private void writeLoop() {
+        List<Event> batch = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                batch.add(events.take());
+            } catch (InterruptedException e) {
+                LOGGER.warning(String.format("Journal writer interrupted: %s", e.getMessage()));
+                stopping = true;
+            }
+            events.drainTo(batch, MAX_BATCH);
+
+            for (Event event : batch) {
+                stopping |= event.type == CLOSE;
+            }
+            if (failure == null) {
+                try {
+                    for (Event event : batch) {
+                        if (event.type != CLOSE && event.type != SYNC) {
+                            append(event);
+                        }
+                    }
+                    channel.force(false);
+                    if (!stopping && channel.size() > Math.max(compactBytes, 2 * compactedSize)) {
+                        compact();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    LOGGER.severe(String.format("Could not write job journal %s, no longer journaling: %s", file,
+                        e.getMessage()));
+                }
+            }
+            complete(batch);
+            batch.clear();
+        }
+
+        // Anything queued after the close is failed rather than left waiting
+        closing = true;
+        events.drainTo(batch);
+        failure = failure != null ? failure : new IOException("Job journal is closed");
+        complete(batch);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warning(String.format("Could not close job journal %s: %s", file, e.getMessage()));
+        }
+    }
+
+    /**
+     * Completes the events waiting on a batch, exceptionally once a write has failed
+     */
+    private void complete(List<Event> batch) {
+        for (Event event : batch) {
+            if (event.done == null) {
+                continue;
+            }
+            if (failure == null) {
+                event.done.complete(null);
+            } else {
+                event.done.completeExceptionally(failure);
+            }
+        }
+    }
+
+    /**
+     * Writes a fresh journal holding only the live jobs next to the current one, then swaps it in
+     */
+    private void compact() throws IOException {
+        try (FileChannel compacted = FileChannel.open(compactFile, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Map.Entry<Long, Job> entry : live.entrySet()) {
+                Job job = entry.getValue();
+                // Records keep the time the job entered its status, not the time of the compaction
+                long time = job.getStatusTime(job.getStatus());
+                time = time > 0 ? time : System.currentTimeMillis();
+                append(compacted, new Event(SUBMIT_TENANT, entry.getKey(), time, job, job.getStatus(), null));
+                if (job.isDone()) {
+                    append(compacted, new Event(RESULT, entry.getKey(), time, job, job.getStatus(), null));
+                }
+            }
+            compacted.force(false);
+        }
+
+        // The old journal stays usable until the compacted one has replaced it
+        Files.move(compactFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+        compactedSize = channel.size();
+    }
+
+    private void append(Event event) throws IOException {
+        append(channel, event);
+    }
+
+    private void append(FileChannel target, Event event) throws IOException {
+        record.reset();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(event.type);
+        out.writeLong(event.id);
+        out.writeLong(event.time);
+        if (event.type != EVICT) {
+            out.writeByte(event.status.ordinal());
+        }
+        if (event.type == SUBMIT_TENANT) {
+            writeString(out, event.job.getCommandString());
+            writeString(out, event.job.getTenant());
+            out.writeInt(event.job.getPriority());
+        } else if (event.type == RESULT) {
+            writeResult(out, event.job);
+        }
+        out.flush();
+
+        ByteBuffer body = record.toByteBuffer();
+        crc.reset();
+        crc.update(body.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(body.remaining()).putInt((int) crc.getValue()).flip();
+        ByteBuffer[] buffers = {header, body};
+        while (body.hasRemaining()) {
+            target.write(buffers);
+        }
+    }
+
+    private void writeResult(DataOutputStream out, Job job) throws IOException {
+        Result result = job.getResult();
+        JobOutput output = job.getOutput();
+        byte[] bytes = output == null || output.isSpooled() ? null : journaledOutput(output);
+        int flags = 0;
+        if (result != null) {
+            flags |= FLAG_RESULT;
+        }
+        if (output != null) {
+            flags |= output.isSpooled() ? FLAG_SPOOLED : FLAG_OUTPUT;
+            if (output.isTruncated() || (bytes != null && bytes.length < output.size())) {
+                flags |= FLAG_TRUNCATED;
+            }
+        }
+        out.writeByte(flags);
+        writeString(out, job.getError());
+        out.writeLong(output == null ? 0 : output.getTotalBytes());
+        if (output == null) {
+            return;
+        }
+        if (output.isSpooled()) {
+            writeString(out, ((SpoolFile) output).getPath().toAbsolutePath().toString());
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * The part of a job's heap output that's journaled, at most maxOutputBytes
+     */
+    private byte[] journaledOutput(JobOutput output) throws IOException {
+        // Output of a stopped job can still be draining, so it's copied out rather than written in place
+        long total = output.getTotalBytes();
+        long held = Math.min(output.size(), total);
+        if (held <= maxOutputBytes) {
+            return output.toByteArray();
+        }
+        int length = (int) maxOutputBytes;
+        long offset = retain == OutputBuffer.Retain.TAIL ? total - length : 0;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+        while (bytes.size() < length) {
+            JobOutput.Slice slice = output.read(offset, length - bytes.size());
+            if (slice.getBytes().length == 0) {
+                break;
+            }
+            bytes.write(slice.getBytes());
+            offset = slice.getNextOffset();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -1,61 +1,846 @@
 package com.teleport.workers;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
 
 /**
  * Job Manager class
  * Responsible for creating the Worker needed to run each Job. Each Job is associated with one worker.
  * Used by API server to start Jobs, get Job results/status, and stop running processes
  *
- * NOTE: This implementation is dependent on the pids being unique, which isn't the case. For a small number of processes,
- * it should be fine, but ideally for a larger system, there needs to be another form of ID to uniquely identify jobs.
- * In the current implementation an old job's result will eventually get replaced as the pids get reused. Since there's a low limit
- * on pid values, the worker map will not have deletions and will eventually just auto replace itself as pids get reused.
+ * Admission control: at most maxRunningJobs processes run at once. Jobs added beyond that wait in a bounded
+ * FIFO queue with status QUEUED and are started as running processes exit. Once the queue is full, new jobs
+ * are rejected so a burst of requests can't fork-bomb the host.
+ *
+ * Processes for jobs added with addJobAsync, and for queued jobs, are started on a pool of launcher threads so
+ * fork/exec of many jobs runs in parallel and never blocks request threads. With a ForkServer configured the
+ * processes are forked by a small helper process instead of the JVM, started once per manager.
+ *
+ * Jobs are identified by a generated id (see JobIds) rather than their pid, since pids get reused and
+ * queued jobs don't have one yet. Workers are only kept while their process is alive. Finished jobs are kept
+ * for queries until JobRetention evicts them, checked whenever a job finishes and periodically on a timer.
+ * Managers running as shards behind a ShardRouter put their shard id in the low bits of every job id.
+ *
+ * With a JobJournal configured, submissions, status changes, results and evictions are journaled and the jobs are
+ * rebuilt from the journal on startup. Jobs that were still queued or running at the time come back as ERROR.
+ *
+ * Running jobs' CPU time, memory and I/O are sampled from /proc on the manager's timer (see ResourceSampler),
+ * and jobs going over the configured CPU, memory or wall-clock limits are stopped.
+ *
+ * Each manager owns a Metrics registry with its workers' job series and gauges for its own state.
  */
 public class JobManager {
+    private final static Logger LOGGER = Logger.getLogger(JobManager.class.getName());
+    private final static long SWEEP_INTERVAL_MILLIS = 60 * 1000;
+
     private ConcurrentMap<Long, Job> jobs;
     private ConcurrentMap<Long, Worker> workers;
+    private JobManagerConfig config;
+    private PumpExecutor pumps;
+    private JobIds ids;
+    private JobRetention retention;
+    private ScheduledExecutorService timer;
+    private SpoolDirectory spool;
+    private JobJournal journal;
+    private ForkServer forkServer;
+    private ProcessKiller killer;
+    private ExecutorService launcher;
+    private ExecutorService compressor;
+    private DecodedCache decodedCache;
+    private ResultCache resultCache;
+    private final EventDispatcher events;
+    private final Metrics metrics;
+    private final JobMetrics jobMetrics;
+    private final Metrics.Counter rejected;
+    private final Metrics.Counter limitStops;
+    private final Metrics.Histogram sampleDuration;
+    private final Metrics.Counter compressedResults;
+    private final Metrics.Counter compressionSaved;
+    private final Metrics.Histogram compressDuration;
+    private ResourceSampler sampler;
+
+    // Admission state, guarded by admissionLock
+    private final Object admissionLock = new Object();
+    private final FairQueue pending;
+    private final int maxRunningJobs;
+    private final int maxQueuedJobs;
+    private int running;
+
+    public JobManager() {
+        this(new JobManagerConfig());
+    }
 
     /**
-    * Each Job Manager has mappings for workers and jobs
+    * Each Job Manager has mappings for workers and jobs, and owns the executor
+    * that all of its workers use to pump process output
     */
-    public JobManager() {
+    public JobManager(JobManagerConfig config) {
         jobs = new ConcurrentHashMap<>();
         workers = new ConcurrentHashMap<>();
+        this.config = config;
+        pumps = PumpExecutor.create(config.useVirtualPumps(), config.getMaxPumpThreads());
+        metrics = new Metrics();
+        jobMetrics = new JobMetrics(metrics);
+        rejected = metrics.counter("worker_jobs_rejected_total", "Jobs rejected because the queue was full");
+        limitStops = metrics.counter("worker_limit_stops_total", "Jobs stopped for going over a CPU, memory or time limit");
+        sampleDuration = metrics.histogram("worker_usage_sample_seconds", "Time taken to sample usage of all running jobs");
+        compressedResults = metrics.counter("worker_results_compressed_total", "Finished outputs compressed");
+        compressionSaved = metrics.counter("worker_compression_saved_bytes_total", "Heap bytes freed by compressing outputs");
+        compressDuration = metrics.histogram("worker_compress_seconds", "Time taken to compress a finished job's output");
+        AtomicInteger launcherCount = new AtomicInteger();
+        launcher = Executors.newFixedThreadPool(config.getLauncherThreads(), runnable -> {
+            Thread thread = new Thread(runnable, "job-launcher-" + launcherCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.isCompressResults()) {
+            compressor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "output-compressor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            decodedCache = new DecodedCache(config.getDecodedCacheBytes(), metrics);
+        }
+        if (config.getResultCacheEntries() > 0) {
+            resultCache = new ResultCache(config.getResultCacheEntries(), config.getResultCacheMaxAgeMillis(),
+                id -> jobs.get(id), metrics);
+        }
+        events = new EventDispatcher(config.getEventQueueSize(), config.getEventBufferSize(),
+            config.getEventHeartbeatMillis(), id -> jobs.get(id), metrics);
+        pending = new FairQueue(config.getTenantWeights());
+        maxRunningJobs = config.getMaxRunningJobs();
+        maxQueuedJobs = config.getMaxQueuedJobs();
+        ids = new JobIds(config.getShardId(), config.getShardBits());
+        retention = new JobRetention(config.getRetentionTtlMillis(), config.getMaxRetainedJobs(),
+            config.getMaxRetainedBytes(), config.getMaxSpoolBytes());
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "job-manager-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        killer = new ProcessKiller(timer);
+        if (config.getUsageIntervalMillis() > 0) {
+            ResourceSampler procSampler = new ResourceSampler(Paths.get("/proc"));
+            if (procSampler.isSupported()) {
+                sampler = procSampler;
+            } else {
+                LOGGER.info("No /proc to read, job usage won't be sampled");
+            }
+            timer.scheduleWithFixedDelay(this::sampleUsage, config.getUsageIntervalMillis(),
+                config.getUsageIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+        long sweepMillis = Math.max(1, Math.min(config.getRetentionTtlMillis(), SWEEP_INTERVAL_MILLIS));
+        timer.scheduleWithFixedDelay(this::expireJobs, sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
+        Map<Long, JobJournal.Recovered> recovered = Collections.emptyMap();
+        if (config.isJournal()) {
+            try {
+                journal = new JobJournal(Paths.get(config.getJournalDirectory()), config.getJournalCompactBytes(),
+                    config.getJournalOutputBytes(), config.getOutputRetention());
+                recovered = journal.recover();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read job journal", e);
+            }
+        }
+        if (config.isSpoolOutput() || config.isForkServer()) {
+            try {
+                spool = new SpoolDirectory(Paths.get(config.getSpoolDirectory()), spoolPathsOf(recovered), timer);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not create spool directory", e);
+            }
+        }
+        if (config.isForkServer()) {
+            forkServer = new ForkServer();
+        }
+        if (journal != null) {
+            restore(recovered);
+            try {
+                journal.start(jobs);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open job journal", e);
+            }
+        }
+        registerGauges();
+    }
+
+    private static Set<Path> spoolPathsOf(Map<Long, JobJournal.Recovered> recovered) {
+        Set<Path> paths = new HashSet<>();
+        for (JobJournal.Recovered record : recovered.values()) {
+            if (record.getSpoolPath() != null) {
+                paths.add(Paths.get(record.getSpoolPath()));
+            }
+        }
+        return paths;
+    }
+
+    /**
+    * Brings back the jobs read from the journal. Jobs that were still queued or running have lost their process,
+    * so they come back as ERROR, and the journal compaction in JobJournal.start records that.
+    * Command, tenant, priority, status, error and stdout (up to journalOutputBytes) are restored, with the times
+    * the journal has for each status. Separately captured stderr, output timestamps and usage aren't journaled
+    * and are lost.
+    */
+    private void restore(Map<Long, JobJournal.Recovered> recovered) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Long, JobJournal.Recovered> entry : recovered.entrySet()) {
+            long id = entry.getKey();
+            JobJournal.Recovered record = entry.getValue();
+            ids.advancePast(id);
+            if (record.getCommand() == null) {
+                // Only the result made it to disk
+                continue;
+            }
+
+            Job job = new Job(record.getCommand(), record.getTenant(), record.getPriority());
+            JobOutput output = restoreOutput(record);
+            if (output != null) {
+                job.attachOutput(output);
+            }
+            if (!record.isDone()) {
+                job.setError("interrupted by restart");
+                job.setStatus(Job.JobStatus.ERROR);
+            } else {
+                job.setError(record.getError());
+                if (record.getStatus() != Job.JobStatus.ERROR) {
+                    job.setStatus(Job.JobStatus.RUNNING);
+                }
+                job.setStatus(record.getStatus());
+                if (record.hasResult() && output != null) {
+                    job.setResult(new Result(output));
+                }
+            }
+            for (Job.JobStatus status : Job.JobStatus.values()) {
+                if (record.getStatusTime(status) > 0 && job.getStatusTime(status) > 0) {
+                    job.restoreStatusTime(status, record.getStatusTime(status));
+                }
+            }
+            job.complete();
+
+            jobs.put(id, job);
+            long bytes = output == null ? 0 : output.size();
+            boolean spooled = output != null && output.isSpooled();
+            evict(retention.add(id, bytes, spooled, record.isDone() ? record.getFinishedAt() : now));
+            compressLater(id, job);
+        }
+    }
+
+    private JobOutput restoreOutput(JobJournal.Recovered record) {
+        if (record.getSpoolPath() != null) {
+            Path path = Paths.get(record.getSpoolPath());
+            if (!Files.exists(path)) {
+                return null;
+            }
+            SpoolFile spoolFile = new SpoolFile(path);
+            spoolFile.close();
+            return spoolFile;
+        }
+        if (record.getOutput() != null) {
+            return OutputBuffer.restore(record.getOutput(), record.getTotalBytes(), config.getOutputRetention());
+        }
+        return null;
+    }
+
+    private void registerGauges() {
+        metrics.gauge("worker_jobs_running", "Jobs holding a running slot", this::getRunningCount);
+        metrics.gauge("worker_jobs_queued", "Jobs waiting for a running slot", this::getQueuedCount);
+        metrics.gauge("worker_tenants_queued", "Tenants with jobs waiting for a running slot",
+            this::getQueuedTenantCount);
+        metrics.gauge("worker_jobs_finished", "Finished jobs retained for queries", this::getRetainedCount);
+        metrics.gauge("worker_retained_bytes", "Output bytes held by retained jobs", this::getRetainedBytes);
+        metrics.gauge("worker_spooled_bytes", "Spool file bytes held by retained jobs", this::getSpooledBytes);
+        metrics.gauge("worker_pumps_active", "Output pumps currently live", this::getActivePumps);
+        metrics.gauge("worker_pipes_polled", "Stderr pipes polled by the shared poller", pumps::getPolledPipes);
+        if (resultCache != null) {
+            metrics.gauge("worker_result_cache_entries", "Commands with a cached result or one in flight",
+                resultCache::size);
+        }
+        if (decodedCache != null) {
+            metrics.gauge("worker_decoded_cache_bytes", "Decompressed output cached for reads", decodedCache::getBytes);
+        }
     }
 
     /**
-    * Adding a job should return a corresponding PID that can be used for
+    * Adding a job should return a corresponding id that can be used for
     * later queries or for stopping the worker process.
     *
-    * NOTE: Context switches between threads could cause issues if the pids are the same.
+    * The process is started on the calling thread if a slot is free, otherwise the job is queued and started
+    * later. Returns -1 if the job was started immediately but the process couldn't be created.
+    * Throws RejectedExecutionException if the job can't be started or queued.
+    */
+    public long addJob(Job job) throws RejectedExecutionException {
+        long id = ids.next();
+        if (admit(id, job)) {
+            if (!startWorker(id, job)) {
+                jobs.remove(id);
+                if (journal != null) {
+                    // Its submission is already journaled, it mustn't come back as interrupted
+                    journal.evicted(id);
+                }
+                releaseSlot();
+                return -1;
+            }
+        }
+        return id;
+    }
+
+    /**
+    * Like addJob, but returns as soon as the job has an id. Jobs that get a slot go to LAUNCHING and their
+    * process is started on the launcher pool, so callers never wait on fork/exec and launches run in parallel.
+    * If the process can't be created the job ends up in ERROR.
+    * Throws RejectedExecutionException if the job can't be started or queued.
+    */
+    public long addJobAsync(Job job) throws RejectedExecutionException {
+        long id = ids.next();
+        if (admit(id, job)) {
+            job.setStatus(Job.JobStatus.LAUNCHING);
+            scheduleLaunch(id, job);
+        }
+        return id;
+    }
+
+    /**
+    * Like addJobAsync, for commands whose output only depends on the command line. If an identical command
+    * finished at most maxAgeMillis ago, or is still queued or running, its id is returned and nothing is started.
+    * Same as addJobAsync when the result cache is disabled.
+    * Throws RejectedExecutionException if the job had to be started and can't be queued.
+    */
+    public long addCacheableJob(Job job, long maxAgeMillis) throws RejectedExecutionException {
+        if (resultCache == null) {
+            return addJobAsync(job);
+        }
+        return resultCache.get(job, maxAgeMillis, System.currentTimeMillis(), this::addJobAsync);
+    }
+
+    /**
+    * Registers a job and takes a running slot for it if one is free, returning true if it should start now.
+    * Otherwise the job is queued, or rejected if the queue is full.
     */
-    public synchronized long addJob(Job job) {
-        Worker worker = new Worker();
-        long pid = worker.execute(job);
-        if (pid == -1) {
-            return pid;
+    private boolean admit(long id, Job job) throws RejectedExecutionException {
+        synchronized (admissionLock) {
+            Admission admission = admitLocked(id, job);
+            if (admission == Admission.REJECTED) {
+                rejected.increment();
+                throw new RejectedExecutionException("Job queue is full");
+            }
+            return admission == Admission.START;
         }
+    }
 
-        jobs.put(pid, job);
-        workers.put(pid, worker);
-        return pid;
+    private enum Admission {
+        START,
+        QUEUED,
+        REJECTED
+    }
+
+    /**
+    * Rejected jobs are left untouched, so nothing is published about a job the caller was told didn't start
+    */
+    private Admission admitLocked(long id, Job job) {
+        boolean start = running < maxRunningJobs;
+        if (!start && pending.size() >= maxQueuedJobs) {
+            return Admission.REJECTED;
+        }
+        job.setStatusListener((changed, status, time) -> statusChanged(id, changed, status, time));
+        if (start) {
+            running++;
+            jobs.put(id, job);
+            journalSubmitted(id, job);
+            return Admission.START;
+        }
+        job.setStatus(Job.JobStatus.QUEUED);
+        jobs.put(id, job);
+        journalSubmitted(id, job);
+        pending.add(id, job.getTenant(), job.getPriority());
+        return Admission.QUEUED;
+    }
+
+    /**
+    * Publishes the change to event subscribers, and has running jobs' output progress published too
+    */
+    private void statusChanged(long id, Job job, Job.JobStatus status, long time) {
+        events.statusChanged(id, job, status, time);
+        if (status == Job.JobStatus.RUNNING) {
+            events.watchOutput(id, job);
+        }
+    }
+
+    /**
+    * Journaled while the job is admitted, so its submission is queued before anything else about it
+    */
+    private void journalSubmitted(long id, Job job) {
+        if (journal != null) {
+            journal.submitted(id, job);
+        }
+    }
+
+    /**
+    * Adds a batch of jobs like addJobAsync, taking the admission lock once for the whole batch.
+    * Returns the ids in the same order, with -1 for jobs rejected because the queue was full.
+    */
+    public long[] addJobsAsync(List<Job> batch) {
+        long[] batchIds = new long[batch.size()];
+        boolean[] start = new boolean[batch.size()];
+        synchronized (admissionLock) {
+            for (int i = 0; i < batch.size(); ++i) {
+                long id = ids.next();
+                Admission admission = admitLocked(id, batch.get(i));
+                if (admission == Admission.REJECTED) {
+                    rejected.increment();
+                }
+                batchIds[i] = admission == Admission.REJECTED ? -1 : id;
+                start[i] = admission == Admission.START;
+            }
+        }
+
+        for (int i = 0; i < batch.size(); ++i) {
+            if (start[i]) {
+                batch.get(i).setStatus(Job.JobStatus.LAUNCHING);
+                scheduleLaunch(batchIds[i], batch.get(i));
+            }
+        }
+        return batchIds;
+    }
+
+    private void scheduleLaunch(long id, Job job) {
+        try {
+            launcher.execute(() -> launch(id, job));
+        } catch (RejectedExecutionException e) {
+            job.setError("job manager is shutting down");
+            job.setStatus(Job.JobStatus.ERROR);
+            retain(id, job);
+            releaseSlot();
+        }
+    }
+
+    /**
+    * Runs on the launcher pool for a LAUNCHING job holding a slot. Jobs stopped before their turn never start.
+    */
+    private void launch(long id, Job job) {
+        if (job.getStatus() == Job.JobStatus.LAUNCHING && startWorker(id, job)) {
+            return;
+        }
+        retain(id, job);
+        releaseSlot();
+    }
+
+    /**
+    * Creates the worker for a job that holds a running slot. The slot is handed back once the process exits.
+    */
+    private boolean startWorker(long id, Job job) {
+        Worker worker = new Worker(pumps, spool, forkServer, jobMetrics, config);
+        if (worker.execute(job) == -1) {
+            return false;
+        }
+
+        workers.put(id, worker);
+        if (journal != null) {
+            journal.statusChanged(id, job);
+        }
+        worker.onExit().whenComplete((exited, e) -> {
+            // Nothing left to stop, the worker's pump may still be draining output
+            workers.remove(id);
+            releaseSlot();
+        });
+        worker.getCompletion().thenAccept(finished -> retain(id, finished));
+        return true;
+    }
+
+    /**
+    * Hands a finished job over to retention, evicting whatever no longer fits
+    * Every job that was added ends up here, so this is also where jobs that never got a worker complete.
+    */
+    private void retain(long id, Job job) {
+        job.complete();
+        JobOutput output = job.getOutput();
+        JobOutput errorOutput = job.getErrorOutput();
+        long bytes = (output == null ? 0 : output.size()) + (errorOutput == null ? 0 : errorOutput.size());
+        boolean spooled = output != null && output.isSpooled();
+        if (journal != null) {
+            journal.finished(id, job);
+        }
+        evict(retention.add(id, bytes, spooled, System.currentTimeMillis()));
+        compressLater(id, job);
+    }
+
+    /**
+    * Has a finished job's heap output compressed on the compressor thread, off the request and pump paths.
+    * Output of a stopped job can still be draining, in which case it's compressed once it closes.
+    */
+    private void compressLater(long id, Job job) {
+        JobOutput output = job.getOutput();
+        if (compressor == null || output == null || output.isSpooled()) {
+            return;
+        }
+        if (output.isClosed()) {
+            submitCompression(id, job);
+            return;
+        }
+        AtomicBoolean submitted = new AtomicBoolean();
+        output.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (output.isClosed() && submitted.compareAndSet(false, true)) {
+                    output.removeListener(this);
+                    submitCompression(id, job);
+                }
+            }
+        });
+        // Closed while the listener was being added
+        if (output.isClosed() && submitted.compareAndSet(false, true)) {
+            submitCompression(id, job);
+        }
+    }
+
+    private void submitCompression(long id, Job job) {
+        try {
+            compressor.execute(() -> compress(id, job));
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the output just stays as it is
+        }
+    }
+
+    private void compress(long id, Job job) {
+        long start = System.nanoTime();
+        JobOutput output = job.getOutput();
+        JobOutput errorOutput = job.getErrorOutput();
+        try {
+            JobOutput compressed = compressOutput(output);
+            JobOutput compressedError = compressOutput(errorOutput);
+            if ((compressed == output && compressedError == errorOutput) || jobs.get(id) != job) {
+                return;
+            }
+            job.replaceOutput(compressed, compressedError);
+            long before = heapBytes(output) + heapBytes(errorOutput);
+            long after = heapBytes(compressed) + heapBytes(compressedError);
+            retention.resize(id, after);
+            compressedResults.increment();
+            compressionSaved.add(before - after);
+            compressDuration.recordSince(start);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warning(String.format("Could not compress output of job %d: %s", id, e.getMessage()));
+        }
+    }
+
+    /**
+    * Returns the output compressed, or unchanged if it's too small or didn't shrink enough to be worth decoding
+    */
+    private JobOutput compressOutput(JobOutput output) throws IOException {
+        if (output == null || output.isSpooled() || !output.isClosed() || output instanceof CompressedOutput
+            || output.size() < config.getCompressMinBytes()) {
+            return output;
+        }
+        CompressedOutput compressed = CompressedOutput.compress(output, decodedCache);
+        return compressed.getCompressedSize() < output.size() * 9 / 10 ? compressed : output;
+    }
+
+    private static long heapBytes(JobOutput output) {
+        if (output == null) {
+            return 0;
+        }
+        return output instanceof CompressedOutput ? ((CompressedOutput) output).getCompressedSize() : output.size();
+    }
+
+    /**
+    * Samples every running job in one pass, then stops the ones over a limit. Runs on the timer, so exceptions
+    * are caught to keep it scheduled.
+    */
+    private void sampleUsage() {
+        try {
+            long start = System.nanoTime();
+            if (sampler != null) {
+                Map<Job, Long> roots = new IdentityHashMap<>();
+                for (Worker worker : workers.values()) {
+                    if (worker.getPID() > 0) {
+                        roots.put(worker.getJob(), worker.getPID());
+                    }
+                }
+                sampler.sample(roots);
+                sampleDuration.recordSince(start);
+            }
+            long now = System.currentTimeMillis();
+            for (Map.Entry<Long, Worker> entry : workers.entrySet()) {
+                Job job = entry.getValue().getJob();
+                String exceeded = exceededLimit(job, now);
+                if (exceeded != null && job.getStatus() == Job.JobStatus.RUNNING) {
+                    job.setError(exceeded);
+                    limitStops.increment();
+                    stopJob(entry.getKey());
+                }
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warning(String.format("Exception while sampling job usage: %s", e.getMessage()));
+        }
+    }
+
+    private String exceededLimit(Job job, long now) {
+        JobUsage usage = job.getUsage();
+        if (config.getMaxCpuMillis() > 0 && usage.getCpuMillis() > config.getMaxCpuMillis()) {
+            return "cpu limit exceeded";
+        }
+        if (config.getMaxRssBytes() > 0 && usage.getPeakRssBytes() > config.getMaxRssBytes()) {
+            return "memory limit exceeded";
+        }
+        long runningSince = job.getStatusTime(Job.JobStatus.RUNNING);
+        if (config.getMaxWallMillis() > 0 && runningSince > 0 && now - runningSince > config.getMaxWallMillis()) {
+            return "wall clock limit exceeded";
+        }
+        return null;
+    }
+
+    private void expireJobs() {
+        long now = System.currentTimeMillis();
+        evict(retention.expire(now));
+        if (resultCache != null) {
+            resultCache.expire(now);
+        }
+    }
+
+    private void evict(List<Long> evicted) {
+        for (long id : evicted) {
+            Job job = jobs.remove(id);
+            if (job != null && job.getOutput() != null) {
+                job.getOutput().release();
+            }
+            if (job != null && job.getErrorOutput() != null) {
+                job.getErrorOutput().release();
+            }
+            if (journal != null) {
+                journal.evicted(id);
+            }
+        }
+    }
+
+    /**
+    * Hands a freed slot to the next queued job by tenant share and priority, or gives it back if nothing is waiting.
+    * The queued job is launched on the launcher pool, if that fails the slot comes back here for the next one.
+    */
+    private void releaseSlot() {
+        while (true) {
+            long id;
+            synchronized (admissionLock) {
+                id = pending.poll();
+                if (id == -1) {
+                    running--;
+                    return;
+                }
+            }
+
+            Job job = jobs.get(id);
+            if (job.compareAndSetStatus(Job.JobStatus.QUEUED, Job.JobStatus.LAUNCHING)) {
+                scheduleLaunch(id, job);
+                return;
+            }
+            // Stopped while we were taking it off the queue
+        }
     }
 
     /**
     * Returns the corresponding job. API server will be responsible for creating
     * the appropriate response and transforming the integer statuses to meaningful string statuses.
     */
-    public synchronized Job queryJob(long pid) {
-        return jobs.get(pid);
+    public Job queryJob(long id) {
+        Job job = jobs.get(id);
+        if (job != null && job.isDone()) {
+            retention.touch(id);
+        }
+        return job;
+    }
+
+    /**
+    * Stops a running job, or makes sure a queued or launching job never starts
+    */
+    public void stopJob(long id) {
+        stopJob(id, config.getStopGraceMillis());
     }
 
-    public void stopJob(long pid) {
-        Worker worker = workers.get(pid);
-        if (worker == null) {
+    /**
+    * Stops a job without waiting for its process. The process tree gets SIGTERM and is sent SIGKILL from the
+    * manager's timer if it's still alive after graceMillis.
+    */
+    public void stopJob(long id, long graceMillis) {
+        Worker worker = workers.get(id);
+        if (worker != null) {
+            worker.stopProcess(killer, graceMillis);
             return;
         }
-        worker.stopProcess();
+
+        Job job = jobs.get(id);
+        if (job == null) {
+            return;
+        }
+        if (job.compareAndSetStatus(Job.JobStatus.QUEUED, Job.JobStatus.STOPPED)) {
+            synchronized (admissionLock) {
+                pending.remove(id);
+            }
+            retain(id, job);
+        } else {
+            // The launcher sees the status and doesn't start it, or kills the process if it just started
+            job.compareAndSetStatus(Job.JobStatus.LAUNCHING, Job.JobStatus.STOPPED);
+        }
+    }
+
+    /**
+    * Looks up a batch of jobs, with null for ids that don't exist
+    */
+    public List<Job> queryJobs(long[] batchIds) {
+        List<Job> batch = new ArrayList<>(batchIds.length);
+        for (long id : batchIds) {
+            batch.add(queryJob(id));
+        }
+        return batch;
+    }
+
+    public void stopJobs(long[] batchIds) {
+        for (long id : batchIds) {
+            stopJob(id);
+        }
+    }
+
+    /**
+    * Stops every job currently in a status, e.g. all QUEUED jobs, and returns how many were stopped
+    */
+    public int stopJobs(Job.JobStatus status, long graceMillis) {
+        return stopMatching(job -> job.getStatus() == status, graceMillis);
+    }
+
+    /**
+    * Stops every job whose command starts with a prefix and returns how many were stopped
+    */
+    public int stopJobsByCommand(String prefix, long graceMillis) {
+        return stopMatching(job -> job.getCommandString().startsWith(prefix), graceMillis);
+    }
+
+    /**
+    * Stopping never waits on a process, so a bulk stop of many jobs is one pass over the jobs
+    */
+    private int stopMatching(Predicate<Job> matches, long graceMillis) {
+        int stopped = 0;
+        for (Map.Entry<Long, Job> entry : jobs.entrySet()) {
+            Job job = entry.getValue();
+            if (!job.isDone() && matches.test(job)) {
+                stopJob(entry.getKey(), graceMillis);
+                ++stopped;
+            }
+        }
+        return stopped;
+    }
+
+    /**
+    * Number of jobs known to the manager, whether queued, running or finished
+    */
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    public int getRetainedCount() {
+        return retention.size();
+    }
+
+    public long getRetainedBytes() {
+        return retention.getRetainedBytes();
+    }
+
+    public long getSpooledBytes() {
+        return retention.getSpooledBytes();
+    }
+
+    public int getRunningCount() {
+        synchronized (admissionLock) {
+            return running;
+        }
+    }
+
+    public int getQueuedCount() {
+        synchronized (admissionLock) {
+            return pending.size();
+        }
+    }
+
+    public int getQueuedTenantCount() {
+        synchronized (admissionLock) {
+            return pending.getTenantCount();
+        }
+    }
+
+    /**
+    * Number of output pumps currently live, including ones waiting on a pump thread
+    */
+    public int getActivePumps() {
+        return pumps.getActivePumps();
+    }
+
+    public long getCompletedPumps() {
+        return pumps.getCompletedPumps();
+    }
+
+    public boolean usesVirtualPumps() {
+        return pumps.isVirtual();
+    }
+
+    /**
+    * Subscribes to status changes and output progress of jobs, see EventDispatcher. ids and statuses can be null
+    * for every job and every status, ready is called on the dispatcher thread when there are events to poll.
+    * Throws RejectedExecutionException if the dispatcher is too far behind to take another subscriber.
+    */
+    public EventDispatcher.Subscription subscribe(Set<Long> ids, Set<Job.JobStatus> statuses, boolean output,
+        Runnable ready) throws RejectedExecutionException {
+
+        return events.subscribe(ids, statuses, output, ready);
+    }
+
+    /**
+    * Registry holding the manager's series, which callers can add their own to
+    */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+    * Waits until everything that happened so far is durable in the journal, if there is one
+    */
+    public void syncJournal() {
+        if (journal != null) {
+            journal.sync();
+        }
+    }
+
+    /**
+    * Stops accepting new pumps. Pumps already running drain their processes' output as usual.
+    * The journal is flushed and closed.
+    */
+    public void shutdown() {
+        launcher.shutdown();
+        if (compressor != null) {
+            compressor.shutdown();
+        }
+        if (forkServer != null) {
+            forkServer.close();
+        }
+        pumps.shutdown();
+        timer.shutdown();
+        events.shutdown();
+        if (journal != null) {
+            journal.close();
+        }
     }
 }
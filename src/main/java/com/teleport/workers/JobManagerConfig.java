@@ -0,0 +1,601 @@
+package com.teleport.workers;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Job Manager Config class
+ * Tunables for a JobManager and the Workers it creates. Setters return the config so they can be chained.
+ *
+ * Defaults are meant for a single small node. The API server overrides them from servlet init parameters.
+ */
+public class JobManagerConfig {
+
+    private boolean virtualPumps = true;
+    private int maxPumpThreads = 256;
+    private int maxRunningJobs = 64;
+    private int launcherThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private int maxQueuedJobs = 1024;
+    private final Map<String, Integer> tenantWeights = new HashMap<>();
+    private int retryAfterSecs = 1;
+    private long stopGraceMillis = 2000;
+    private long usageIntervalMillis = 1000;
+    private long maxCpuMillis = 0;
+    private long maxRssBytes = 0;
+    private long maxWallMillis = 0;
+    private long maxOutputBytes = 64L * 1024 * 1024;
+    private OutputBuffer.Retain outputRetention = OutputBuffer.Retain.TAIL;
+    private boolean separateStderr = false;
+    private long maxErrorBytes = 16L * 1024 * 1024;
+    private boolean outputTimestamps = false;
+    private boolean lineIndex = true;
+    private long retentionTtlMillis = 60L * 60 * 1000;
+    private int maxRetainedJobs = 10000;
+    private long maxRetainedBytes = 1024L * 1024 * 1024;
+    private boolean compressResults = true;
+    private long compressMinBytes = 4096;
+    private long decodedCacheBytes = 32L * 1024 * 1024;
+    private int resultCacheEntries = 1024;
+    private long resultCacheMaxAgeMillis = 5L * 60 * 1000;
+    private int eventQueueSize = 65536;
+    private int eventBufferSize = 1024;
+    private long eventHeartbeatMillis = 15 * 1000;
+    private int shardId = 0;
+    private int shardBits = 0;
+    private boolean spoolOutput = false;
+    private String spoolDirectory = System.getProperty("java.io.tmpdir") + "/workers-spool";
+    private long maxSpoolBytes = 16L * 1024 * 1024 * 1024;
+    private boolean forkServer = false;
+    private boolean journal = false;
+    private String journalDirectory = System.getProperty("java.io.tmpdir") + "/workers-journal";
+    private long journalCompactBytes = 256L * 1024 * 1024;
+    private long journalOutputBytes = 64 * 1024;
+
+    /**
+     * Whether output pumps should run on virtual threads when the JDK supports them
+     */
+    public boolean useVirtualPumps() {
+        return virtualPumps;
+    }
+
+    public JobManagerConfig setVirtualPumps(boolean virtualPumps) {
+        this.virtualPumps = virtualPumps;
+        return this;
+    }
+
+    /**
+     * Upper bound on platform pump threads, only used when virtual threads aren't available
+     */
+    public int getMaxPumpThreads() {
+        return maxPumpThreads;
+    }
+
+    public JobManagerConfig setMaxPumpThreads(int maxPumpThreads) {
+        if (maxPumpThreads < 1) {
+            throw new IllegalArgumentException("maxPumpThreads must be positive");
+        }
+        this.maxPumpThreads = maxPumpThreads;
+        return this;
+    }
+
+    /**
+     * Number of threads starting processes in parallel for addJobAsync and queued jobs
+     */
+    public int getLauncherThreads() {
+        return launcherThreads;
+    }
+
+    public JobManagerConfig setLauncherThreads(int launcherThreads) {
+        if (launcherThreads < 1) {
+            throw new IllegalArgumentException("launcherThreads must be positive");
+        }
+        this.launcherThreads = launcherThreads;
+        return this;
+    }
+
+    /**
+     * Upper bound on processes running at the same time, further jobs are queued
+     */
+    public int getMaxRunningJobs() {
+        return maxRunningJobs;
+    }
+
+    public JobManagerConfig setMaxRunningJobs(int maxRunningJobs) {
+        if (maxRunningJobs < 1) {
+            throw new IllegalArgumentException("maxRunningJobs must be positive");
+        }
+        this.maxRunningJobs = maxRunningJobs;
+        return this;
+    }
+
+    /**
+     * Upper bound on jobs waiting for a running slot, further jobs are rejected
+     */
+    public int getMaxQueuedJobs() {
+        return maxQueuedJobs;
+    }
+
+    public JobManagerConfig setMaxQueuedJobs(int maxQueuedJobs) {
+        if (maxQueuedJobs < 0) {
+            throw new IllegalArgumentException("maxQueuedJobs can't be negative");
+        }
+        this.maxQueuedJobs = maxQueuedJobs;
+        return this;
+    }
+
+    /**
+     * Share of the running slots each tenant gets while jobs are queued, relative to the others. Tenants that
+     * weren't given a weight have a weight of 1, and weights go up to 1048576.
+     */
+    public Map<String, Integer> getTenantWeights() {
+        return Collections.unmodifiableMap(tenantWeights);
+    }
+
+    public JobManagerConfig setTenantWeight(String tenant, int weight) {
+        if (weight < 1 || weight > FairQueue.MAX_WEIGHT) {
+            throw new IllegalArgumentException("tenant weights must be between 1 and " + FairQueue.MAX_WEIGHT);
+        }
+        tenantWeights.put(tenant, weight);
+        return this;
+    }
+
+    /**
+     * Seconds clients are told to wait before retrying a rejected job
+     */
+    public int getRetryAfterSecs() {
+        return retryAfterSecs;
+    }
+
+    public JobManagerConfig setRetryAfterSecs(int retryAfterSecs) {
+        if (retryAfterSecs < 0) {
+            throw new IllegalArgumentException("retryAfterSecs can't be negative");
+        }
+        this.retryAfterSecs = retryAfterSecs;
+        return this;
+    }
+
+    /**
+     * How long a stopped process tree gets to exit after SIGTERM before it's sent SIGKILL
+     */
+    public long getStopGraceMillis() {
+        return stopGraceMillis;
+    }
+
+    public JobManagerConfig setStopGraceMillis(long stopGraceMillis) {
+        if (stopGraceMillis < 0) {
+            throw new IllegalArgumentException("stopGraceMillis can't be negative");
+        }
+        this.stopGraceMillis = stopGraceMillis;
+        return this;
+    }
+
+    /**
+     * How often running jobs' CPU, memory and I/O are sampled from /proc and limits are checked, 0 turns it off
+     */
+    public long getUsageIntervalMillis() {
+        return usageIntervalMillis;
+    }
+
+    public JobManagerConfig setUsageIntervalMillis(long usageIntervalMillis) {
+        if (usageIntervalMillis < 0) {
+            throw new IllegalArgumentException("usageIntervalMillis can't be negative");
+        }
+        this.usageIntervalMillis = usageIntervalMillis;
+        return this;
+    }
+
+    /**
+     * CPU time a job's process tree may use before it's stopped, 0 for no limit
+     */
+    public long getMaxCpuMillis() {
+        return maxCpuMillis;
+    }
+
+    public JobManagerConfig setMaxCpuMillis(long maxCpuMillis) {
+        if (maxCpuMillis < 0) {
+            throw new IllegalArgumentException("maxCpuMillis can't be negative");
+        }
+        this.maxCpuMillis = maxCpuMillis;
+        return this;
+    }
+
+    /**
+     * Resident memory a job's process tree may use before it's stopped, 0 for no limit
+     */
+    public long getMaxRssBytes() {
+        return maxRssBytes;
+    }
+
+    public JobManagerConfig setMaxRssBytes(long maxRssBytes) {
+        if (maxRssBytes < 0) {
+            throw new IllegalArgumentException("maxRssBytes can't be negative");
+        }
+        this.maxRssBytes = maxRssBytes;
+        return this;
+    }
+
+    /**
+     * How long a job may run before it's stopped, 0 for no limit
+     */
+    public long getMaxWallMillis() {
+        return maxWallMillis;
+    }
+
+    public JobManagerConfig setMaxWallMillis(long maxWallMillis) {
+        if (maxWallMillis < 0) {
+            throw new IllegalArgumentException("maxWallMillis can't be negative");
+        }
+        this.maxWallMillis = maxWallMillis;
+        return this;
+    }
+
+    /**
+     * Upper bound on output bytes kept per job
+     */
+    public long getMaxOutputBytes() {
+        return maxOutputBytes;
+    }
+
+    public JobManagerConfig setMaxOutputBytes(long maxOutputBytes) {
+        if (maxOutputBytes < 0) {
+            throw new IllegalArgumentException("maxOutputBytes can't be negative");
+        }
+        this.maxOutputBytes = maxOutputBytes;
+        return this;
+    }
+
+    /**
+     * Which part of the output is kept once a job writes more than maxOutputBytes
+     */
+    public OutputBuffer.Retain getOutputRetention() {
+        return outputRetention;
+    }
+
+    public JobManagerConfig setOutputRetention(OutputBuffer.Retain outputRetention) {
+        this.outputRetention = outputRetention;
+        return this;
+    }
+
+    /**
+     * Whether stderr is captured on its own instead of being merged into stdout
+     */
+    public boolean isSeparateStderr() {
+        return separateStderr;
+    }
+
+    public JobManagerConfig setSeparateStderr(boolean separateStderr) {
+        this.separateStderr = separateStderr;
+        return this;
+    }
+
+    /**
+     * Upper bound on stderr bytes kept per job, independent of maxOutputBytes
+     */
+    public long getMaxErrorBytes() {
+        return maxErrorBytes;
+    }
+
+    public JobManagerConfig setMaxErrorBytes(long maxErrorBytes) {
+        if (maxErrorBytes < 0) {
+            throw new IllegalArgumentException("maxErrorBytes can't be negative");
+        }
+        this.maxErrorBytes = maxErrorBytes;
+        return this;
+    }
+
+    /**
+     * Whether the arrival time of each output chunk is recorded, see OutputTimeline. Not available for spooled
+     * output since the process writes to the file itself.
+     */
+    public boolean isOutputTimestamps() {
+        return outputTimestamps;
+    }
+
+    public JobManagerConfig setOutputTimestamps(boolean outputTimestamps) {
+        this.outputTimestamps = outputTimestamps;
+        return this;
+    }
+
+    /**
+     * Whether heap output keeps a LineIndex as it arrives, so tail and line range queries don't scan the whole
+     * output. Costs 8 bytes per line. Spooled output is always indexed on demand.
+     */
+    public boolean isLineIndex() {
+        return lineIndex;
+    }
+
+    public JobManagerConfig setLineIndex(boolean lineIndex) {
+        this.lineIndex = lineIndex;
+        return this;
+    }
+
+    /**
+     * How long finished jobs can be queried for
+     */
+    public long getRetentionTtlMillis() {
+        return retentionTtlMillis;
+    }
+
+    public JobManagerConfig setRetentionTtlMillis(long retentionTtlMillis) {
+        if (retentionTtlMillis < 0) {
+            throw new IllegalArgumentException("retentionTtlMillis can't be negative");
+        }
+        this.retentionTtlMillis = retentionTtlMillis;
+        return this;
+    }
+
+    /**
+     * Upper bound on finished jobs kept, least recently used ones are evicted first
+     */
+    public int getMaxRetainedJobs() {
+        return maxRetainedJobs;
+    }
+
+    public JobManagerConfig setMaxRetainedJobs(int maxRetainedJobs) {
+        if (maxRetainedJobs < 0) {
+            throw new IllegalArgumentException("maxRetainedJobs can't be negative");
+        }
+        this.maxRetainedJobs = maxRetainedJobs;
+        return this;
+    }
+
+    /**
+     * Upper bound on the output bytes of all finished jobs kept
+     */
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    public JobManagerConfig setMaxRetainedBytes(long maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("maxRetainedBytes can't be negative");
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        return this;
+    }
+
+    /**
+     * Whether finished heap output is compressed in the background, see CompressedOutput. Retention then counts
+     * the compressed size against maxRetainedBytes.
+     */
+    public boolean isCompressResults() {
+        return compressResults;
+    }
+
+    public JobManagerConfig setCompressResults(boolean compressResults) {
+        this.compressResults = compressResults;
+        return this;
+    }
+
+    /**
+     * Output smaller than this isn't worth compressing
+     */
+    public long getCompressMinBytes() {
+        return compressMinBytes;
+    }
+
+    public JobManagerConfig setCompressMinBytes(long compressMinBytes) {
+        if (compressMinBytes < 0) {
+            throw new IllegalArgumentException("compressMinBytes can't be negative");
+        }
+        this.compressMinBytes = compressMinBytes;
+        return this;
+    }
+
+    /**
+     * Upper bound on decompressed output kept around for results that are being queried
+     */
+    public long getDecodedCacheBytes() {
+        return decodedCacheBytes;
+    }
+
+    public JobManagerConfig setDecodedCacheBytes(long decodedCacheBytes) {
+        if (decodedCacheBytes < 0) {
+            throw new IllegalArgumentException("decodedCacheBytes can't be negative");
+        }
+        this.decodedCacheBytes = decodedCacheBytes;
+        return this;
+    }
+
+    /**
+     * Number of commands the ResultCache remembers for cacheable jobs, 0 turns it off
+     */
+    public int getResultCacheEntries() {
+        return resultCacheEntries;
+    }
+
+    public JobManagerConfig setResultCacheEntries(int resultCacheEntries) {
+        if (resultCacheEntries < 0) {
+            throw new IllegalArgumentException("resultCacheEntries can't be negative");
+        }
+        this.resultCacheEntries = resultCacheEntries;
+        return this;
+    }
+
+    /**
+     * Oldest result a cacheable job can be answered with, whatever max age the client asks for
+     */
+    public long getResultCacheMaxAgeMillis() {
+        return resultCacheMaxAgeMillis;
+    }
+
+    public JobManagerConfig setResultCacheMaxAgeMillis(long resultCacheMaxAgeMillis) {
+        if (resultCacheMaxAgeMillis < 0) {
+            throw new IllegalArgumentException("resultCacheMaxAgeMillis can't be negative");
+        }
+        this.resultCacheMaxAgeMillis = resultCacheMaxAgeMillis;
+        return this;
+    }
+
+    /**
+     * Whether processes write their output straight into spool files instead of being pumped onto the heap
+     */
+    public boolean isSpoolOutput() {
+        return spoolOutput;
+    }
+
+    public JobManagerConfig setSpoolOutput(boolean spoolOutput) {
+        this.spoolOutput = spoolOutput;
+        return this;
+    }
+
+    public String getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    public JobManagerConfig setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+        return this;
+    }
+
+    /**
+     * Upper bound on the spool file bytes of all finished jobs kept
+     */
+    public long getMaxSpoolBytes() {
+        return maxSpoolBytes;
+    }
+
+    public JobManagerConfig setMaxSpoolBytes(long maxSpoolBytes) {
+        if (maxSpoolBytes < 0) {
+            throw new IllegalArgumentException("maxSpoolBytes can't be negative");
+        }
+        this.maxSpoolBytes = maxSpoolBytes;
+        return this;
+    }
+
+    /**
+     * Whether processes are started by a ForkServer helper instead of the JVM. Their output is always spooled,
+     * since the helper hands it to the process as files.
+     */
+    public boolean isForkServer() {
+        return forkServer;
+    }
+
+    public JobManagerConfig setForkServer(boolean forkServer) {
+        this.forkServer = forkServer;
+        return this;
+    }
+
+    /**
+     * Whether jobs are recorded in a JobJournal and recovered from it on startup
+     */
+    public boolean isJournal() {
+        return journal;
+    }
+
+    public JobManagerConfig setJournal(boolean journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public JobManagerConfig setJournalDirectory(String journalDirectory) {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    /**
+     * Journal size past which it's rewritten with only the jobs still retained
+     */
+    public long getJournalCompactBytes() {
+        return journalCompactBytes;
+    }
+
+    public JobManagerConfig setJournalCompactBytes(long journalCompactBytes) {
+        if (journalCompactBytes < 1) {
+            throw new IllegalArgumentException("journalCompactBytes must be positive");
+        }
+        this.journalCompactBytes = journalCompactBytes;
+        return this;
+    }
+
+    /**
+     * Heap output journaled with each result, the rest is lost on restart. 0 journals no output.
+     */
+    public long getJournalOutputBytes() {
+        return journalOutputBytes;
+    }
+
+    public JobManagerConfig setJournalOutputBytes(long journalOutputBytes) {
+        if (journalOutputBytes < 0 || journalOutputBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("journalOutputBytes must be between 0 and 2^31 - 1");
+        }
+        this.journalOutputBytes = journalOutputBytes;
+        return this;
+    }
+
+    /**
+     * Job events waiting for the dispatcher, events beyond this are dropped
+     */
+    public int getEventQueueSize() {
+        return eventQueueSize;
+    }
+
+    public JobManagerConfig setEventQueueSize(int eventQueueSize) {
+        if (eventQueueSize <= 0) {
+            throw new IllegalArgumentException("eventQueueSize must be positive");
+        }
+        this.eventQueueSize = eventQueueSize;
+        return this;
+    }
+
+    /**
+     * Events buffered for each subscriber, a subscriber whose buffer fills up is dropped
+     */
+    public int getEventBufferSize() {
+        return eventBufferSize;
+    }
+
+    public JobManagerConfig setEventBufferSize(int eventBufferSize) {
+        if (eventBufferSize <= 0) {
+            throw new IllegalArgumentException("eventBufferSize must be positive");
+        }
+        this.eventBufferSize = eventBufferSize;
+        return this;
+    }
+
+    /**
+     * How often idle subscribers get a heartbeat
+     */
+    public long getEventHeartbeatMillis() {
+        return eventHeartbeatMillis;
+    }
+
+    public JobManagerConfig setEventHeartbeatMillis(long eventHeartbeatMillis) {
+        if (eventHeartbeatMillis <= 0) {
+            throw new IllegalArgumentException("eventHeartbeatMillis must be positive");
+        }
+        this.eventHeartbeatMillis = eventHeartbeatMillis;
+        return this;
+    }
+
+    /**
+     * Shard this manager owns behind a ShardRouter, carried in the low getShardBits() bits of its job ids
+     */
+    public int getShardId() {
+        return shardId;
+    }
+
+    /**
+     * Bits of each job id holding its shard, 0 when the manager isn't sharded
+     */
+    public int getShardBits() {
+        return shardBits;
+    }
+
+    public JobManagerConfig setShard(int shardId, int shardBits) {
+        if (shardBits < 0 || shardBits > JobIds.MAX_SHARD_BITS) {
+            throw new IllegalArgumentException("shardBits must be between 0 and " + JobIds.MAX_SHARD_BITS);
+        }
+        if (shardId < 0 || shardId >= 1 << shardBits) {
+            throw new IllegalArgumentException("shardId must fit in shardBits");
+        }
+        this.shardId = shardId;
+        this.shardBits = shardBits;
+        return this;
+    }
+}
@@ -0,0 +1,32 @@
+package com.teleport.workers;
+
+/**
+ * Job Metrics class
+ * The series recorded by Workers as jobs go through their lifecycle, registered in a shared Metrics registry.
+ */
+public class JobMetrics {
+
+    final Metrics.Histogram spawnLatency;
+    final Metrics.Histogram firstOutputLatency;
+    final Metrics.Histogram runtime;
+    final Metrics.Counter outputBytes;
+    final Metrics.Counter started;
+    final Metrics.Counter spawnFailures;
+    final Metrics.Counter stops;
+    final Metrics.Counter stopEscalations;
+
+    public JobMetrics(Metrics metrics) {
+        spawnLatency = metrics.histogram("worker_spawn_duration_seconds",
+            "Time taken by ProcessBuilder.start() to create a job's process");
+        firstOutputLatency = metrics.histogram("worker_first_output_seconds",
+            "Time from process start to the first output byte read, for pumped output");
+        runtime = metrics.histogram("worker_job_runtime_seconds",
+            "Time from a job starting to run until it's done");
+        outputBytes = metrics.counter("worker_output_bytes_total", "Output bytes read from job processes");
+        started = metrics.counter("worker_jobs_started_total", "Processes started");
+        spawnFailures = metrics.counter("worker_spawn_failures_total", "Processes that couldn't be started");
+        stops = metrics.counter("worker_stops_total", "Jobs stopped through the API");
+        stopEscalations = metrics.counter("worker_stop_escalations_total",
+            "Stops where the process ignored SIGTERM and had to be destroyed forcibly");
+    }
+}
@@ -0,0 +1,99 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Job Output interface
+ * Output of a job, readable while the process runs and after it's done. Implemented by OutputBuffer for output
+ * kept on the heap and by SpoolFile for output the process writes straight to disk.
+ *
+ * Offsets are absolute positions in everything the process wrote.
+ */
+public interface JobOutput {
+
+    /**
+     * Slice of output returned by read(), along with the offset to continue reading from
+     */
+    class Slice {
+        private final long offset;
+        private final byte[] bytes;
+        private final long nextOffset;
+
+        public Slice(long offset, byte[] bytes, long nextOffset) {
+            this.offset = offset;
+            this.bytes = bytes;
+            this.nextOffset = nextOffset;
+        }
+
+        /**
+         * Offset of the first returned byte, later than the requested one if those bytes were discarded
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public long getNextOffset() {
+            return nextOffset;
+        }
+    }
+
+    /**
+     * Returns up to maxLength bytes starting at an absolute offset. Reading past the end returns an empty slice.
+     * Throws IllegalArgumentException if maxLength is negative.
+     */
+    Slice read(long offset, int maxLength) throws IOException;
+
+    /**
+     * Copies everything retained into a single array
+     */
+    byte[] toByteArray() throws IOException;
+
+    void writeTo(OutputStream stream) throws IOException;
+
+    /**
+     * Number of bytes currently held
+     */
+    long size();
+
+    /**
+     * Number of bytes the process wrote, including any that were discarded
+     */
+    long getTotalBytes();
+
+    boolean isTruncated();
+
+    /**
+     * True if the output lives on disk rather than the heap
+     */
+    boolean isSpooled();
+
+    /**
+     * Offsets of the lines in the output, or null if they aren't indexed
+     */
+    LineIndex getLineIndex() throws IOException;
+
+    /**
+     * Marks the output as complete, nothing is added afterwards
+     */
+    void close();
+
+    boolean isClosed();
+
+    /**
+     * Listeners run whenever output is added and when the output closes, so they should only hand work off to
+     * somewhere else
+     */
+    void addListener(Runnable listener);
+
+    void removeListener(Runnable listener);
+
+    /**
+     * Frees whatever holds the output once the job is forgotten
+     */
+    void release();
+}
@@ -0,0 +1,137 @@
+package com.teleport.workers;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Job Retention class
+ * Decides which finished jobs a JobManager should forget. Finished jobs are kept in least recently used order and
+ * evicted once they're older than the TTL, or when there are more than maxJobs of them, or when their output adds
+ * up to more than maxBytes on the heap or maxSpoolBytes in spool files.
+ *
+ * Only finished jobs are tracked here, running and queued jobs are never evicted.
+ */
+public class JobRetention {
+
+    private final long ttlMillis;
+    private final int maxJobs;
+    private final long maxBytes;
+    private final long maxSpoolBytes;
+
+    // Guarded by this, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<Long, Entry> finished;
+    private long retainedBytes;
+    private long spooledBytes;
+
+    private static class Entry {
+        private long bytes;
+        private final boolean spooled;
+        private final long finishedAt;
+
+        Entry(long bytes, boolean spooled, long finishedAt) {
+            this.bytes = bytes;
+            this.spooled = spooled;
+            this.finishedAt = finishedAt;
+        }
+    }
+
+    public JobRetention(long ttlMillis, int maxJobs, long maxBytes, long maxSpoolBytes) {
+        this.ttlMillis = ttlMillis;
+        this.maxJobs = maxJobs;
+        this.maxBytes = maxBytes;
+        this.maxSpoolBytes = maxSpoolBytes;
+        this.finished = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Starts tracking a finished job and returns the ids of jobs that no longer fit
+     */
+    public synchronized List<Long> add(long id, long bytes, boolean spooled, long now) {
+        Entry previous = finished.put(id, new Entry(bytes, spooled, now));
+        if (previous != null) {
+            forget(previous);
+        }
+        if (spooled) {
+            spooledBytes += bytes;
+        } else {
+            retainedBytes += bytes;
+        }
+
+        List<Long> evicted = new ArrayList<>();
+        Iterator<Map.Entry<Long, Entry>> eldest = finished.entrySet().iterator();
+        while ((finished.size() > maxJobs || retainedBytes > maxBytes || spooledBytes > maxSpoolBytes)
+            && eldest.hasNext()) {
+            Map.Entry<Long, Entry> entry = eldest.next();
+            forget(entry.getValue());
+            evicted.add(entry.getKey());
+            eldest.remove();
+        }
+        return evicted;
+    }
+
+    /**
+     * Updates the bytes a job holds on the heap, e.g. once its output was compressed. This counts as a use, which
+     * makes no difference right after a job finished.
+     */
+    public synchronized void resize(long id, long bytes) {
+        Entry entry = finished.get(id);
+        if (entry == null || entry.spooled) {
+            return;
+        }
+        retainedBytes += bytes - entry.bytes;
+        entry.bytes = bytes;
+    }
+
+    private void forget(Entry entry) {
+        if (entry.spooled) {
+            spooledBytes -= entry.bytes;
+        } else {
+            retainedBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Marks a finished job as recently used
+     */
+    public synchronized void touch(long id) {
+        finished.get(id);
+    }
+
+    /**
+     * Removes and returns the ids of jobs that finished more than the TTL ago
+     */
+    public synchronized List<Long> expire(long now) {
+        List<Long> expired = new ArrayList<>();
+        Iterator<Map.Entry<Long, Entry>> entries = finished.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, Entry> entry = entries.next();
+            if (now - entry.getValue().finishedAt >= ttlMillis) {
+                forget(entry.getValue());
+                expired.add(entry.getKey());
+                entries.remove();
+            }
+        }
+        return expired;
+    }
+
+    public synchronized int size() {
+        return finished.size();
+    }
+
+    /**
+     * Output bytes of retained jobs held on the heap
+     */
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * Output bytes of retained jobs held in spool files
+     */
+    public synchronized long getSpooledBytes() {
+        return spooledBytes;
+    }
+}
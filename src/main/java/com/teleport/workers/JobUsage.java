@@ -0,0 +1,61 @@
+package com.teleport.workers;
+
+/**
+ * Job Usage class
+ * Resources used by a job's process tree, as last seen by the ResourceSampler. CPU time and I/O bytes are
+ * cumulative and the RSS is the highest seen, so all of them only grow. Processes that exited between samples
+ * are only counted once they're reaped into their parent's totals.
+ *
+ * Only the sampler thread updates the fields, readers just see the latest values.
+ */
+public class JobUsage {
+
+    private volatile long cpuMillis;
+    private volatile long peakRssBytes;
+    private volatile long readBytes;
+    private volatile long writeBytes;
+    private volatile long sampledAt;
+
+    void update(long cpuMillis, long rssBytes, long readBytes, long writeBytes, long now) {
+        this.cpuMillis = Math.max(this.cpuMillis, cpuMillis);
+        this.peakRssBytes = Math.max(this.peakRssBytes, rssBytes);
+        this.readBytes = Math.max(this.readBytes, readBytes);
+        this.writeBytes = Math.max(this.writeBytes, writeBytes);
+        this.sampledAt = now;
+    }
+
+    /**
+     * User plus system CPU time of the process tree
+     */
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    /**
+     * Highest combined resident set size of the process tree seen in a sample
+     */
+    public long getPeakRssBytes() {
+        return peakRssBytes;
+    }
+
+    /**
+     * Bytes the process tree caused to be read from storage
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Bytes the process tree caused to be written to storage
+     */
+    public long getWriteBytes() {
+        return writeBytes;
+    }
+
+    /**
+     * Milliseconds since the Unix epoch of the last sample, or 0 if the job was never sampled
+     */
+    public long getSampledAt() {
+        return sampledAt;
+    }
+}
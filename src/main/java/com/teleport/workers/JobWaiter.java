@@ -0,0 +1,86 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+
+/**
+ * Job Waiter class
+ * Parks an async servlet request until a job completes or the wait times out, then responds with the job's
+ * JSON. No request thread is held while waiting.
+ *
+ * The job's completion can fire on a pump or process reaper thread, so the response is written on a container
+ * thread via AsyncContext.start. Whichever of completion and timeout comes first writes the response.
+ */
+class JobWaiter implements AsyncListener {
+
+    private final static Logger LOGGER = Logger.getLogger(JobWaiter.class.getName());
+
+    private final AsyncContext context;
+    private final Job job;
+    private final Responder render;
+    private final AtomicBoolean responded;
+
+    /**
+     * Writes the response for the job, called once on a container thread
+     */
+    interface Responder {
+        void respond(Job job) throws IOException;
+    }
+
+    JobWaiter(AsyncContext context, Job job, Responder render) {
+        this.context = context;
+        this.job = job;
+        this.render = render;
+        this.responded = new AtomicBoolean();
+    }
+
+    void start(long timeoutMillis) {
+        context.setTimeout(timeoutMillis);
+        context.addListener(this);
+        job.getCompletion().thenRun(() -> {
+            if (!responded.get()) {
+                context.start(this::respond);
+            }
+        });
+    }
+
+    private void respond() {
+        if (!responded.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            render.respond(job);
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.info(String.format("Could not answer wait request: %s", e.getMessage()));
+        } finally {
+            context.complete();
+        }
+    }
+
+    /**
+     * Answers with the job as it is now, its status tells the client it isn't done yet
+     */
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        respond();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        responded.set(true);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        responded.set(true);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
@@ -0,0 +1,416 @@
+package com.teleport.workers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JSON Writer class
+ * Minimal streaming JSON writer for API responses. Names and values are escaped and encoded as UTF-8 straight
+ * into a small buffer in front of the response stream, so job output is never turned into a String or a
+ * JSONObject on its way out.
+ *
+ * Job output is raw process bytes, so it's checked as it's escaped: valid UTF-8 is copied as is and anything
+ * else becomes U+FFFD, the same as decoding it into a String would give.
+ *
+ * Output is compact unless an indent is given.
+ */
+final class JsonWriter implements Closeable {
+
+    private final static int BUFFER_SIZE = 8192;
+    private final static int MAX_DEPTH = 32;
+    private final static byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] REPLACEMENT = {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+
+    private final OutputStream out;
+    private final int indent;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int depth;
+    private final boolean[] empty = new boolean[MAX_DEPTH];
+    private boolean afterName;
+
+    JsonWriter(OutputStream out, int indent) {
+        this.out = out;
+        this.indent = indent;
+    }
+
+    /**
+     * Writes an object of string or integer fields, given as name/value pairs, to a byte array. Used for bodies
+     * that are computed once and cached.
+     */
+    static byte[] toBytes(int indent, Object... fields) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter writer = new JsonWriter(bytes, indent)) {
+            writer.beginObject();
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                writer.name((String) fields[i]);
+                if (fields[i + 1] instanceof Number) {
+                    writer.value(((Number) fields[i + 1]).longValue());
+                } else {
+                    writer.value((String) fields[i + 1]);
+                }
+            }
+            writer.endObject();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    JsonWriter name(String name) throws IOException {
+        separate();
+        writeString(name);
+        put(':');
+        if (indent > 0) {
+            put(' ');
+        }
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) throws IOException {
+        beforeValue();
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        beforeValue();
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes job output as a JSON string, optionally dropping one final line terminator like Result.getOutput().
+     * Finished output is streamed from the job's chunks; output that's still being written is copied out first
+     * so a slow client never holds the buffer's lock while the pump is filling it.
+     */
+    JsonWriter value(JobOutput output, boolean stripNewline) throws IOException {
+        beforeValue();
+        put('"');
+        OutputEscaper escaper = new OutputEscaper(stripNewline);
+        if (output.isClosed()) {
+            output.writeTo(escaper);
+        } else {
+            byte[] bytes = output.toByteArray();
+            escaper.write(bytes, 0, bytes.length);
+        }
+        escaper.finish();
+        put('"');
+        return this;
+    }
+
+    /**
+     * Writes a range of raw output bytes, like a single line, as a JSON string
+     */
+    JsonWriter value(byte[] bytes, int offset, int length) throws IOException {
+        beforeValue();
+        put('"');
+        OutputEscaper escaper = new OutputEscaper(false);
+        escaper.write(bytes, offset, length);
+        escaper.finish();
+        put('"');
+        return this;
+    }
+
+    void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the underlying stream, which also finishes gzip streams
+     */
+    @Override
+    public void close() throws IOException {
+        drain();
+        out.close();
+    }
+
+    private JsonWriter open(char bracket) throws IOException {
+        beforeValue();
+        put(bracket);
+        if (++depth >= MAX_DEPTH) {
+            throw new IllegalStateException("JSON nested too deeply");
+        }
+        empty[depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) throws IOException {
+        boolean wasEmpty = empty[depth];
+        --depth;
+        if (!wasEmpty) {
+            newline();
+        }
+        put(bracket);
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        separate();
+    }
+
+    private void separate() throws IOException {
+        if (depth == 0) {
+            return;
+        }
+        if (!empty[depth]) {
+            put(',');
+        }
+        empty[depth] = false;
+        newline();
+    }
+
+    private void newline() throws IOException {
+        if (indent <= 0) {
+            return;
+        }
+        put('\n');
+        for (int i = depth * indent; i > 0; --i) {
+            put(' ');
+        }
+    }
+
+    private void writeAscii(String value) throws IOException {
+        for (int i = 0; i < value.length(); ++i) {
+            put(value.charAt(i));
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        put('"');
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                escapeAscii(c);
+            } else if (c < 0x800) {
+                put(0xC0 | (c >> 6));
+                put(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                put(0xF0 | (codePoint >> 18));
+                put(0x80 | ((codePoint >> 12) & 0x3F));
+                put(0x80 | ((codePoint >> 6) & 0x3F));
+                put(0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                putReplacement();
+            } else {
+                put(0xE0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3F));
+                put(0x80 | (c & 0x3F));
+            }
+        }
+        put('"');
+    }
+
+    private void escapeAscii(int c) throws IOException {
+        switch (c) {
+            case '"':
+                put('\\');
+                put('"');
+                break;
+            case '\\':
+                put('\\');
+                put('\\');
+                break;
+            case '\n':
+                put('\\');
+                put('n');
+                break;
+            case '\r':
+                put('\\');
+                put('r');
+                break;
+            case '\t':
+                put('\\');
+                put('t');
+                break;
+            case '\b':
+                put('\\');
+                put('b');
+                break;
+            case '\f':
+                put('\\');
+                put('f');
+                break;
+            default:
+                if (c < 0x20 || c == 0x7F) {
+                    put('\\');
+                    put('u');
+                    put('0');
+                    put('0');
+                    put(HEX[c >> 4]);
+                    put(HEX[c & 0xF]);
+                } else {
+                    put(c);
+                }
+        }
+    }
+
+    private void putReplacement() throws IOException {
+        for (byte b : REPLACEMENT) {
+            put(b);
+        }
+    }
+
+    private void put(int b) throws IOException {
+        if (position == buffer.length) {
+            drain();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        if (position > 0) {
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Escapes raw output bytes into the writer, validating UTF-8 sequences even when they span writes
+     */
+    private class OutputEscaper extends OutputStream {
+        private final boolean stripNewline;
+        private final byte[] pending = new byte[4];
+        private int pendingLength;
+        private int needed;
+        private int lower;
+        private int upper;
+        private boolean heldNewline;
+
+        OutputEscaper(boolean stripNewline) {
+            this.stripNewline = stripNewline;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            accept(b & 0xFF);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; ++i) {
+                accept(bytes[i] & 0xFF);
+            }
+        }
+
+        private void accept(int b) throws IOException {
+            if (needed > 0) {
+                if (b >= lower && b <= upper) {
+                    pending[pendingLength++] = (byte) b;
+                    lower = 0x80;
+                    upper = 0xBF;
+                    if (--needed == 0) {
+                        putPending();
+                    }
+                    return;
+                }
+                // Truncated sequence, replace it and look at this byte on its own
+                needed = 0;
+                putReplacement();
+            }
+
+            if (heldNewline) {
+                heldNewline = false;
+                escapeAscii('\n');
+            }
+            if (b < 0x80) {
+                if (b == '\n' && stripNewline) {
+                    heldNewline = true;
+                } else {
+                    escapeAscii(b);
+                }
+                return;
+            }
+            start(b);
+        }
+
+        /**
+         * Lead byte of a multi-byte sequence, with the range its second byte must be in
+         */
+        private void start(int b) throws IOException {
+            lower = 0x80;
+            upper = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                needed = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                needed = 2;
+                if (b == 0xE0) {
+                    lower = 0xA0;
+                }
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                needed = 3;
+                if (b == 0xF0) {
+                    lower = 0x90;
+                } else if (b == 0xF4) {
+                    upper = 0x8F;
+                }
+            } else {
+                putReplacement();
+                return;
+            }
+            pending[0] = (byte) b;
+            pendingLength = 1;
+        }
+
+        /**
+         * Encoded surrogates (ED A0..BF xx) are replaced as a whole, like the JDK's decoder does
+         */
+        private void putPending() throws IOException {
+            if ((pending[0] & 0xFF) == 0xED && (pending[1] & 0xFF) >= 0xA0) {
+                putReplacement();
+                return;
+            }
+            for (int i = 0; i < pendingLength; ++i) {
+                put(pending[i]);
+            }
+        }
+
+        /**
+         * Output that ends in the middle of a sequence gets a replacement character, a held final newline is dropped
+         */
+        void finish() throws IOException {
+            if (needed > 0) {
+                needed = 0;
+                putReplacement();
+            }
+            heldNewline = false;
+        }
+    }
+}
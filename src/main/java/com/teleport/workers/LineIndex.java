@@ -0,0 +1,169 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+
+/**
+ * Line Index class
+ * Offsets of the line breaks in a job's output, kept as it arrives so the last N lines or a range of lines can be
+ * read without going through everything before them. The index is a growable long[] holding, for each '\n', the
+ * absolute offset of the byte after it. Line numbers are 0-based here and count every line the process wrote,
+ * so they stay the same after TAIL retention has discarded the oldest lines along with their entries.
+ *
+ * Only the thread filling the output adds to the index, readers look up offsets and then read the bytes from
+ * the output without holding the index's lock.
+ */
+public class LineIndex {
+
+    private final static int INITIAL_CAPACITY = 64;
+    private final static int MAX_READ = 1024 * 1024;
+
+    // Guarded by this. Entries before head were dropped along with their lines
+    private long[] ends;
+    private int head;
+    private int count;
+    private long droppedLines;
+    private long droppedEnd;
+    private long indexedBytes;
+
+    public LineIndex() {
+        this.ends = new long[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Receives each line of a range, without its line break, and returns false to stop. Bytes are only valid
+     * during the call.
+     */
+    public interface Visitor {
+        boolean visit(long line, byte[] bytes, int offset, int length) throws IOException;
+    }
+
+    /**
+     * Indexes the line breaks in bytes that were appended to the output at an absolute position
+     */
+    public synchronized void scan(byte[] bytes, int offset, int length, long position) {
+        for (int i = 0; i < length; ++i) {
+            if (bytes[offset + i] == '\n') {
+                add(position + i + 1);
+            }
+        }
+        indexedBytes = position + length;
+    }
+
+    private void add(long end) {
+        if (head + count == ends.length) {
+            // Reuse the array if most of it was dropped, otherwise grow it
+            long[] moved = head >= ends.length / 2 ? ends : new long[ends.length * 2];
+            System.arraycopy(ends, head, moved, 0, count);
+            ends = moved;
+            head = 0;
+        }
+        ends[head + count++] = end;
+    }
+
+    /**
+     * Forgets lines that ended before the first retained byte
+     */
+    public synchronized void dropBefore(long offset) {
+        while (count > 0 && ends[head] <= offset) {
+            droppedEnd = ends[head];
+            ++head;
+            --count;
+            ++droppedLines;
+        }
+    }
+
+    /**
+     * Number of lines, counting a last line that doesn't end in a line break yet
+     */
+    public synchronized long getLineCount() {
+        long last = count > 0 ? ends[head + count - 1] : droppedEnd;
+        return droppedLines + count + (indexedBytes > last ? 1 : 0);
+    }
+
+    /**
+     * Number of bytes indexed so far
+     */
+    public synchronized long getIndexedBytes() {
+        return indexedBytes;
+    }
+
+    /**
+     * First line that can still be read. It can start before the first retained byte, in which case only its
+     * end is still there.
+     */
+    public synchronized long getFirstLine() {
+        return droppedLines;
+    }
+
+    /**
+     * Absolute offset a line starts at, or the end of the indexed bytes for lines past the last one
+     */
+    public synchronized long startOf(long line) {
+        if (line <= droppedLines) {
+            return droppedEnd;
+        }
+        long entry = line - 1 - droppedLines;
+        return entry < count ? ends[head + (int) entry] : indexedBytes;
+    }
+
+    /**
+     * Visits lines [first, end) of the output. Bytes are read in blocks of whole lines, with one offset lookup per
+     * line, so the cost only depends on the lines visited. Lines that were discarded are skipped.
+     */
+    public void forEach(JobOutput output, long first, long end, Visitor visitor) throws IOException {
+        long line = Math.max(first, getFirstLine());
+        end = Math.min(end, getLineCount());
+        while (line < end) {
+            long from = startOf(line);
+            // Take as many whole lines as fit in one read, at least one however long it is
+            long last = line + 1;
+            while (last < end && startOf(last + 1) - from <= MAX_READ) {
+                ++last;
+            }
+            long to = startOf(last);
+            JobOutput.Slice slice = output.read(from, (int) Math.min(to - from, Integer.MAX_VALUE - 8));
+            byte[] bytes = slice.getBytes();
+            long base = slice.getOffset();
+            for (; line < last; ++line) {
+                long lineStart = Math.max(startOf(line), base);
+                long lineEnd = Math.min(startOf(line + 1), base + bytes.length);
+                if (lineEnd <= lineStart) {
+                    // Discarded while we were reading, every line that's there has at least one byte
+                    continue;
+                }
+                int length = (int) (lineEnd - lineStart);
+                if (length > 0 && bytes[(int) (lineStart - base) + length - 1] == '\n') {
+                    --length;
+                }
+                if (!visitor.visit(line, bytes, (int) (lineStart - base), length)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds an index for output that wasn't indexed as it arrived
+     */
+    public static LineIndex scan(JobOutput output) throws IOException {
+        LineIndex index = new LineIndex();
+        index.catchUp(output);
+        return index;
+    }
+
+    /**
+     * Indexes whatever was added to the output since the last call
+     */
+    void catchUp(JobOutput output) throws IOException {
+        long position = getIndexedBytes();
+        while (true) {
+            JobOutput.Slice slice = output.read(position, MAX_READ);
+            byte[] bytes = slice.getBytes();
+            if (bytes.length == 0) {
+                return;
+            }
+            scan(bytes, 0, bytes.length, slice.getOffset());
+            position = slice.getOffset() + bytes.length;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics class
+ * Small registry of counters, gauges and histograms that can be written out in the Prometheus text format.
+ *
+ * Recording is lock-free and doesn't allocate: counters are LongAdders, and histograms keep a LongAdder per
+ * bucket, so threads recording at the same time land on different cells instead of contending.
+ * Registering series is only meant to happen at startup and is synchronized.
+ */
+public class Metrics {
+
+    /**
+     * Default histogram buckets in seconds, from half a millisecond up to five minutes
+     */
+    final static double[] LATENCY_BUCKETS = {
+        0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300
+    };
+
+    private final List<Series> series = new ArrayList<>();
+
+    private static class Series {
+        private final String name;
+        private final String labels;
+        private final String help;
+        private final String type;
+        private final Object metric;
+
+        Series(String name, String labels, String help, String type, Object metric) {
+            this.name = name;
+            this.labels = labels;
+            this.help = help;
+            this.type = type;
+            this.metric = metric;
+        }
+    }
+
+    public static class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Histogram of durations recorded in nanoseconds and exported in seconds
+     */
+    public static class Histogram {
+        private final double[] bounds;
+        private final long[] boundNanos;
+        private final LongAdder[] buckets;
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.boundNanos = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length + 1];
+            for (int i = 0; i < bounds.length; ++i) {
+                boundNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+            }
+            for (int i = 0; i < buckets.length; ++i) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int bucket = 0;
+            while (bucket < boundNanos.length && nanos > boundNanos[bucket]) {
+                ++bucket;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since startNanos, taken from System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+    }
+
+    public synchronized Counter counter(String name, String help) {
+        return counter(name, "", help);
+    }
+
+    /**
+     * Labels are given pre-formatted, e.g. endpoint="query"
+     */
+    public synchronized Counter counter(String name, String labels, String help) {
+        Counter counter = new Counter();
+        series.add(new Series(name, labels, help, "counter", counter));
+        return counter;
+    }
+
+    public synchronized void gauge(String name, String help, LongSupplier value) {
+        gauge(name, "", help, value);
+    }
+
+    public synchronized void gauge(String name, String labels, String help, LongSupplier value) {
+        series.add(new Series(name, labels, help, "gauge", value));
+    }
+
+    public synchronized Histogram histogram(String name, String help) {
+        return histogram(name, "", help);
+    }
+
+    public synchronized Histogram histogram(String name, String labels, String help) {
+        Histogram histogram = new Histogram(LATENCY_BUCKETS);
+        series.add(new Series(name, labels, help, "histogram", histogram));
+        return histogram;
+    }
+
+    /**
+     * Writes every series in the Prometheus text exposition format (version 0.0.4)
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        List<Series> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(series);
+        }
+
+        String previous = null;
+        for (Series s : snapshot) {
+            if (!s.name.equals(previous)) {
+                out.write("# HELP " + s.name + " " + s.help + "\n");
+                out.write("# TYPE " + s.name + " " + s.type + "\n");
+                previous = s.name;
+            }
+            if (s.metric instanceof Counter) {
+                writeSample(out, s.name, s.labels, Long.toString(((Counter) s.metric).get()));
+            } else if (s.metric instanceof LongSupplier) {
+                writeSample(out, s.name, s.labels, Long.toString(((LongSupplier) s.metric).getAsLong()));
+            } else {
+                writeHistogram(out, s, (Histogram) s.metric);
+            }
+        }
+    }
+
+    private void writeHistogram(Writer out, Series s, Histogram histogram) throws IOException {
+        String separator = s.labels.isEmpty() ? "" : s.labels + ",";
+        long cumulative = 0;
+        for (int i = 0; i < histogram.buckets.length; ++i) {
+            cumulative += histogram.buckets[i].sum();
+            String bound = i < histogram.bounds.length ? Double.toString(histogram.bounds[i]) : "+Inf";
+            writeSample(out, s.name + "_bucket", separator + "le=\"" + bound + "\"", Long.toString(cumulative));
+        }
+        double sumSecs = histogram.sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+        writeSample(out, s.name + "_sum", s.labels, Double.toString(sumSecs));
+        writeSample(out, s.name + "_count", s.labels, Long.toString(cumulative));
+    }
+
+    private void writeSample(Writer out, String name, String labels, String value) throws IOException {
+        out.write(name);
+        if (!labels.isEmpty()) {
+            out.write("{" + labels + "}");
+        }
+        out.write(" " + value + "\n");
+    }
+}
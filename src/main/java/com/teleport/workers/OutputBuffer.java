@@ -0,0 +1,426 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Output Buffer class
+ * Stores the raw bytes a process writes as a list of fixed size chunks, so output is never decoded or copied
+ * into one large array while the process is running.
+ *
+ * Each buffer has a byte cap and a retention policy for output past the cap:
+ * HEAD - Keep the first maxBytes bytes and discard the rest
+ * TAIL - Keep the last maxBytes bytes, discarding the oldest output as new output arrives
+ *
+ * Only one thread (the Worker's pump) may fill a buffer, any number of threads can read it while it fills.
+ * Reads by offset use absolute positions in the process output, so an offset stays valid after TAIL retention
+ * has discarded the bytes before it.
+ *
+ * Buffers can also keep a LineIndex of the retained output, updated as bytes are published.
+ */
+public class OutputBuffer implements JobOutput {
+
+    final static int CHUNK_SIZE = 8192;
+
+    public enum Retain {
+        HEAD,
+        TAIL
+    }
+
+    private final long maxBytes;
+    private final Retain retain;
+    private final List<Runnable> listeners;
+    private final LineIndex lines;
+
+    // Guarded by this. Bytes before headOffset in the first chunk have been discarded
+    private final Deque<byte[]> chunks;
+    private int headOffset;
+    private int tailLength;
+    private long retained;
+    private long total;
+    private boolean closed;
+    // Guarded by this. The last chunk trimHead dropped, readers only copy out of chunks under the lock
+    private byte[] spare;
+
+    public OutputBuffer(long maxBytes, Retain retain) {
+        this(maxBytes, retain, false);
+    }
+
+    public OutputBuffer(long maxBytes, Retain retain, boolean indexLines) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes can't be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.retain = retain;
+        this.chunks = new ArrayDeque<>();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.lines = indexLines ? new LineIndex() : null;
+    }
+
+    /**
+     * Reads the stream until EOF straight into the buffer's chunks and returns the number of bytes read
+     * The read itself happens outside the lock, new bytes only become visible to readers once they're published.
+     * Only the filling thread changes tailLength, so it can read it without the lock.
+     */
+    public long readFrom(InputStream stream) throws IOException {
+        long count = 0;
+        byte[] chunk = nextChunk();
+        int length = tailLength;
+        while (true) {
+            if (length == CHUNK_SIZE) {
+                chunk = nextChunk();
+                length = 0;
+            }
+            int read = stream.read(chunk, length, CHUNK_SIZE - length);
+            if (read == -1) {
+                return count;
+            }
+            count += read;
+            boolean open = publish(read);
+            notifyListeners();
+            if (!open) {
+                return count + discard(stream);
+            }
+            length = tailLength;
+        }
+    }
+
+    /**
+     * Reads at most maxLength bytes the stream already has available, without waiting for more, and returns the
+     * number of bytes read. Used by the PipePoller, which hands the buffer over to a pump afterwards, so the
+     * single filling thread rule still holds at any one time.
+     */
+    public long readAvailable(InputStream stream, int maxLength) throws IOException {
+        long count = 0;
+        while (count < maxLength) {
+            int length = (int) Math.min(CHUNK_SIZE, maxLength - count);
+            int read;
+            if (isFull()) {
+                read = stream.read(new byte[length]);
+                if (read > 0) {
+                    synchronized (this) {
+                        total += read;
+                    }
+                }
+            } else {
+                byte[] chunk = nextChunk();
+                int offset = tailLength;
+                read = stream.read(chunk, offset, Math.min(length, CHUNK_SIZE - offset));
+                if (read > 0) {
+                    publish(read);
+                    notifyListeners();
+                }
+            }
+            if (read <= 0) {
+                break;
+            }
+            count += read;
+        }
+        return count;
+    }
+
+    private synchronized boolean isFull() {
+        return retain == Retain.HEAD && retained >= maxBytes;
+    }
+
+    /**
+     * Rebuilds a closed buffer from the bytes a job retained, e.g. ones read back from the JobJournal. The total is
+     * restored too, so offsets and truncation are the same as in the original buffer.
+     */
+    static OutputBuffer restore(byte[] bytes, long totalBytes, Retain retain) {
+        OutputBuffer buffer = new OutputBuffer(bytes.length, retain, true);
+        if (retain == Retain.TAIL) {
+            // Start where the retained bytes were, so they're indexed at their original offsets
+            synchronized (buffer) {
+                buffer.total = Math.max(totalBytes - bytes.length, 0);
+            }
+        }
+        buffer.write(bytes, 0, bytes.length);
+        synchronized (buffer) {
+            buffer.total = Math.max(totalBytes, bytes.length);
+        }
+        buffer.close();
+        return buffer;
+    }
+
+    /**
+     * Copies bytes into the buffer
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        append(bytes, offset, length);
+        notifyListeners();
+    }
+
+    private synchronized void append(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            byte[] chunk = nextChunk();
+            int count = Math.min(CHUNK_SIZE - tailLength, length);
+            System.arraycopy(bytes, offset, chunk, tailLength, count);
+            offset += count;
+            length -= count;
+            if (!publish(count)) {
+                total += length;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Once a HEAD buffer is full the rest of the stream only needs to be counted
+     */
+    private long discard(InputStream stream) throws IOException {
+        byte[] scratch = new byte[CHUNK_SIZE];
+        long count = 0;
+        int read;
+        while ((read = stream.read(scratch)) != -1) {
+            count += read;
+            synchronized (this) {
+                total += read;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the chunk new bytes should be written into, adding one if the last chunk is full
+     * TAIL retention hands the chunk it last dropped back here, so steady output doesn't allocate.
+     */
+    private synchronized byte[] nextChunk() {
+        checkOpen();
+        if (chunks.isEmpty() || tailLength == CHUNK_SIZE) {
+            chunks.addLast(spare != null ? spare : new byte[CHUNK_SIZE]);
+            spare = null;
+            tailLength = 0;
+        }
+        return chunks.peekLast();
+    }
+
+    /**
+     * Makes length more bytes at the end of the last chunk visible, then applies the retention policy
+     * Returns false once a HEAD buffer is full and won't take any more bytes.
+     */
+    private synchronized boolean publish(int length) {
+        checkOpen();
+        if (retain == Retain.HEAD && retained + length >= maxBytes) {
+            // Keep filling up to the cap, the rest is counted but dropped
+            int kept = (int) (maxBytes - retained);
+            index(kept);
+            total += length;
+            tailLength += kept;
+            retained += kept;
+            return false;
+        }
+
+        index(length);
+        total += length;
+        tailLength += length;
+        retained += length;
+        if (retain == Retain.TAIL) {
+            trimHead();
+            if (lines != null) {
+                lines.dropBefore(firstOffset());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indexes the line breaks in bytes about to be published at the end of the last chunk
+     */
+    private void index(int length) {
+        if (lines != null && length > 0) {
+            lines.scan(chunks.peekLast(), tailLength, length, firstOffset() + retained);
+        }
+    }
+
+    private void trimHead() {
+        while (retained > maxBytes) {
+            int firstLength = chunks.size() == 1 ? tailLength - headOffset : CHUNK_SIZE - headOffset;
+            long excess = retained - maxBytes;
+            if (excess >= firstLength && chunks.size() > 1) {
+                spare = chunks.pollFirst();
+                headOffset = 0;
+                retained -= firstLength;
+            } else {
+                int skip = (int) Math.min(excess, firstLength);
+                headOffset += skip;
+                retained -= skip;
+            }
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Output buffer is closed");
+        }
+    }
+
+    /**
+     * Marks the output as complete. The buffer is read-only afterwards.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        notifyListeners();
+    }
+
+    /**
+     * Listeners run on the filling thread
+     */
+    @Override
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Number of bytes currently held
+     */
+    @Override
+    public synchronized long size() {
+        return retained;
+    }
+
+    /**
+     * Number of bytes the process wrote, including any that were discarded
+     */
+    @Override
+    public synchronized long getTotalBytes() {
+        return total;
+    }
+
+    @Override
+    public synchronized boolean isTruncated() {
+        return total > retained;
+    }
+
+    /**
+     * Copies the retained bytes into a single array
+     */
+    @Override
+    public synchronized byte[] toByteArray() {
+        byte[] bytes = new byte[(int) retained];
+        int position = 0;
+        int offset = headOffset;
+        int index = 0;
+        for (byte[] chunk : chunks) {
+            int end = ++index == chunks.size() ? tailLength : CHUNK_SIZE;
+            int length = Math.max(0, Math.min(end - offset, bytes.length - position));
+            System.arraycopy(chunk, offset, bytes, position, length);
+            position += length;
+            offset = 0;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the retained bytes to a stream without collecting them into one array first
+     */
+    @Override
+    public synchronized void writeTo(OutputStream stream) throws IOException {
+        long remaining = retained;
+        int offset = headOffset;
+        int index = 0;
+        for (byte[] chunk : chunks) {
+            int end = ++index == chunks.size() ? tailLength : CHUNK_SIZE;
+            int length = (int) Math.max(0, Math.min(end - offset, remaining));
+            stream.write(chunk, offset, length);
+            remaining -= length;
+            offset = 0;
+        }
+    }
+
+    @Override
+    public boolean isSpooled() {
+        return false;
+    }
+
+    /**
+     * Null unless the buffer was created to index lines
+     */
+    @Override
+    public LineIndex getLineIndex() {
+        return lines;
+    }
+
+    /**
+     * Nothing to free, the buffer goes away with the job
+     */
+    @Override
+    public void release() {
+    }
+
+    /**
+     * Absolute offset of the first retained byte
+     */
+    private long firstOffset() {
+        return retain == Retain.TAIL ? total - retained : 0;
+    }
+
+    /**
+     * Returns up to maxLength bytes starting at an absolute offset. If the bytes at the offset were discarded,
+     * the slice starts at the next byte still available. Reading past the end returns an empty slice.
+     */
+    @Override
+    public synchronized Slice read(long offset, int maxLength) {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength can't be negative");
+        }
+        long first = firstOffset();
+        long from = Math.max(offset, first);
+        long available = first + retained - from;
+        if (available <= 0) {
+            return new Slice(Math.min(from, total), new byte[0], total);
+        }
+
+        byte[] bytes = new byte[(int) Math.min(available, maxLength)];
+        long skip = from - first + headOffset;
+        int position = 0;
+        int index = 0;
+        for (byte[] chunk : chunks) {
+            int end = ++index == chunks.size() ? tailLength : CHUNK_SIZE;
+            if (skip >= end) {
+                skip -= end;
+                continue;
+            }
+            int length = Math.min(end - (int) skip, bytes.length - position);
+            System.arraycopy(chunk, (int) skip, bytes, position, length);
+            position += length;
+            skip = 0;
+            if (position == bytes.length) {
+                break;
+            }
+        }
+        long next = from + bytes.length;
+        if (next == first + retained) {
+            // Skip over anything HEAD retention dropped
+            next = total;
+        }
+        return new Slice(from, bytes, next);
+    }
+}
@@ -0,0 +1,128 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Output Follower class
+ * Streams a job's output to an async servlet response as it arrives, like tail -f.
+ * The response stays open until the job's output is closed and everything has been written.
+ *
+ * No thread is held while waiting. Writes happen on container threads, either when the container reports the
+ * response is writable again or when the output's listener dispatches a drain after new output arrives.
+ */
+class OutputFollower implements WriteListener, AsyncListener {
+
+    private final static Logger LOGGER = Logger.getLogger(OutputFollower.class.getName());
+    private final static int MAX_WRITE = 64 * 1024;
+
+    private final AsyncContext context;
+    private final ServletOutputStream out;
+    private final JobOutput buffer;
+    private final Runnable bufferListener;
+    private final AtomicBoolean dispatched;
+    private long offset;
+    private boolean done;
+
+    OutputFollower(AsyncContext context, JobOutput buffer, long offset) throws IOException {
+        this.context = context;
+        this.out = context.getResponse().getOutputStream();
+        this.buffer = buffer;
+        this.offset = offset;
+        this.dispatched = new AtomicBoolean();
+        this.bufferListener = this::dispatch;
+    }
+
+    /**
+     * Registers with the buffer and the response, the first write happens once the container calls onWritePossible
+     */
+    void start() {
+        context.addListener(this);
+        buffer.addListener(bufferListener);
+        out.setWriteListener(this);
+    }
+
+    /**
+     * Called on the pump thread, so only hand the drain off to the container
+     */
+    private void dispatch() {
+        if (dispatched.compareAndSet(false, true)) {
+            context.start(() -> {
+                dispatched.set(false);
+                try {
+                    drain();
+                } catch (IOException e) {
+                    onError(e);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        drain();
+    }
+
+    /**
+     * Writes as much new output as the response will take without blocking
+     */
+    private synchronized void drain() throws IOException {
+        while (!done && out.isReady()) {
+            boolean closed = buffer.isClosed();
+            JobOutput.Slice slice = buffer.read(offset, MAX_WRITE);
+            if (slice.getBytes().length == 0) {
+                if (closed) {
+                    finish();
+                } else {
+                    out.flush();
+                }
+                return;
+            }
+            out.write(slice.getBytes());
+            offset = slice.getNextOffset();
+        }
+    }
+
+    private void finish() {
+        done = true;
+        buffer.removeListener(bufferListener);
+        context.complete();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        // Usually the client went away
+        LOGGER.info(String.format("Stopped following output: %s", t.getMessage()));
+        if (!done) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        buffer.removeListener(bufferListener);
+    }
+
+    @Override
+    public synchronized void onTimeout(AsyncEvent event) {
+        if (!done) {
+            finish();
+        }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        onError(event.getThrowable());
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
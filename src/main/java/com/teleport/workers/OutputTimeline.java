@@ -0,0 +1,114 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+
+/**
+ * Output Timeline class
+ * Records when each chunk of a job's stdout and stderr arrived, so clients can interleave the two streams again
+ * in the order the process wrote them. Each entry is the arrival time, the stream, and the absolute offset and
+ * length of the chunk in that stream's output.
+ *
+ * Entries are kept in a fixed size ring, once it's full the oldest ones are dropped. Recording runs on the
+ * threads filling the buffers, one per stream, so it's synchronized.
+ */
+public class OutputTimeline {
+
+    public final static int STDOUT = 0;
+    public final static int STDERR = 1;
+
+    private final static int DEFAULT_CAPACITY = 4096;
+
+    private final long[] times;
+    private final long[] offsets;
+    private final int[] lengths;
+    private final byte[] streams;
+    private final long[] recorded = new long[2];
+    private int start;
+    private int count;
+    private long dropped;
+
+    public OutputTimeline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OutputTimeline(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.times = new long[capacity];
+        this.offsets = new long[capacity];
+        this.lengths = new int[capacity];
+        this.streams = new byte[capacity];
+    }
+
+    /**
+     * Returns a listener that records whatever was added to the output since it last ran
+     */
+    public Runnable listenTo(JobOutput output, int stream) {
+        return () -> record(stream, output.getTotalBytes(), System.currentTimeMillis());
+    }
+
+    synchronized void record(int stream, long totalBytes, long time) {
+        long offset = recorded[stream];
+        if (totalBytes <= offset) {
+            return;
+        }
+        recorded[stream] = totalBytes;
+        int index;
+        if (count == times.length) {
+            index = start;
+            start = (start + 1) % times.length;
+            ++dropped;
+        } else {
+            index = (start + count++) % times.length;
+        }
+        times[index] = time;
+        offsets[index] = offset;
+        lengths[index] = (int) Math.min(totalBytes - offset, Integer.MAX_VALUE);
+        streams[index] = (byte) stream;
+    }
+
+    /**
+     * Receives the entries in arrival order
+     */
+    public interface Visitor {
+        void visit(long time, int stream, long offset, int length) throws IOException;
+    }
+
+    /**
+     * Visits a copy of the entries, so a slow visitor (like a response being written) never holds up the pumps
+     */
+    public void forEach(Visitor visitor) throws IOException {
+        long[] copyTimes;
+        long[] copyOffsets;
+        int[] copyLengths;
+        byte[] copyStreams;
+        synchronized (this) {
+            copyTimes = new long[count];
+            copyOffsets = new long[count];
+            copyLengths = new int[count];
+            copyStreams = new byte[count];
+            for (int i = 0; i < count; ++i) {
+                int index = (start + i) % times.length;
+                copyTimes[i] = times[index];
+                copyOffsets[i] = offsets[index];
+                copyLengths[i] = lengths[index];
+                copyStreams[i] = streams[index];
+            }
+        }
+        for (int i = 0; i < copyTimes.length; ++i) {
+            visitor.visit(copyTimes[i], copyStreams[i], copyOffsets[i], copyLengths[i]);
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Number of entries dropped because the ring was full
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,141 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Pipe Poller class
+ * Services the secondary pipes of running processes (their stderr) from a single shared thread, so capturing a
+ * second stream doesn't take a second pump per job. The thread copies whatever each pipe has available into its
+ * buffer without blocking, and backs off while all of them are quiet.
+ *
+ * Once the job's pump has read its stdout to the end it drains the pipe itself: drain() takes the pipe over from
+ * the poller and blocks until EOF, so nothing written right before the process exited is lost. The poller only
+ * ever tryLocks a pipe, so a pipe being drained is simply skipped.
+ */
+public class PipePoller {
+
+    private final static Logger LOGGER = Logger.getLogger(PipePoller.class.getName());
+    private final static int MAX_READ = 64 * 1024;
+    private final static long MIN_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private final static long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Set<Pipe> pipes;
+    private final Thread thread;
+
+    public PipePoller() {
+        this.pipes = ConcurrentHashMap.newKeySet();
+        this.thread = new Thread(this::run, "worker-pipe-poller");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * A pipe registered with the poller. Whoever holds the lock is the buffer's filling thread.
+     */
+    public class Pipe {
+        private final InputStream stream;
+        private final OutputBuffer buffer;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean done;
+
+        private Pipe(InputStream stream, OutputBuffer buffer) {
+            this.stream = stream;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Copies what's available right now, returns the number of bytes read
+         */
+        private long poll() {
+            if (!lock.tryLock()) {
+                return 0;
+            }
+            try {
+                if (done) {
+                    return 0;
+                }
+                int available = stream.available();
+                if (available <= 0) {
+                    return 0;
+                }
+                return buffer.readAvailable(stream, Math.min(available, MAX_READ));
+            } catch (IOException e) {
+                // The stream was closed under us, the pump will finish up
+                return 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Takes the pipe over from the poller and reads it to EOF on the calling thread
+         */
+        public long drain() throws IOException {
+            lock.lock();
+            try {
+                done = true;
+                pipes.remove(this);
+                return buffer.readFrom(stream);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Stops polling the pipe without reading any further, e.g. when the process was stopped
+         */
+        public void cancel() {
+            lock.lock();
+            try {
+                done = true;
+                pipes.remove(this);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts polling a pipe into the buffer
+     */
+    public Pipe register(InputStream stream, OutputBuffer buffer) {
+        Pipe pipe = new Pipe(stream, buffer);
+        pipes.add(pipe);
+        LockSupport.unpark(thread);
+        return pipe;
+    }
+
+    /**
+     * Number of pipes currently being polled
+     */
+    public int getPipeCount() {
+        return pipes.size();
+    }
+
+    private void run() {
+        long idleNanos = MIN_IDLE_NANOS;
+        while (true) {
+            if (pipes.isEmpty()) {
+                LockSupport.park(this);
+                continue;
+            }
+            long read = 0;
+            for (Pipe pipe : pipes) {
+                try {
+                    read += pipe.poll();
+                } catch (RuntimeException e) {
+                    LOGGER.warning(String.format("Exception while polling pipe: %s", e.getMessage()));
+                }
+            }
+            idleNanos = read > 0 ? MIN_IDLE_NANOS : Math.min(idleNanos * 2, MAX_IDLE_NANOS);
+            LockSupport.parkNanos(this, idleNanos);
+        }
+    }
+}
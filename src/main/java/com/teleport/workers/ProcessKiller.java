@@ -0,0 +1,95 @@
+package com.teleport.workers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Process Killer class
+ * Stops a process along with everything it started, without blocking the caller. The whole tree gets SIGTERM
+ * right away, and a single shared timer comes back after the grace period to SIGKILL whatever is still alive.
+ *
+ * The tree is captured before anything is signalled, since children are reparented once their parent dies and
+ * can't be found through it anymore. ProcessHandles check the start time before signalling, so a pid that was
+ * reused in the meantime is left alone.
+ */
+public class ProcessKiller {
+
+    private final static Logger LOGGER = Logger.getLogger(ProcessKiller.class.getName());
+
+    private static ProcessKiller defaultKiller;
+
+    private final ScheduledExecutorService timer;
+
+    public ProcessKiller(ScheduledExecutorService timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Killer used by Workers that weren't given one, with its own daemon timer thread
+     */
+    public static synchronized ProcessKiller getDefault() {
+        if (defaultKiller == null) {
+            defaultKiller = new ProcessKiller(Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "process-killer");
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+        return defaultKiller;
+    }
+
+    /**
+     * Sends SIGTERM to the process and its descendants and schedules SIGKILL for anything still alive after
+     * graceMillis. exited completes once the root process is gone, onEscalate runs if SIGKILL had to be sent.
+     */
+    public void stop(ProcessHandle root, CompletableFuture<?> exited, long graceMillis, Runnable onEscalate) {
+        List<ProcessHandle> tree = root.descendants().collect(Collectors.toList());
+        root.destroy();
+        for (ProcessHandle descendant : tree) {
+            descendant.destroy();
+        }
+        if (graceMillis <= 0) {
+            escalate(root, tree, exited, onEscalate);
+            return;
+        }
+        try {
+            timer.schedule(() -> escalate(root, tree, exited, onEscalate), graceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, don't leave anything running
+            escalate(root, tree, exited, onEscalate);
+        }
+    }
+
+    private void escalate(ProcessHandle root, List<ProcessHandle> tree, CompletableFuture<?> exited,
+        Runnable onEscalate) {
+
+        List<ProcessHandle> alive = new ArrayList<>();
+        if (!exited.isDone()) {
+            // Anything started during the grace period is killed too
+            root.descendants().forEach(alive::add);
+            alive.add(root);
+        }
+        for (ProcessHandle descendant : tree) {
+            if (descendant.isAlive()) {
+                descendant.descendants().forEach(alive::add);
+                alive.add(descendant);
+            }
+        }
+        if (alive.isEmpty()) {
+            return;
+        }
+        // Counted first, so it's visible by the time anyone waiting on the exit wakes up
+        onEscalate.run();
+        for (ProcessHandle process : alive) {
+            process.destroyForcibly();
+        }
+        LOGGER.info(String.format("Killed %d processes of %d that didn't stop in time", alive.size(), root.pid()));
+    }
+}
@@ -0,0 +1,161 @@
+package com.teleport.workers;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Pump Executor class
+ * Shared executor that runs the output pumps of Workers. Each running process needs something blocked on its
+ * output stream, so instead of a new Thread per Worker the pumps are handed to this executor.
+ *
+ * On JDKs with virtual threads every pump gets its own virtual thread, which is cheap enough to block on a pipe.
+ * Otherwise we fall back to a bounded pool of daemon platform threads that grows with load and shrinks again
+ * once threads have been idle for a while.
+ *
+ * Secondary streams (stderr) don't get a pump of their own, they're polled by one shared PipePoller thread
+ * until the job's pump has finished its stdout and drains them, so threads don't scale with 2x jobs.
+ *
+ * NOTE: With the platform fallback, pumps beyond the pool size wait in the executor queue. Their processes keep
+ * running but will block once the pipe buffer is full, until a pump thread frees up.
+ */
+public class PumpExecutor {
+
+    private final static Logger LOGGER = Logger.getLogger(PumpExecutor.class.getName());
+    private final static long IDLE_TIMEOUT_SECS = 60;
+
+    private static PumpExecutor defaultExecutor;
+
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final AtomicInteger activePumps;
+    private final LongAdder completedPumps;
+    private PipePoller poller;
+
+    private PumpExecutor(ExecutorService executor, boolean virtual) {
+        this.executor = executor;
+        this.virtual = virtual;
+        this.activePumps = new AtomicInteger();
+        this.completedPumps = new LongAdder();
+    }
+
+    /**
+     * Creates an executor using virtual threads when requested and supported by the running JDK,
+     * otherwise a platform thread pool capped at maxPlatformThreads
+     */
+    public static PumpExecutor create(boolean useVirtualThreads, int maxPlatformThreads) {
+        if (useVirtualThreads) {
+            ExecutorService virtualExecutor = newVirtualExecutor();
+            if (virtualExecutor != null) {
+                return new PumpExecutor(virtualExecutor, true);
+            }
+            LOGGER.info("Virtual threads unavailable, using platform pump threads");
+        }
+        return new PumpExecutor(newPlatformExecutor(maxPlatformThreads), false);
+    }
+
+    /**
+     * Executor used by Workers that weren't given one explicitly
+     */
+    public static synchronized PumpExecutor getDefault() {
+        if (defaultExecutor == null) {
+            JobManagerConfig config = new JobManagerConfig();
+            defaultExecutor = create(config.useVirtualPumps(), config.getMaxPumpThreads());
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Virtual thread executors only exist on newer JDKs, so look them up reflectively
+     * to keep compiling against older ones. Returns null when they're unavailable.
+     */
+    static ExecutorService newVirtualExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor(int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, "worker-pump-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_TIMEOUT_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Runs the pump, keeping track of how many are currently live
+     * Throws RejectedExecutionException if the executor has been shut down
+     */
+    public void submit(Runnable pump) {
+        activePumps.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    pump.run();
+                } finally {
+                    activePumps.decrementAndGet();
+                    completedPumps.increment();
+                }
+            });
+        } catch (RuntimeException e) {
+            activePumps.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Polls a secondary pipe into the buffer on the shared poller thread, which is started on first use
+     */
+    public PipePoller.Pipe poll(InputStream stream, OutputBuffer buffer) {
+        return getPoller().register(stream, buffer);
+    }
+
+    private synchronized PipePoller getPoller() {
+        if (poller == null) {
+            poller = new PipePoller();
+        }
+        return poller;
+    }
+
+    /**
+     * Number of secondary pipes being polled, pipes a pump is draining aren't counted
+     */
+    public synchronized int getPolledPipes() {
+        return poller == null ? 0 : poller.getPipeCount();
+    }
+
+    /**
+     * Number of pumps submitted and not yet finished, including ones waiting for a platform thread
+     */
+    public int getActivePumps() {
+        return activePumps.get();
+    }
+
+    public long getCompletedPumps() {
+        return completedPumps.sum();
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,208 @@
+package com.teleport.workers;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Resource Sampler class
+ * Reads CPU time, RSS and I/O of running jobs' process trees from /proc. A sample covers every running job in
+ * one pass: /proc/<pid>/stat is read once for every process on the host to find parents, then status and io
+ * only for the processes in a job's tree. Files are read into one reused buffer, so sampling doesn't depend on
+ * the number of jobs for threads and barely allocates.
+ *
+ * Only one thread (the JobManager's timer) may call sample().
+ */
+public class ResourceSampler {
+
+    private final static Logger LOGGER = Logger.getLogger(ResourceSampler.class.getName());
+    // USER_HZ, which is 100 on every Linux architecture the JDK runs on
+    private final static long CLOCK_TICKS_PER_SEC = 100;
+
+    private final Path proc;
+    private final byte[] buffer = new byte[8192];
+    private final Map<Long, List<Long>> children = new HashMap<>();
+    private final Map<Long, Long> cpuTicks = new HashMap<>();
+    private boolean warned;
+
+    public ResourceSampler(Path proc) {
+        this.proc = proc;
+    }
+
+    /**
+     * True if there's a /proc to read, i.e. we're on Linux
+     */
+    public boolean isSupported() {
+        return Files.isReadable(proc.resolve("self").resolve("stat"));
+    }
+
+    /**
+     * Samples the process trees rooted at the given pids into their jobs' usage
+     */
+    public void sample(Map<Job, Long> roots) {
+        if (roots.isEmpty()) {
+            return;
+        }
+        scanProcesses();
+        long now = System.currentTimeMillis();
+        List<Long> tree = new ArrayList<>();
+        for (Map.Entry<Job, Long> root : roots.entrySet()) {
+            tree.clear();
+            collectTree(root.getValue(), tree);
+            if (tree.isEmpty()) {
+                // Already gone
+                continue;
+            }
+            long ticks = 0;
+            long rss = 0;
+            long read = 0;
+            long written = 0;
+            for (long pid : tree) {
+                ticks += cpuTicks.get(pid);
+                Path directory = proc.resolve(Long.toString(pid));
+                int length = read(directory.resolve("status"));
+                rss += findValue(length, "VmRSS:") * 1024;
+                length = read(directory.resolve("io"));
+                read += findValue(length, "read_bytes:");
+                written += findValue(length, "write_bytes:");
+            }
+            root.getKey().getUsage().update(ticks * 1000 / CLOCK_TICKS_PER_SEC, rss, read, written, now);
+        }
+    }
+
+    /**
+     * Reads the parent and CPU time of every process, including what its reaped children used
+     */
+    private void scanProcesses() {
+        children.clear();
+        cpuTicks.clear();
+        try (DirectoryStream<Path> processes = Files.newDirectoryStream(proc)) {
+            for (Path directory : processes) {
+                String name = directory.getFileName().toString();
+                if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                    continue;
+                }
+                int length = read(directory.resolve("stat"));
+                if (length <= 0) {
+                    continue;
+                }
+                // The command can contain spaces and parentheses, fields are counted from the last ')'
+                int position = lastIndexOf(length, ')') + 2;
+                long pid = Long.parseLong(name);
+                long ppid = 0;
+                long ticks = 0;
+                for (int field = 3; field <= 17 && position < length; ++field) {
+                    int end = position;
+                    while (end < length && buffer[end] != ' ') {
+                        ++end;
+                    }
+                    if (field == 4) {
+                        ppid = parseLong(position, end);
+                    } else if (field >= 14) {
+                        // utime, stime, cutime and cstime
+                        ticks += parseLong(position, end);
+                    }
+                    position = end + 1;
+                }
+                children.computeIfAbsent(ppid, parent -> new ArrayList<>()).add(pid);
+                cpuTicks.put(pid, ticks);
+            }
+        } catch (IOException e) {
+            if (!warned) {
+                warned = true;
+                LOGGER.warning(String.format("Could not scan %s: %s", proc, e.getMessage()));
+            }
+        }
+    }
+
+    private void collectTree(long pid, List<Long> tree) {
+        if (!cpuTicks.containsKey(pid)) {
+            return;
+        }
+        tree.add(pid);
+        for (int i = tree.size() - 1; i < tree.size(); ++i) {
+            List<Long> descendants = children.get(tree.get(i));
+            if (descendants != null) {
+                tree.addAll(descendants);
+            }
+        }
+    }
+
+    /**
+     * Reads a small /proc file into the buffer and returns its length, or -1 if the process is gone or the file
+     * isn't readable (io needs the same user or ptrace access)
+     */
+    private int read(Path path) {
+        try (FileInputStream in = new FileInputStream(path.toFile())) {
+            int length = 0;
+            int count;
+            while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Value of a "key: value" line in the buffer, or 0 if it isn't there
+     */
+    private long findValue(int length, String key) {
+        for (int line = 0; line < length; ) {
+            if (startsWith(line, length, key)) {
+                int position = line + key.length();
+                while (position < length && (buffer[position] == ' ' || buffer[position] == '\t')) {
+                    ++position;
+                }
+                int end = position;
+                while (end < length && buffer[end] >= '0' && buffer[end] <= '9') {
+                    ++end;
+                }
+                return parseLong(position, end);
+            }
+            while (line < length && buffer[line] != '\n') {
+                ++line;
+            }
+            ++line;
+        }
+        return 0;
+    }
+
+    private boolean startsWith(int offset, int length, String key) {
+        if (offset + key.length() > length) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); ++i) {
+            if (buffer[offset + i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int lastIndexOf(int length, char c) {
+        for (int i = length - 1; i >= 0; --i) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private long parseLong(int start, int end) {
+        long value = 0;
+        boolean negative = start < end && buffer[start] == '-';
+        for (int i = negative ? start + 1 : start; i < end; ++i) {
+            value = value * 10 + (buffer[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+}
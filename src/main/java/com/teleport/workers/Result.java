@@ -1,23 +1,156 @@
 package com.teleport.workers;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
 /**
  * Result class
  * Immutable object that contains the corresponding output/error for an associated job
+ * Stderr is kept apart from stdout unless the Worker merged the two.
+ *
+ * Output is kept as the raw bytes the process wrote, on the heap or in a spool file. Decoding to a String only
+ * happens when getOutput() is first called, and the decoded String is cached after that.
+ *
+ * The JobManager can swap heap output for a CompressedOutput of the same bytes once the job is done, which also
+ * drops the cached Strings.
  */
 public class Result {
 
-    private String output;
+    private volatile JobOutput buffer;
+    private volatile JobOutput errorBuffer;
+    private volatile String output;
+    private volatile String errorOutput;
 
     /**
     * Result constructor
     * Each Result must have an output/error string
-    * Note: Error output is merged with standard output
+    * Note: Error output is merged with standard output here, see Result(JobOutput, JobOutput)
     */
     public Result(String output) {
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        OutputBuffer buffer = new OutputBuffer(bytes.length, OutputBuffer.Retain.HEAD);
+        buffer.write(bytes, 0, bytes.length);
+        buffer.close();
+        this.buffer = buffer;
+        this.errorBuffer = null;
         this.output = output;
     }
 
+    /**
+    * Wraps output filled by a Worker. The output is closed so the Result can't change afterwards.
+    */
+    public Result(JobOutput buffer) {
+        this(buffer, null);
+    }
+
+    /**
+    * Wraps stdout and separately captured stderr, which is null when it was merged into stdout
+    */
+    public Result(JobOutput buffer, JobOutput errorBuffer) {
+        buffer.close();
+        if (errorBuffer != null) {
+            errorBuffer.close();
+        }
+        this.buffer = buffer;
+        this.errorBuffer = errorBuffer;
+    }
+
+    /**
+    * Replaces the output with the same bytes held differently, see Job.replaceOutput()
+    */
+    void replaceOutput(JobOutput buffer, JobOutput errorBuffer) {
+        this.buffer = buffer;
+        this.errorBuffer = errorBuffer;
+        this.output = null;
+        this.errorOutput = null;
+    }
+
+    /**
+    * Output decoded as UTF-8, without the final line terminator
+    */
     public String getOutput() {
-        return output;
+        String decoded = output;
+        if (decoded == null) {
+            decoded = decode(getBytes());
+            output = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+    * Stderr decoded like getOutput(), or null if it was merged into the output
+    */
+    public String getErrorOutput() {
+        JobOutput errors = errorBuffer;
+        if (errors == null) {
+            return null;
+        }
+        String decoded = errorOutput;
+        if (decoded == null) {
+            try {
+                decoded = decode(errors.toByteArray());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            errorOutput = decoded;
+        }
+        return decoded;
+    }
+
+    private static String decode(byte[] bytes) {
+        String decoded = new String(bytes, StandardCharsets.UTF_8);
+        if (decoded.endsWith("\n")) {
+            decoded = decoded.substring(0, decoded.length() - 1);
+        }
+        return decoded;
+    }
+
+    /**
+    * Copy of the raw output bytes
+    * Throws UncheckedIOException if spooled output can't be read back
+    */
+    public byte[] getBytes() {
+        try {
+            return buffer.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public JobOutput getJobOutput() {
+        return buffer;
+    }
+
+    /**
+    * Separately captured stderr, null if it was merged into the output
+    */
+    public JobOutput getErrorJobOutput() {
+        return errorBuffer;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+        buffer.writeTo(stream);
+    }
+
+    /**
+    * Number of output bytes held, which is less than getTotalBytes() if the output was truncated
+    */
+    public long size() {
+        return buffer.size();
+    }
+
+    public long getTotalBytes() {
+        return buffer.getTotalBytes();
+    }
+
+    public boolean isTruncated() {
+        return buffer.isTruncated();
+    }
+
+    public boolean isErrorTruncated() {
+        JobOutput errors = errorBuffer;
+        return errors != null && errors.isTruncated();
     }
 }
@@ -0,0 +1,118 @@
+package com.teleport.workers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+
+/**
+ * Result Cache class
+ * Lets clients that run the same read-only command over and over (status probes, inventory scripts) reuse a
+ * recent result instead of starting a new process. Entries map a command, as split by Job, to the id of the
+ * last job that ran it. A lookup returns that job if it finished within the caller's max age, or if it's still
+ * queued or running, so identical submissions arriving together share one process (single flight).
+ *
+ * Only ids are kept, the jobs themselves live in the JobManager and are evicted by its retention as usual, which
+ * turns their entries into misses. The cache holds at most maxEntries commands in least recently used order and
+ * entries are never used past maxAgeMillis.
+ */
+public class ResultCache {
+
+    private final int maxEntries;
+    private final long maxAgeMillis;
+    private final LongFunction<Job> jobs;
+    private final Metrics.Counter hits;
+    private final Metrics.Counter coalesced;
+    private final Metrics.Counter misses;
+
+    // Guarded by this, in access order so the eldest entry is the least recently used
+    private final LinkedHashMap<List<String>, Long> entries;
+
+    /**
+     * Submits a job and returns its id, throwing RejectedExecutionException if it can't be queued
+     */
+    public interface Submitter {
+        long submit(Job job);
+    }
+
+    /**
+     * jobs looks up a job by id, returning null once it was evicted
+     */
+    public ResultCache(int maxEntries, long maxAgeMillis, LongFunction<Job> jobs, Metrics metrics) {
+        if (maxEntries < 0) {
+            throw new IllegalArgumentException("maxEntries can't be negative");
+        }
+        this.maxEntries = maxEntries;
+        this.maxAgeMillis = maxAgeMillis;
+        this.jobs = jobs;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = metrics.counter("worker_result_cache_hits_total",
+            "Cacheable jobs answered with a recent result instead of a new process");
+        this.coalesced = metrics.counter("worker_result_cache_coalesced_total",
+            "Cacheable jobs joined onto an identical job that was already queued or running");
+        this.misses = metrics.counter("worker_result_cache_misses_total", "Cacheable jobs that started a new process");
+    }
+
+    /**
+     * Returns the id of a job that ran the same command and finished at most maxAgeMillis ago or is still in
+     * flight, otherwise submits the job and remembers it. Only FINISHED jobs count as results, a command that
+     * failed or was stopped runs again.
+     */
+    public synchronized long get(Job job, long maxAgeMillis, long now, Submitter submitter) {
+        List<String> command = job.getCommand();
+        Long cachedId = entries.get(command);
+        if (cachedId != null) {
+            Job cached = jobs.apply(cachedId);
+            if (cached != null && !cached.isDone()) {
+                coalesced.increment();
+                return cachedId;
+            }
+            long maxAge = Math.min(maxAgeMillis, this.maxAgeMillis);
+            if (cached != null && cached.getStatus() == Job.JobStatus.FINISHED
+                && now - cached.getStatusTime(Job.JobStatus.FINISHED) <= maxAge) {
+                hits.increment();
+                return cachedId;
+            }
+            entries.remove(command);
+        }
+
+        long id = submitter.submit(job);
+        misses.increment();
+        if (id == -1) {
+            return id;
+        }
+        entries.put(command, id);
+        Iterator<Long> eldest = entries.values().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            eldest.next();
+            eldest.remove();
+        }
+        return id;
+    }
+
+    /**
+     * Drops entries whose job is gone or finished longer than maxAgeMillis ago
+     */
+    public synchronized void expire(long now) {
+        Iterator<Map.Entry<List<String>, Long>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Job job = jobs.apply(iterator.next().getValue());
+            if (job == null || (job.isDone() && now - doneAt(job) > maxAgeMillis)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long doneAt(Job job) {
+        long finished = job.getStatusTime(Job.JobStatus.FINISHED);
+        if (finished > 0) {
+            return finished;
+        }
+        return Math.max(job.getStatusTime(Job.JobStatus.STOPPED), job.getStatusTime(Job.JobStatus.ERROR));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
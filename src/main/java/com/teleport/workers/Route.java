@@ -0,0 +1,126 @@
+package com.teleport.workers;
+
+/**
+ * Route class
+ * Endpoint and argument of a /worker/endpoint[/argument] request URI. The URI is scanned in place instead of being
+ * split, and ids are parsed digit by digit, so routing a request only allocates the Route itself.
+ *
+ * Endpoint and action are the constants below, never copies, so they can be compared with ==. A trailing slash
+ * is ignored; anything after the argument, or an endpoint that isn't listed, gives a route with a null endpoint.
+ */
+final class Route {
+
+    final static String START = "start";
+    final static String QUERY = "query";
+    final static String STOP = "stop";
+    final static String OUTPUT = "output";
+    final static String WAIT = "wait";
+    final static String BATCH = "batch";
+    final static String METRICS = "metrics";
+    final static String EVENTS = "events";
+    final static String[] ENDPOINTS = {START, QUERY, STOP, OUTPUT, WAIT, BATCH, METRICS, EVENTS};
+    private final static String[] ACTIONS = {START, QUERY, STOP};
+    private final static int MAX_ID_DIGITS = 19;
+    private final static Route UNKNOWN = new Route(null, false, -1, null);
+
+    private final String endpoint;
+    private final boolean argument;
+    private final long id;
+    private final String action;
+
+    private Route(String endpoint, boolean argument, long id, String action) {
+        this.endpoint = endpoint;
+        this.argument = argument;
+        this.id = id;
+        this.action = action;
+    }
+
+    /**
+     * Parses a request URI, skipping its first segment (/worker)
+     */
+    static Route parse(String uri) {
+        int start = uri.indexOf('/', 1) + 1;
+        if (start == 0) {
+            return UNKNOWN;
+        }
+        int end = segmentEnd(uri, start);
+        String endpoint = match(uri, start, end, ENDPOINTS);
+        if (endpoint == null) {
+            return UNKNOWN;
+        }
+        if (end >= uri.length() - 1) {
+            return new Route(endpoint, false, -1, null);
+        }
+
+        start = end + 1;
+        end = segmentEnd(uri, start);
+        if (end < uri.length() - 1) {
+            return UNKNOWN;
+        }
+        return new Route(endpoint, true, parseId(uri, start, end), match(uri, start, end, ACTIONS));
+    }
+
+    private static int segmentEnd(String uri, int start) {
+        int end = uri.indexOf('/', start);
+        return end < 0 ? uri.length() : end;
+    }
+
+    private static String match(String uri, int start, int end, String[] names) {
+        for (String name : names) {
+            if (name.length() == end - start && uri.startsWith(name, start)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Non-negative decimal id, -1 for anything else. Generated ids already have 18 digits and reach 19 in 2028,
+     * so anything up to Long.MAX_VALUE is accepted and larger numbers are rejected rather than overflowing.
+     */
+    private static long parseId(String uri, int start, int end) {
+        if (end == start || end - start > MAX_ID_DIGITS) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = start; i < end; ++i) {
+            char c = uri.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            if (id > (Long.MAX_VALUE - (c - '0')) / 10) {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+        }
+        return id;
+    }
+
+    /**
+     * One of ENDPOINTS, or null if the URI doesn't name one
+     */
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * Whether there's a segment after the endpoint
+     */
+    boolean hasArgument() {
+        return argument;
+    }
+
+    /**
+     * The argument as a job id, -1 if there's none or it isn't a number
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * The argument as a batch action (START, QUERY or STOP), null otherwise
+     */
+    String getAction() {
+        return action;
+    }
+}
@@ -0,0 +1,616 @@
+package com.teleport.workers;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Shard Router class
+ * Serves the /worker/* API in front of several worker instances, each running its own JobManager as one shard.
+ * Shard i is the i-th base URL in router.shards and has to be started with shard.id=i and shard.bits set to the
+ * bits needed to number all the shards (1 for two shards, 2 for up to four...), so every job id ends in the shard
+ * that owns it (see JobIds) and the router keeps no state per job.
+ *
+ * Query, stop, output and wait requests are forwarded to the shard in the job's id. Starts go to the least loaded
+ * shard: its running plus queued jobs, polled from its metrics every router.loadIntervalMillis, plus the jobs sent
+ * to it since. A shard that can't be reached is skipped until a poll reaches it again, and a start that couldn't
+ * connect is retried on the next shard. Batch queries and stops by id are split by shard and merged back in request
+ * order, stops by status or command prefix go to every shard. Event streams are forwarded when all the requested
+ * ids belong to one shard.
+ *
+ * Forwarding uses blocking HttpURLConnections and copies the response through as it arrives, so a followed output,
+ * wait or event stream holds a router thread for as long as it's open. java.net.http would need Java 11, newer than
+ * the pom's release of 9.
+ */
+public class ShardRouter extends HttpServlet {
+
+    private final static Logger LOGGER = Logger.getLogger(ShardRouter.class.getName());
+    private final static String shards_param = "router.shards";
+    private final static String load_interval_param = "router.loadIntervalMillis";
+    private final static String connect_timeout_param = "router.connectTimeoutMillis";
+    private final static String read_timeout_param = "router.readTimeoutMillis";
+    private final static String file_paths_key = "file_paths";
+    private final static String ids_key = "ids";
+    private final static String jobs_key = "jobs";
+    private final static String stopped_key = "stopped";
+    private final static String status_key = "status";
+    private final static String command_prefix_key = "command_prefix";
+    private final static String[] RELAYED_HEADERS = {"Content-Encoding", "Vary", "Retry-After", "Cache-Control"};
+    private final static String RUNNING_GAUGE = "worker_jobs_running ";
+    private final static String QUEUED_GAUGE = "worker_jobs_queued ";
+    private final static long UNAVAILABLE = Long.MAX_VALUE;
+    private final static int BUFFER_SIZE = 8192;
+
+    private String[] shards;
+    private int shardBits;
+    private int connectTimeoutMillis;
+    private int readTimeoutMillis;
+    // Load as last polled, and jobs started on each shard since
+    private AtomicLongArray load;
+    private AtomicLongArray started;
+    private ScheduledExecutorService poller;
+    private Metrics metrics;
+    private Metrics.Counter[] forwarded;
+    private Metrics.Counter[] failures;
+    private byte[] invalidRequest;
+    private byte[] jobNotFound;
+    private byte[] shardUnavailable;
+    private byte[] crossShardEvents;
+
+    @Override
+    public void init() throws ServletException {
+        String list = getInitParameter(shards_param);
+        List<String> urls = new ArrayList<>();
+        if (list != null) {
+            for (String url : list.split(",")) {
+                url = url.trim();
+                if (!url.isEmpty()) {
+                    urls.add(url.endsWith("/") ? url.substring(0, url.length() - 1) : url);
+                }
+            }
+        }
+        if (urls.isEmpty()) {
+            throw new ServletException(shards_param + " must list the base URL of every shard");
+        }
+        shards = urls.toArray(new String[0]);
+        shardBits = shardBits(shards.length);
+        if (shardBits > JobIds.MAX_SHARD_BITS) {
+            throw new ServletException("At most " + (1 << JobIds.MAX_SHARD_BITS) + " shards are supported");
+        }
+        connectTimeoutMillis = getIntParameter(connect_timeout_param, 2000);
+        readTimeoutMillis = getIntParameter(read_timeout_param, 60000);
+        invalidRequest = JsonWriter.toBytes(0, "error", "invalid request");
+        jobNotFound = JsonWriter.toBytes(0, "error", "job does not exist");
+        shardUnavailable = JsonWriter.toBytes(0, "error", "shard unavailable");
+        crossShardEvents = JsonWriter.toBytes(0, "error", "events can only be streamed for jobs of one shard");
+
+        load = new AtomicLongArray(shards.length);
+        started = new AtomicLongArray(shards.length);
+        metrics = new Metrics();
+        forwarded = new Metrics.Counter[shards.length];
+        failures = new Metrics.Counter[shards.length];
+        for (int i = 0; i < shards.length; ++i) {
+            forwarded[i] = metrics.counter("worker_router_forwarded_total", shardLabel(i),
+                "Requests forwarded to each shard");
+        }
+        for (int i = 0; i < shards.length; ++i) {
+            failures[i] = metrics.counter("worker_router_failures_total", shardLabel(i),
+                "Requests and load polls that couldn't reach each shard");
+        }
+        for (int i = 0; i < shards.length; ++i) {
+            int shard = i;
+            metrics.gauge("worker_router_shard_load", shardLabel(i),
+                "Running and queued jobs of each shard as last polled, -1 if it's unreachable",
+                () -> load.get(shard) == UNAVAILABLE ? -1 : load.get(shard));
+        }
+
+        long intervalMillis = getIntParameter(load_interval_param, 1000);
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "router-load-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::pollLoad, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() {
+        poller.shutdownNow();
+    }
+
+    /**
+     * Bits needed to tell count shards apart, what every shard's shard.bits has to be
+     */
+    static int shardBits(int count) {
+        return 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    private static String shardLabel(int shard) {
+        return "shard=\"" + shard + "\"";
+    }
+
+    private int getIntParameter(String name, int defaultValue) {
+        String value = getInitParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Load is read from the worker_jobs_running and worker_jobs_queued gauges of each shard's metrics
+     */
+    private void pollLoad() {
+        for (int i = 0; i < shards.length; ++i) {
+            long polled = UNAVAILABLE;
+            try {
+                polled = fetchLoad(i);
+            } catch (IOException | NumberFormatException e) {
+                failures[i].increment();
+                if (load.get(i) != UNAVAILABLE) {
+                    LOGGER.warning(String.format("Shard %d at %s is unavailable: %s", i, shards[i], e.getMessage()));
+                }
+            }
+            load.set(i, polled);
+            started.set(i, 0);
+        }
+    }
+
+    private long fetchLoad(int shard) throws IOException {
+        HttpURLConnection connection = open(shard, "/worker/metrics", readTimeoutMillis);
+        long running = 0;
+        long queued = 0;
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith(RUNNING_GAUGE)) {
+                    running = Long.parseLong(line.substring(RUNNING_GAUGE.length()).trim());
+                } else if (line.startsWith(QUEUED_GAUGE)) {
+                    queued = Long.parseLong(line.substring(QUEUED_GAUGE.length()).trim());
+                }
+            }
+        }
+        return running + queued;
+    }
+
+    /**
+     * Reachable shard with the least running and queued jobs, counting starts since the last poll. -1 if there's
+     * none.
+     */
+    private int leastLoaded() {
+        int best = -1;
+        long bestLoad = UNAVAILABLE;
+        for (int i = 0; i < shards.length; ++i) {
+            long polled = load.get(i);
+            if (polled != UNAVAILABLE && polled + started.get(i) < bestLoad) {
+                best = i;
+                bestLoad = polled + started.get(i);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Helper functions
+     */
+
+    private static void sendJson(HttpServletResponse response, byte[] body) throws IOException {
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(body.length);
+        OutputStream out = response.getOutputStream();
+        out.write(body);
+        out.flush();
+    }
+
+    private void sendShardUnavailable(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+        sendJson(response, shardUnavailable);
+    }
+
+    private static String pathOf(HttpServletRequest request) {
+        String query = request.getQueryString();
+        return query == null ? request.getRequestURI() : request.getRequestURI() + "?" + query;
+    }
+
+    private static byte[] readBody(HttpServletRequest request) throws IOException {
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader = request.getReader()) {
+            char[] buffer = new char[BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                body.append(buffer, 0, read);
+            }
+        }
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private HttpURLConnection open(int shard, String path, int readTimeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(shards[shard] + path).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /**
+     * Sends a request to a shard and waits for its status line, without touching our response. readTimeout is 0 for
+     * requests that stay open. A gzip Accept-Encoding is passed on, so compressed bodies are relayed as they are.
+     */
+    private HttpURLConnection send(int shard, String method, String path, String acceptEncoding, byte[] body,
+        int readTimeout) throws IOException {
+
+        HttpURLConnection connection = open(shard, path, readTimeout);
+        connection.setRequestMethod(method);
+        if (acceptEncoding != null) {
+            connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        }
+        try {
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setFixedLengthStreamingMode(body.length);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body);
+                }
+            }
+            connection.getResponseCode();
+        } catch (IOException e) {
+            failures[shard].increment();
+            connection.disconnect();
+            throw e;
+        }
+        forwarded[shard].increment();
+        return connection;
+    }
+
+    /**
+     * Copies a shard's response through: status, headers and body, flushing whenever the shard has nothing more
+     * buffered so streamed responses arrive as they're written
+     */
+    private static void relay(HttpURLConnection connection, HttpServletResponse response) throws IOException {
+        int status = connection.getResponseCode();
+        response.setStatus(status);
+        if (connection.getContentType() != null) {
+            response.setContentType(connection.getContentType());
+        }
+        for (String header : RELAYED_HEADERS) {
+            String value = connection.getHeaderField(header);
+            if (value != null) {
+                response.setHeader(header, value);
+            }
+        }
+        for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+            // The status line has no name
+            if (header.getKey() != null && header.getKey().startsWith("X-")) {
+                response.setHeader(header.getKey(), header.getValue().get(0));
+            }
+        }
+        long length = connection.getContentLengthLong();
+        if (length >= 0) {
+            response.setContentLengthLong(length);
+        }
+
+        InputStream in = status >= HttpServletResponse.SC_BAD_REQUEST ? connection.getErrorStream()
+            : connection.getInputStream();
+        if (in == null) {
+            return;
+        }
+        try (InputStream body = in) {
+            OutputStream out = response.getOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (body.available() == 0) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sends a JSON request to a shard and parses its JSON answer, for requests whose answers are merged
+     */
+    private JSONObject exchange(int shard, String path, JSONObject request) throws IOException, JSONException {
+        HttpURLConnection connection = send(shard, "POST", path, null,
+            request.toString().getBytes(StandardCharsets.UTF_8), readTimeoutMillis);
+        try {
+            if (connection.getResponseCode() != HttpServletResponse.SC_OK) {
+                throw new IOException("Shard answered " + connection.getResponseCode());
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (InputStream in = connection.getInputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+            }
+            return new JSONObject(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Routes GET and POST requests like the APIServer does, by a Route parsed once
+     */
+    @Override
+    protected void service(HttpServletRequest request, HttpServletResponse response)
+        throws ServletException, IOException {
+
+        Route route = Route.parse(request.getRequestURI());
+        String method = request.getMethod();
+        if (method.equals("GET")) {
+            doGet(request, response, route);
+        } else if (method.equals("POST")) {
+            doPost(request, response, route);
+        } else {
+            super.service(request, response);
+        }
+    }
+
+    /**
+     * GET endpoints, forwarded to the shard owning the job
+     */
+    private void doGet(HttpServletRequest request, HttpServletResponse response, Route route) throws IOException {
+        // Route endpoints are constants, so they compare by reference
+        String endpoint = route.getEndpoint();
+        if (endpoint == Route.METRICS && !route.hasArgument()) {
+            response.setContentType("text/plain; version=0.0.4");
+            response.setCharacterEncoding("UTF-8");
+            PrintWriter out = response.getWriter();
+            metrics.writePrometheus(out);
+            out.flush();
+            return;
+        }
+        if (endpoint == Route.EVENTS && !route.hasArgument()) {
+            doGetEvents(request, response);
+            return;
+        }
+
+        long id = route.getId();
+        if (id < 0 || (endpoint != Route.QUERY && endpoint != Route.STOP && endpoint != Route.OUTPUT
+            && endpoint != Route.WAIT)) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+        int shard = JobIds.shardOf(id, shardBits);
+        if (shard >= shards.length) {
+            sendJson(response, jobNotFound);
+            return;
+        }
+        // Waits and followed output stay open for as long as the shard keeps them open
+        boolean open = endpoint == Route.WAIT
+            || (endpoint == Route.OUTPUT && Boolean.parseBoolean(request.getParameter("follow")));
+        forward(request, response, shard, null, open ? 0 : readTimeoutMillis);
+    }
+
+    /**
+     * Event streams for ids of a single shard, or for everything when there's only one
+     */
+    private void doGetEvents(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String idList = request.getParameter("ids");
+        int shard = shards.length == 1 ? 0 : -1;
+        if (idList != null) {
+            try {
+                for (String id : idList.split(",")) {
+                    int owner = JobIds.shardOf(Long.parseLong(id.trim()), shardBits);
+                    if (shard >= 0 && owner != shard) {
+                        shard = -1;
+                        break;
+                    }
+                    shard = owner;
+                }
+            } catch (NumberFormatException e) {
+                sendJson(response, invalidRequest);
+                return;
+            }
+        }
+        if (shard < 0 || shard >= shards.length) {
+            sendJson(response, crossShardEvents);
+            return;
+        }
+        forward(request, response, shard, null, 0);
+    }
+
+    private void forward(HttpServletRequest request, HttpServletResponse response, int shard, byte[] body,
+        int readTimeout) throws IOException {
+
+        HttpURLConnection connection;
+        try {
+            connection = send(shard, request.getMethod(), pathOf(request), request.getHeader("Accept-Encoding"),
+                body, readTimeout);
+        } catch (IOException e) {
+            LOGGER.warning(String.format("Couldn't forward %s to shard %d: %s", request.getRequestURI(), shard,
+                e.getMessage()));
+            sendShardUnavailable(response);
+            return;
+        }
+        relay(connection, response);
+    }
+
+    /**
+     * POST endpoints
+     */
+    private void doPost(HttpServletRequest request, HttpServletResponse response, Route route) throws IOException {
+        boolean start = route.getEndpoint() == Route.START && !route.hasArgument();
+        boolean batch = route.getEndpoint() == Route.BATCH && route.getAction() != null;
+        if (!start && !batch) {
+            sendJson(response, invalidRequest);
+            return;
+        }
+
+        byte[] body = readBody(request);
+        try {
+            if (start) {
+                doPostStart(request, response, body, 1);
+            } else if (route.getAction() == Route.START) {
+                JSONObject requestData = new JSONObject(new String(body, StandardCharsets.UTF_8));
+                doPostStart(request, response, body, requestData.getJSONArray(file_paths_key).length());
+            } else if (route.getAction() == Route.QUERY) {
+                doPostBatchQuery(response, new JSONObject(new String(body, StandardCharsets.UTF_8)));
+            } else {
+                doPostBatchStop(response, new JSONObject(new String(body, StandardCharsets.UTF_8)));
+            }
+        } catch (JSONException e) {
+            LOGGER.warning(String.format("Exception while retrieving request data: %s", e.getMessage()));
+            sendJson(response, invalidRequest);
+        }
+    }
+
+    /**
+     * Starts go to the least loaded shard. Only a start that couldn't connect is retried elsewhere, once the
+     * request was sent the shard may have started the job.
+     */
+    private void doPostStart(HttpServletRequest request, HttpServletResponse response, byte[] body, int jobs)
+        throws IOException {
+
+        for (int attempt = 0; attempt < shards.length; ++attempt) {
+            int shard = leastLoaded();
+            if (shard < 0) {
+                break;
+            }
+            started.addAndGet(shard, jobs);
+            HttpURLConnection connection;
+            try {
+                connection = send(shard, "POST", pathOf(request), request.getHeader("Accept-Encoding"), body,
+                    readTimeoutMillis);
+            } catch (ConnectException e) {
+                LOGGER.warning(String.format("Shard %d is unavailable: %s", shard, e.getMessage()));
+                load.set(shard, UNAVAILABLE);
+                continue;
+            } catch (IOException e) {
+                LOGGER.warning(String.format("Couldn't forward start to shard %d: %s", shard, e.getMessage()));
+                break;
+            }
+            relay(connection, response);
+            return;
+        }
+        sendShardUnavailable(response);
+    }
+
+    /**
+     * Splits the ids by shard, queries each shard for its own and answers in the order asked. Ids of shards that
+     * can't be reached get an error instead of the job.
+     */
+    private void doPostBatchQuery(HttpServletResponse response, JSONObject requestData)
+        throws JSONException, IOException {
+
+        JSONArray ids = requestData.getJSONArray(ids_key);
+        JSONObject[] jobs = new JSONObject[ids.length()];
+        List<List<Integer>> positions = splitByShard(ids);
+        for (int shard = 0; shard < shards.length; ++shard) {
+            List<Integer> owned = positions.get(shard);
+            if (owned.isEmpty()) {
+                continue;
+            }
+            JSONArray shardIds = new JSONArray();
+            for (int position : owned) {
+                shardIds.put(ids.getLong(position));
+            }
+            JSONArray answered = null;
+            try {
+                answered = exchange(shard, "/worker/batch/query", requestData.put(ids_key, shardIds))
+                    .getJSONArray(jobs_key);
+            } catch (IOException | JSONException e) {
+                LOGGER.warning(String.format("Couldn't query shard %d: %s", shard, e.getMessage()));
+            }
+            for (int i = 0; i < owned.size(); ++i) {
+                jobs[owned.get(i)] = answered != null ? answered.getJSONObject(i)
+                    : new JSONObject().put("id", shardIds.getLong(i)).put("error", "shard unavailable");
+            }
+        }
+        for (int i = 0; i < jobs.length; ++i) {
+            if (jobs[i] == null) {
+                jobs[i] = new JSONObject().put("id", ids.getLong(i)).put("error", "job does not exist");
+            }
+        }
+        sendJson(response, new JSONObject().put(jobs_key, new JSONArray(jobs)).toString()
+            .getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Stops by id go to the shards owning them, stops by status or command prefix to every shard, with the stopped
+     * counts added up. Shards that couldn't be reached or didn't answer with JSON are listed in "unavailable_shards".
+     */
+    private void doPostBatchStop(HttpServletResponse response, JSONObject requestData)
+        throws JSONException, IOException {
+
+        boolean byId = !requestData.has(status_key) && !requestData.has(command_prefix_key);
+        List<List<Integer>> positions = byId ? splitByShard(requestData.getJSONArray(ids_key)) : null;
+        JSONArray ids = byId ? requestData.getJSONArray(ids_key) : null;
+        JSONObject result = new JSONObject();
+        JSONArray unavailable = new JSONArray();
+        long stopped = 0;
+        for (int shard = 0; shard < shards.length; ++shard) {
+            if (byId) {
+                List<Integer> owned = positions.get(shard);
+                if (owned.isEmpty()) {
+                    continue;
+                }
+                JSONArray shardIds = new JSONArray();
+                for (int position : owned) {
+                    shardIds.put(ids.getLong(position));
+                }
+                requestData.put(ids_key, shardIds);
+            }
+            try {
+                stopped += exchange(shard, "/worker/batch/stop", requestData).optLong(stopped_key, 0);
+            } catch (IOException | JSONException e) {
+                LOGGER.warning(String.format("Couldn't stop jobs on shard %d: %s", shard, e.getMessage()));
+                unavailable.put(shard);
+            }
+        }
+        if (!byId) {
+            result.put(stopped_key, stopped);
+        }
+        if (unavailable.length() > 0) {
+            result.put("unavailable_shards", unavailable);
+        }
+        sendJson(response, result.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Positions of the ids owned by each shard, ids naming a shard that doesn't exist are left out
+     */
+    private List<List<Integer>> splitByShard(JSONArray ids) throws JSONException {
+        List<List<Integer>> positions = new ArrayList<>(shards.length);
+        for (int i = 0; i < shards.length; ++i) {
+            positions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < ids.length(); ++i) {
+            int shard = JobIds.shardOf(ids.getLong(i), shardBits);
+            if (shard < shards.length) {
+                positions.get(shard).add(i);
+            }
+        }
+        return positions;
+    }
+}
@@ -0,0 +1,86 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Spool Directory class
+ * Creates the spool files jobs write their output to, and polls the ones being followed so readers hear about
+ * new output. Files are deleted when their job is evicted, see JobRetention for the size cap on spooled output.
+ *
+ * Spool files left behind by an earlier run are deleted on startup since nothing refers to them anymore, unless
+ * they're kept for jobs recovered from the JobJournal.
+ */
+public class SpoolDirectory {
+
+    private final static Logger LOGGER = Logger.getLogger(SpoolDirectory.class.getName());
+    private final static String PREFIX = "job-";
+    private final static String SUFFIX = ".out";
+    private final static long POLL_INTERVAL_MILLIS = 200;
+
+    private final Path directory;
+    private final Set<SpoolFile> active;
+
+    public SpoolDirectory(Path directory, ScheduledExecutorService timer) throws IOException {
+        this(directory, Collections.emptySet(), timer);
+    }
+
+    /**
+     * Spool files in keep aren't deleted as stale
+     */
+    public SpoolDirectory(Path directory, Set<Path> keep, ScheduledExecutorService timer) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.active = ConcurrentHashMap.newKeySet();
+        deleteStale(keep);
+        timer.scheduleWithFixedDelay(this::pollActive, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private void deleteStale(Set<Path> keep) {
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stale) {
+                if (!keep.contains(path.toAbsolutePath())) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.warning(String.format("Could not clean spool directory %s: %s", directory, e.getMessage()));
+        }
+    }
+
+    /**
+     * Creates an empty spool file for a job that's about to start
+     */
+    public SpoolFile create() throws IOException {
+        SpoolFile spool = new SpoolFile(Files.createTempFile(directory, PREFIX, SUFFIX));
+        active.add(spool);
+        return spool;
+    }
+
+    /**
+     * Stops polling a spool once its process has exited and closes it
+     */
+    public void finish(SpoolFile spool) {
+        active.remove(spool);
+        spool.close();
+    }
+
+    private void pollActive() {
+        for (SpoolFile spool : active) {
+            if (spool.hasListeners()) {
+                spool.poll();
+            }
+        }
+    }
+}
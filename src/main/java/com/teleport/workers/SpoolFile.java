@@ -0,0 +1,230 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * Spool File class
+ * Output of a job that the process writes straight into a file, so no pump thread or heap buffer is needed.
+ * Reads go to the file with positional reads on one read channel that stays open until the spool is released,
+ * and whole ranges can be handed to a channel with transferTo. That only avoids copying through the heap when the
+ * target is a file or socket channel, the servlet response only skips the heap when Tomcat's sendfile is used.
+ *
+ * The process appends to the file on its own, so nothing tells us when output arrives. The SpoolDirectory polls
+ * the size of spools that have listeners and calls poll() to notify them.
+ */
+public class SpoolFile implements JobOutput {
+
+    private final static Logger LOGGER = Logger.getLogger(SpoolFile.class.getName());
+
+    private final Path path;
+    private final List<Runnable> listeners;
+    private volatile boolean closed;
+    private volatile long finalSize = -1;
+    private long polledSize;
+    // Guarded by indexLock, which also keeps catching up to one reader at a time
+    private final Object indexLock = new Object();
+    private LineIndex lines;
+    // Guarded by this, opened on the first read. Positional reads and transfers don't share a position.
+    private FileChannel channel;
+    private boolean released;
+
+    SpoolFile(Path path) {
+        this.path = path;
+        this.listeners = new CopyOnWriteArrayList<>();
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    @Override
+    public long size() {
+        long size = finalSize;
+        if (size >= 0) {
+            return size;
+        }
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            // Deleted or not created yet
+            return 0;
+        }
+    }
+
+    @Override
+    public long getTotalBytes() {
+        return size();
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return false;
+    }
+
+    @Override
+    public boolean isSpooled() {
+        return true;
+    }
+
+    @Override
+    public Slice read(long offset, int maxLength) throws IOException {
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength can't be negative");
+        }
+        long size = size();
+        long from = Math.min(Math.max(offset, 0), size);
+        ByteBuffer bytes = ByteBuffer.allocate((int) Math.min(size - from, maxLength));
+        FileChannel channel = channel();
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, from + bytes.position()) == -1) {
+                break;
+            }
+        }
+        byte[] read = bytes.hasRemaining() ? Arrays.copyOf(bytes.array(), bytes.position()) : bytes.array();
+        return new Slice(from, read, from + read.length);
+    }
+
+    /**
+     * The process writes the file directly, so the index is brought up to date from the file on each call, only
+     * reading what was added since the last one
+     */
+    @Override
+    public LineIndex getLineIndex() throws IOException {
+        synchronized (indexLock) {
+            if (lines == null) {
+                lines = new LineIndex();
+            }
+            lines.catchUp(this);
+            return lines;
+        }
+    }
+
+    /**
+     * Sends count bytes from offset to the target channel. The platform only uses sendfile when the target is a
+     * file or socket channel, other targets are copied through a buffer. Returns the number of bytes sent.
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+        FileChannel channel = channel();
+        long end = Math.min(offset + count, channel.size());
+        long position = offset;
+        while (position < end) {
+            long sent = channel.transferTo(position, end - position, target);
+            if (sent <= 0) {
+                break;
+            }
+            position += sent;
+        }
+        return position - offset;
+    }
+
+    /**
+     * The shared read channel, opened the first time the file is read
+     */
+    private synchronized FileChannel channel() throws IOException {
+        if (released) {
+            throw new IOException("Spool file " + path + " was released");
+        }
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+        return channel;
+    }
+
+    @Override
+    public byte[] toByteArray() throws IOException {
+        return Files.readAllBytes(path);
+    }
+
+    @Override
+    public void writeTo(OutputStream stream) throws IOException {
+        transferTo(0, Long.MAX_VALUE, Channels.newChannel(stream));
+    }
+
+    /**
+     * Called once the process has exited, the file doesn't change afterwards
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            finalSize = size();
+            closed = true;
+        }
+        notifyListeners();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Notifies listeners if the file grew since the last poll
+     */
+    synchronized void poll() {
+        long size = size();
+        if (size > polledSize) {
+            polledSize = size;
+            notifyListeners();
+        }
+    }
+
+    private void notifyListeners() {
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Closes the read channel and deletes the file once the job is forgotten
+     */
+    @Override
+    public void release() {
+        FileChannel open;
+        synchronized (this) {
+            released = true;
+            open = channel;
+            channel = null;
+        }
+        if (open != null) {
+            try {
+                open.close();
+            } catch (IOException e) {
+                LOGGER.warning(String.format("Could not close spool file %s: %s", path, e.getMessage()));
+            }
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            LOGGER.warning(String.format("Could not delete spool file %s: %s", path, e.getMessage()));
+        }
+    }
+}
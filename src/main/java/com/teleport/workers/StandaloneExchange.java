@@ -0,0 +1,536 @@
+package com.teleport.workers;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Standalone Exchange class
+ * One request to the StandaloneServer, adapted to the servlet API so APIServer handles it unchanged. Only what the
+ * API uses of HttpServletRequest and HttpServletResponse is implemented, anything else throws
+ * UnsupportedOperationException.
+ *
+ * The response is committed on the first write or flush, with a Content-Length if one was set and chunked
+ * otherwise. Writes block, so the output stream is always ready and a WriteListener is called once, on the
+ * server's executor. After startAsync() the exchange stays open once service() returns, without holding a thread,
+ * until complete() is called or the timeout fires.
+ */
+class StandaloneExchange implements AsyncContext {
+
+    private final static Logger LOGGER = Logger.getLogger(StandaloneExchange.class.getName());
+    private final static long DEFAULT_ASYNC_TIMEOUT_MS = 30 * 1000;
+    private final static HttpServletRequest UNSUPPORTED_REQUEST = unsupported(HttpServletRequest.class);
+    private final static HttpServletResponse UNSUPPORTED_RESPONSE = unsupported(HttpServletResponse.class);
+
+    private final HttpExchange exchange;
+    private final Executor executor;
+    private final ScheduledExecutorService timer;
+    private final Request request;
+    private final Response response;
+    private final List<AsyncListener> listeners;
+    private final AtomicBoolean completed;
+    private volatile boolean async;
+    private volatile long timeoutMillis;
+
+    // Guarded by this
+    private ScheduledFuture<?> timeout;
+
+    StandaloneExchange(HttpExchange exchange, Executor executor, ScheduledExecutorService timer) {
+        this.exchange = exchange;
+        this.executor = executor;
+        this.timer = timer;
+        this.request = new Request();
+        this.response = new Response();
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.completed = new AtomicBoolean();
+        this.timeoutMillis = DEFAULT_ASYNC_TIMEOUT_MS;
+    }
+
+    /**
+     * Base for the wrappers, so servlet methods the adapter doesn't implement fail loudly
+     */
+    private static <T> T unsupported(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            throw new UnsupportedOperationException(method.getName() + " isn't supported by the standalone server");
+        }));
+    }
+
+    /**
+     * Runs the request through the servlet. Synchronous requests are finished here, async ones once they're
+     * completed or time out.
+     */
+    void handle(HttpServlet servlet) {
+        try {
+            servlet.service(request, response);
+        } catch (ServletException | IOException | RuntimeException e) {
+            LOGGER.warning(String.format("Exception while handling %s: %s", exchange.getRequestURI(), e));
+            response.fail();
+            complete();
+            return;
+        }
+        if (!async) {
+            complete();
+            return;
+        }
+        synchronized (this) {
+            if (!completed.get() && timeoutMillis > 0) {
+                // Listeners may write the response, which shouldn't happen on the timer thread
+                timeout = timer.schedule(() -> executor.execute(this::expire), timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void expire() {
+        for (AsyncListener listener : listeners) {
+            try {
+                listener.onTimeout(new AsyncEvent(this));
+            } catch (IOException e) {
+                LOGGER.info(String.format("Async listener failed on timeout: %s", e.getMessage()));
+            }
+        }
+        complete();
+    }
+
+    /**
+     * Sends whatever is left of the response and closes the exchange, only the first call does anything
+     */
+    @Override
+    public void complete() {
+        if (!completed.compareAndSet(false, true)) {
+            return;
+        }
+        synchronized (this) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+        try {
+            response.finish();
+        } catch (IOException e) {
+            // Usually the client went away
+            LOGGER.info(String.format("Could not finish response to %s: %s", exchange.getRequestURI(), e.getMessage()));
+        } finally {
+            exchange.close();
+        }
+        for (AsyncListener listener : listeners) {
+            try {
+                listener.onComplete(new AsyncEvent(this));
+            } catch (IOException e) {
+                LOGGER.info(String.format("Async listener failed on complete: %s", e.getMessage()));
+            }
+        }
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return response;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return true;
+    }
+
+    @Override
+    public void dispatch() {
+        throw new UnsupportedOperationException("dispatch isn't supported by the standalone server");
+    }
+
+    @Override
+    public void dispatch(String path) {
+        dispatch();
+    }
+
+    @Override
+    public void dispatch(javax.servlet.ServletContext context, String path) {
+        dispatch();
+    }
+
+    @Override
+    public void start(Runnable run) {
+        executor.execute(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> type) throws ServletException {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /**
+     * Takes effect when service() returns, which is when the servlet API starts the timer too
+     */
+    @Override
+    public void setTimeout(long timeout) {
+        this.timeoutMillis = timeout;
+    }
+
+    @Override
+    public long getTimeout() {
+        return timeoutMillis;
+    }
+
+    private class Request extends HttpServletRequestWrapper {
+
+        private final Map<String, Object> attributes;
+        private Map<String, String> parameters;
+
+        Request() {
+            super(UNSUPPORTED_REQUEST);
+            this.attributes = new HashMap<>();
+        }
+
+        @Override
+        public String getMethod() {
+            return exchange.getRequestMethod();
+        }
+
+        @Override
+        public String getRequestURI() {
+            return exchange.getRequestURI().getRawPath();
+        }
+
+        @Override
+        public String getQueryString() {
+            return exchange.getRequestURI().getRawQuery();
+        }
+
+        @Override
+        public String getProtocol() {
+            return exchange.getProtocol();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return exchange.getRequestHeaders().getFirst(name);
+        }
+
+        @Override
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        /**
+         * Query string parameters, decoded on first use. Like a servlet container, the first value of a repeated
+         * parameter wins.
+         */
+        @Override
+        public String getParameter(String name) {
+            if (parameters == null) {
+                parameters = new HashMap<>();
+                String query = getQueryString();
+                if (query != null) {
+                    for (String pair : query.split("&")) {
+                        int equals = pair.indexOf('=');
+                        String key = equals < 0 ? pair : pair.substring(0, equals);
+                        String value = equals < 0 ? "" : pair.substring(equals + 1);
+                        parameters.putIfAbsent(decode(key), decode(value));
+                    }
+                }
+            }
+            return parameters.get(name);
+        }
+
+        /**
+         * The Charset overload of URLDecoder.decode needs Java 10, newer than the pom's release
+         */
+        private String decode(String text) {
+            try {
+                return URLDecoder.decode(text, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public BufferedReader getReader() {
+            return new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            attributes.put(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            async = true;
+            return StandaloneExchange.this;
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+            return startAsync();
+        }
+
+        @Override
+        public boolean isAsyncStarted() {
+            return async;
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return true;
+        }
+
+        @Override
+        public AsyncContext getAsyncContext() {
+            if (!async) {
+                throw new IllegalStateException("Request isn't async");
+            }
+            return StandaloneExchange.this;
+        }
+    }
+
+    private class Response extends HttpServletResponseWrapper {
+
+        private final Body body;
+        private int status;
+        private long contentLength;
+        private String contentType;
+        private String encoding;
+        private PrintWriter writer;
+        private volatile boolean committed;
+
+        Response() {
+            super(UNSUPPORTED_RESPONSE);
+            this.body = new Body();
+            this.status = SC_OK;
+            this.contentLength = -1;
+        }
+
+        @Override
+        public void setStatus(int status) {
+            if (!committed) {
+                this.status = status;
+            }
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void sendError(int status) {
+            sendError(status, null);
+        }
+
+        @Override
+        public void sendError(int status, String message) {
+            if (committed) {
+                throw new IllegalStateException("Response already committed");
+            }
+            this.status = status;
+            this.contentLength = 0;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            exchange.getResponseHeaders().set(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            exchange.getResponseHeaders().add(name, value);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return exchange.getResponseHeaders().getFirst(name);
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return exchange.getResponseHeaders().containsKey(name);
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setCharacterEncoding(String encoding) {
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void setContentLength(int length) {
+            setContentLengthLong(length);
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+            this.contentLength = length;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return body;
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (writer == null) {
+                writer = new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+            }
+            return writer;
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return committed;
+        }
+
+        /**
+         * Sends the status and headers. A length of 0 tells the server the body is chunked, -1 that there's none.
+         */
+        private synchronized void commit() throws IOException {
+            if (committed) {
+                return;
+            }
+            committed = true;
+            if (contentType != null) {
+                exchange.getResponseHeaders().set("Content-Type",
+                    encoding == null ? contentType : contentType + ";charset=" + encoding);
+            }
+            exchange.sendResponseHeaders(status, contentLength < 0 ? 0 : contentLength == 0 ? -1 : contentLength);
+        }
+
+        /**
+         * Turns a response that hasn't been sent yet into an empty 500
+         */
+        private synchronized void fail() {
+            if (!committed) {
+                status = SC_INTERNAL_SERVER_ERROR;
+                contentLength = 0;
+                writer = null;
+                exchange.getResponseHeaders().remove("Content-Encoding");
+            }
+        }
+
+        private void finish() throws IOException {
+            if (writer != null) {
+                writer.flush();
+            }
+            synchronized (this) {
+                if (!committed && contentLength < 0) {
+                    // Nothing was written
+                    contentLength = 0;
+                }
+            }
+            commit();
+        }
+
+        private class Body extends ServletOutputStream {
+
+            @Override
+            public void write(int b) throws IOException {
+                commit();
+                exchange.getResponseBody().write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                commit();
+                exchange.getResponseBody().write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                commit();
+                exchange.getResponseBody().flush();
+            }
+
+            /**
+             * The exchange is closed once the request completes
+             */
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                executor.execute(() -> {
+                    try {
+                        listener.onWritePossible();
+                    } catch (IOException e) {
+                        listener.onError(e);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.teleport.workers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Standalone Server class
+ * Runs the APIServer servlet on the JDK's built-in HTTP server, so a worker node can start the API with java -jar
+ * instead of deploying the war to Tomcat. It serves the same /worker/* routes with the same behavior. The war is
+ * still built by default, the runnable jar comes from the standalone profile.
+ *
+ * Configuration uses the init-param names of web.xml, read from an optional properties file given as the first
+ * argument, with -D system properties taking precedence. http.port, http.backlog and http.maxThreads configure the
+ * server itself.
+ *
+ * With router.shards set the server runs a ShardRouter in front of other worker instances instead of a JobManager
+ * of its own, see ShardRouter for its parameters.
+ *
+ * Requests run on virtual threads when the JDK has them, otherwise on a pool of at most http.maxThreads daemon
+ * threads. Long polls and output follows are parked like in a servlet container (see StandaloneExchange), so
+ * waiting clients don't hold a thread either way.
+ */
+public class StandaloneServer {
+
+    private final static Logger LOGGER = Logger.getLogger(StandaloneServer.class.getName());
+    private final static String port_param = "http.port";
+    private final static String backlog_param = "http.backlog";
+    private final static String max_threads_param = "http.maxThreads";
+    private final static String router_shards_param = "router.shards";
+    private final static String CONTEXT_PATH = "/worker/";
+    private final static String SERVLET_NAME = "WorkerAPI";
+    private final static int DEFAULT_PORT = 8080;
+    private final static int DEFAULT_BACKLOG = 128;
+    private final static int DEFAULT_MAX_THREADS = 256;
+    private final static long IDLE_TIMEOUT_SECS = 60;
+
+    private final Properties params;
+    private final HttpServlet servlet;
+    private HttpServer server;
+    private ExecutorService executor;
+    private ScheduledExecutorService timer;
+
+    public StandaloneServer(Properties params) {
+        this.params = params;
+        this.servlet = getParameter(router_shards_param) != null ? new ShardRouter() : new APIServer();
+    }
+
+    public static void main(String[] args) throws IOException, ServletException {
+        Properties params = new Properties();
+        if (args.length > 0) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(args[0]))) {
+                params.load(reader);
+            }
+        }
+        StandaloneServer server = new StandaloneServer(params);
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop, "worker-http-shutdown"));
+        LOGGER.info(String.format("Worker API listening on port %d", server.getPort()));
+    }
+
+    /**
+     * Starts the JobManager (or the router), then listens on http.port (0 picks a free port)
+     */
+    public synchronized void start() throws IOException, ServletException {
+        servlet.init(new Config());
+        executor = PumpExecutor.newVirtualExecutor();
+        if (executor == null) {
+            int maxThreads = getIntParameter(max_threads_param, DEFAULT_MAX_THREADS);
+            LOGGER.info(String.format("Virtual threads unavailable, using at most %d request threads", maxThreads));
+            executor = newPlatformExecutor(maxThreads);
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "worker-http-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(getIntParameter(port_param, DEFAULT_PORT)),
+            getIntParameter(backlog_param, DEFAULT_BACKLOG));
+        server.createContext(CONTEXT_PATH, exchange -> new StandaloneExchange(exchange, executor, timer).handle(servlet));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    private static ExecutorService newPlatformExecutor(int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, IDLE_TIMEOUT_SECS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "worker-http-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Port the server is listening on
+     */
+    public synchronized int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, closes open exchanges and shuts the JobManager down
+     */
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        server.stop(0);
+        servlet.destroy();
+        timer.shutdownNow();
+        executor.shutdown();
+        server = null;
+    }
+
+    private String getParameter(String name) {
+        return System.getProperty(name, params.getProperty(name));
+    }
+
+    private int getIntParameter(String name, int defaultValue) {
+        String value = getParameter(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Stands in for the servlet container's config, init-params come from the properties
+     */
+    private class Config implements ServletConfig {
+
+        @Override
+        public String getServletName() {
+            return SERVLET_NAME;
+        }
+
+        /**
+         * There's no servlet context outside a container
+         */
+        @Override
+        public ServletContext getServletContext() {
+            return null;
+        }
+
+        @Override
+        public String getInitParameter(String name) {
+            return getParameter(name);
+        }
+
+        @Override
+        public Enumeration<String> getInitParameterNames() {
+            return Collections.enumeration(params.stringPropertyNames());
+        }
+    }
+}
@@ -1,40 +1,121 @@
 package com.teleport.workers;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
-import java.util.StringJoiner;
 
 /**
  * Worker class
  * Abstraction for a worker process
  * Workers will create a new Process with a specified command and
- * read the output/error streams using a separate thread. Once finished, the
- * Result is stored into the associated Job for the Worker.
+ * read the output/error streams on a shared PumpExecutor. Output is visible on the
+ * Job as it arrives, and once finished the Result is stored into the associated Job for the Worker.
+ * Stdout has the job's pump, stderr is polled by the executor's shared PipePoller until the pump drains it.
+ *
+ * Workers given a SpoolDirectory redirect the process output straight into a spool file instead (and stderr into
+ * a second one), so no pump is needed at all and the job finishes when the process exits.
+ *
+ * Workers given a ForkServer as well have it start the process instead of the JVM, with output spooled the
+ * same way. The worker then only knows the pid, and hears about the exit from the fork server.
  */
 public class Worker implements Runnable {
 
     private final static Logger LOGGER = Logger.getLogger(Worker.class.getName());
+    private final static long SPAWN_TIMEOUT_MILLIS = 10000;
+    private final PumpExecutor pumps;
+    private final JobManagerConfig config;
+    private final SpoolDirectory spool;
+    private final ForkServer forkServer;
+    private final JobMetrics metrics;
     private Process process;
+    private long pid = -1;
+    private CompletableFuture<?> exited;
+    private long startNanos;
     private Job job;
+    private OutputBuffer output;
+    private OutputBuffer errorOutput;
+    private PipePoller.Pipe errorPipe;
+    private SpoolFile spoolFile;
+    private SpoolFile errorSpool;
+    private boolean spoolAttached;
+    private final CompletableFuture<Job> completion = new CompletableFuture<>();
 
-    private String readStream(BufferedReader stream) throws IOException {
-        StringJoiner joiner = new StringJoiner("\n");
-        String line = null;
-        while ((line = stream.readLine()) != null) {
-            joiner.add(line);
+    /**
+     * Workers created without an executor share the default one and use the default config
+     */
+    public Worker() {
+        this(PumpExecutor.getDefault(), new JobManagerConfig());
+    }
+
+    public Worker(PumpExecutor pumps, JobManagerConfig config) {
+        this(pumps, null, new JobMetrics(new Metrics()), config);
+    }
+
+    /**
+     * Output goes to a file in the spool directory unless it's null
+     */
+    public Worker(PumpExecutor pumps, SpoolDirectory spool, JobMetrics metrics, JobManagerConfig config) {
+        this(pumps, spool, null, metrics, config);
+    }
+
+    /**
+     * Processes are started by the fork server unless it's null, which needs a spool directory for their output
+     */
+    public Worker(PumpExecutor pumps, SpoolDirectory spool, ForkServer forkServer, JobMetrics metrics,
+        JobManagerConfig config) {
+
+        if (forkServer != null && spool == null) {
+            throw new IllegalArgumentException("Workers using a fork server need a spool directory");
+        }
+        this.pumps = pumps;
+        this.spool = spool;
+        this.forkServer = forkServer;
+        this.metrics = metrics;
+        this.config = config;
+    }
+
+    /**
+     * Output is read in bulk straight into the buffer's byte chunks, nothing is decoded here
+     */
+    private long readStream(InputStream stream) throws IOException {
+        long read = output.readFrom(stream);
+        metrics.outputBytes.add(read);
+        return read;
+    }
+
+    /**
+     * Records the time to the first output byte, then removes itself so later appends don't pay for it.
+     * Buffer listeners only run on the filling thread, so the flag needs no synchronization.
+     */
+    private class FirstOutput implements Runnable {
+        private boolean seen;
+
+        @Override
+        public void run() {
+            if (seen) {
+                return;
+            }
+            seen = true;
+            if (output.getTotalBytes() > 0) {
+                metrics.firstOutputLatency.recordSince(startNanos);
+            }
+            output.removeListener(this);
         }
-        return joiner.toString();
     }
 
     @Override
     public void run() {
-        BufferedReader outputStream = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        InputStream outputStream = process.getInputStream();
         try {
-            String output = readStream(outputStream);
-            job.setResult(new Result(output.toString()));
+            readStream(outputStream);
+            if (errorPipe != null) {
+                // Whatever the poller hasn't picked up yet is read here, up to EOF
+                errorPipe.drain();
+            }
+            job.setResult(new Result(output, errorOutput));
             job.setStatus(Job.JobStatus.FINISHED);
         } catch (IOException e) {
             // This could happen when we stop the process
@@ -44,11 +125,14 @@ public class Worker implements Runnable {
             LOGGER.warning(String.format("Exception while assigning result: %s", e.getMessage()));
             job.setStatus(Job.JobStatus.FINISHED);
         } finally {
+            // Readers following the output stop waiting for more
+            output.close();
             try {
                 outputStream.close();
             } catch (IOException e) {
                 LOGGER.severe(String.format("Could not close streams: %s", e.getMessage()));
             }
+            closeErrorStream();
             // clean up zombies
             try {
                 process.waitFor();
@@ -56,48 +140,302 @@ public class Worker implements Runnable {
                 LOGGER.warning(String.format("Thread interrupted while waiting for process termination: %s", e.getMessage()));
                 stopProcess();
             }
+            finish();
         }
     }
 
     /**
-     * Start new process and redirect error stream to standard output
-     * Redirection lets us avoid creating a new thread and also makes it easier to implement
-     * the API server later on
+     * Start new process, capturing its error stream separately unless the config merges it into standard output
+     * Stderr doesn't get a pump of its own, it's polled on the shared PipePoller so threads don't double.
      */
     public long execute(Job job) {
         this.job = job;
+        if (forkServer != null) {
+            return executeForked();
+        }
+        if (spool != null) {
+            return executeSpooled();
+        }
+
+        this.output = new OutputBuffer(config.getMaxOutputBytes(), config.getOutputRetention(),
+            config.isLineIndex());
 
         ProcessBuilder builder = new ProcessBuilder(job.getCommand());
-        builder.redirectErrorStream(true);
+        builder.redirectErrorStream(!config.isSeparateStderr());
         try {
-            process = builder.start();
+            startProcess(builder);
         } catch (IOException e) {
-            LOGGER.severe(String.format("Could not start process: %s", e.getMessage()));
+            return failStart(e);
+        }
+
+        if (config.isSeparateStderr()) {
+            errorOutput = new OutputBuffer(config.getMaxErrorBytes(), config.getOutputRetention(),
+                config.isLineIndex());
+        }
+        OutputTimeline timeline = null;
+        if (config.isOutputTimestamps()) {
+            timeline = new OutputTimeline();
+            output.addListener(timeline.listenTo(output, OutputTimeline.STDOUT));
+            if (errorOutput != null) {
+                errorOutput.addListener(timeline.listenTo(errorOutput, OutputTimeline.STDERR));
+            }
+        }
+        output.addListener(new FirstOutput());
+        job.attachOutput(output, errorOutput, timeline);
+        if (!markRunning()) {
+            return -1;
+        }
+        // Stopped jobs are complete once the process is gone, even if a child still holds the pipe open
+        process.onExit().thenRun(job::complete);
+        if (errorOutput != null) {
+            errorPipe = pumps.poll(process.getErrorStream(), errorOutput);
+        }
+        try {
+            pumps.submit(this);
+        } catch (RejectedExecutionException e) {
+            // Nothing would read the output, so don't leave the process running
+            LOGGER.severe(String.format("Could not schedule output pump: %s", e.getMessage()));
+            process.destroyForcibly();
+            output.close();
+            closeErrorStream();
+            this.job.setError("could not schedule output pump");
             this.job.setStatus(Job.JobStatus.ERROR);
+            finish();
             return -1;
         }
-
-        job.setStatus(Job.JobStatus.RUNNING);
-        new Thread(this).start();
         return process.toHandle().pid();
     }
 
     /**
-     * To make sure the process is stopped completely, we set a timeout of 2s on destroy.
-     * If the process is still alive then we forcibly destroy it.
+     * A queued job can be stopped while its process is being started, in which case the process is killed
+     * right away and its output closed
      */
-    public void stopProcess() {
-        process.destroy();
+    private boolean markRunning() {
+        if (job.setStatus(Job.JobStatus.RUNNING) || job.getStatus() != Job.JobStatus.STOPPED) {
+            return true;
+        }
+        destroy(true);
+        if (spoolFile != null) {
+            exited.whenComplete((code, e) -> finishSpooled());
+            return false;
+        }
+        output.close();
         try {
-            if (!process.waitFor(2000, TimeUnit.MILLISECONDS)) {
+            process.getInputStream().close();
+        } catch (IOException e) {
+            LOGGER.severe(String.format("Could not close streams: %s", e.getMessage()));
+        }
+        closeErrorStream();
+        finish();
+        return false;
+    }
+
+    /**
+     * Stops polling stderr and closes it, counting what was read since stderr never passes through readStream
+     */
+    private void closeErrorStream() {
+        if (errorOutput == null) {
+            return;
+        }
+        if (errorPipe != null) {
+            errorPipe.cancel();
+        }
+        errorOutput.close();
+        metrics.outputBytes.add(errorOutput.getTotalBytes());
+        try {
+            process.getErrorStream().close();
+        } catch (IOException e) {
+            LOGGER.severe(String.format("Could not close streams: %s", e.getMessage()));
+        }
+    }
+
+    private void startProcess(ProcessBuilder builder) throws IOException {
+        long spawnNanos = System.nanoTime();
+        process = builder.start();
+        pid = process.pid();
+        exited = process.onExit();
+        recordStart(spawnNanos);
+    }
+
+    private void recordStart(long spawnNanos) {
+        startNanos = System.nanoTime();
+        metrics.spawnLatency.record(startNanos - spawnNanos);
+        metrics.started.increment();
+    }
+
+    private long failStart(IOException e) {
+        metrics.spawnFailures.increment();
+        LOGGER.severe(String.format("Could not start process: %s", e.getMessage()));
+        this.job.setError(e.getMessage());
+        this.job.setStatus(Job.JobStatus.ERROR);
+        finish();
+        return -1;
+    }
+
+    /**
+     * The process writes its output into the spool file itself. Once it exits the spool is complete,
+     * and unless the job was stopped first its status goes to FINISHED.
+     */
+    private long executeSpooled() {
+        ProcessBuilder builder = new ProcessBuilder(job.getCommand());
+        try {
+            createSpools();
+            builder.redirectOutput(spoolFile.getPath().toFile());
+            if (errorSpool != null) {
+                builder.redirectError(errorSpool.getPath().toFile());
+            } else {
+                builder.redirectErrorStream(true);
+            }
+            startProcess(builder);
+        } catch (IOException e) {
+            releaseSpools();
+            return failStart(e);
+        }
+        return runSpooled();
+    }
+
+    /**
+     * The fork server starts the process with its output redirected into the spool files, the same as
+     * executeSpooled() but without forking the JVM
+     */
+    private long executeForked() {
+        try {
+            createSpools();
+            long spawnNanos = System.nanoTime();
+            ForkServer.Spawn spawn = forkServer.spawn(job.getCommand(), spoolFile.getPath(),
+                errorSpool == null ? null : errorSpool.getPath());
+            pid = spawn.getPid(SPAWN_TIMEOUT_MILLIS);
+            exited = spawn.getExit();
+            recordStart(spawnNanos);
+        } catch (IOException e) {
+            releaseSpools();
+            return failStart(e);
+        }
+        return runSpooled();
+    }
+
+    private void createSpools() throws IOException {
+        spoolFile = spool.create();
+        if (config.isSeparateStderr()) {
+            errorSpool = spool.create();
+        }
+    }
+
+    private long runSpooled() {
+        spoolAttached = job.attachOutput(spoolFile, errorSpool, null);
+        if (!markRunning()) {
+            return -1;
+        }
+        exited.whenComplete((code, e) -> {
+            if (e != null && !job.isDone()) {
+                // Only happens with a fork server that died, the process can't be followed anymore
+                LOGGER.warning(String.format("Lost track of process %d: %s", pid, e.getMessage()));
+                job.setError(e.getMessage());
+                job.setStatus(Job.JobStatus.ERROR);
+            }
+            finishSpooled();
+        });
+        return pid;
+    }
+
+    private void finishSpooled() {
+        spool.finish(spoolFile);
+        metrics.outputBytes.add(spoolFile.getTotalBytes());
+        if (errorSpool != null) {
+            spool.finish(errorSpool);
+            metrics.outputBytes.add(errorSpool.getTotalBytes());
+        }
+        try {
+            job.setResult(new Result(spoolFile, errorSpool));
+        } catch (IllegalStateException e) {
+            LOGGER.warning(String.format("Exception while assigning result: %s", e.getMessage()));
+        }
+        if (!spoolAttached) {
+            // The job already had output from an earlier run, nobody can read this one
+            spoolFile.release();
+            if (errorSpool != null) {
+                errorSpool.release();
+            }
+        }
+        job.setStatus(Job.JobStatus.FINISHED);
+        finish();
+    }
+
+    private void releaseSpools() {
+        for (SpoolFile file : new SpoolFile[] {spoolFile, errorSpool}) {
+            if (file != null) {
+                spool.finish(file);
+                file.release();
+            }
+        }
+    }
+
+    /**
+     * The job is marked STOPPED before the process is destroyed, so a pump that sees the output end right after
+     * can't report it as FINISHED. Jobs that already finished are left alone.
+     * Returns right away: the process and everything it started get SIGTERM, and the default ProcessKiller's
+     * timer sends SIGKILL to whatever is still alive after the configured grace period.
+     */
+    public void stopProcess() {
+        stopProcess(ProcessKiller.getDefault(), config.getStopGraceMillis());
+    }
+
+    public void stopProcess(ProcessKiller killer, long graceMillis) {
+        if (!job.setStatus(Job.JobStatus.STOPPED)) {
+            return;
+        }
+        metrics.stops.increment();
+        if (exited.isDone()) {
+            return;
+        }
+        ProcessHandle handle = process != null ? process.toHandle() : ProcessHandle.of(pid).orElse(null);
+        if (handle != null) {
+            killer.stop(handle, exited, graceMillis, metrics.stopEscalations::increment);
+        }
+    }
+
+    /**
+     * Processes started by a fork server aren't our children, so they're signalled by pid. Their pid can't be
+     * reused until the fork server has reaped them, which it reports as the exit.
+     */
+    private void destroy(boolean forcibly) {
+        if (process != null) {
+            if (forcibly) {
                 process.destroyForcibly();
+            } else {
+                process.destroy();
             }
-        } catch (InterruptedException e) {
-            LOGGER.warning(String.format("Thread interrupted while destroying process: %s", e.getMessage()));
-            process.destroyForcibly();
-        } finally {
-            job.setStatus(Job.JobStatus.STOPPED);
+            return;
+        }
+        if (exited.isDone()) {
+            return;
         }
+        ProcessHandle.of(pid).ifPresent(handle -> {
+            if (forcibly) {
+                handle.destroyForcibly();
+            } else {
+                handle.destroy();
+            }
+        });
+    }
+
+    private void finish() {
+        if (exited != null) {
+            long runningSince = job.getStatusTime(Job.JobStatus.RUNNING);
+            if (runningSince > 0) {
+                metrics.runtime.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - runningSince));
+            }
+        }
+        job.complete();
+        completion.complete(job);
+    }
+
+    /**
+     * Completes once the worker is done with its job, after the output has been read and the process reaped,
+     * or straight away if the process couldn't be started
+     */
+    public CompletableFuture<Job> getCompletion() {
+        return completion;
     }
 
     public Job getJob() {
@@ -105,13 +443,20 @@ public class Worker implements Runnable {
     }
 
     public long getPID() {
-        if (process == null) {
-            return -1;
-        }
-        return process.toHandle().pid();
+        return pid;
     }
 
+    /**
+     * Null when the process was started by a fork server
+     */
     public Process getProcess() {
         return process;
     }
+
+    /**
+     * Completes once the process has exited, exceptionally if a fork server lost track of it
+     */
+    public CompletableFuture<?> onExit() {
+        return exited;
+    }
 }
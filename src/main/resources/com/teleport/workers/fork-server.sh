@@ -0,0 +1,33 @@
+# Fork server started by ForkServer, run with bash -c so it doesn't need to be on disk.
+#
+# Requests arrive on stdin as NUL terminated fields: token, stdout path, stderr path (empty to merge stderr into
+# stdout), argument count, then the arguments. Replies go to stdout, one line each:
+#   S <token> <pid>     the child was started
+#   F <token> <reason>  the command couldn't be started
+#   E <token> <code>    the child exited
+#
+# Each child gets a small waiter subshell that reports its exit, so the loop never blocks on a child. Replies are
+# short single writes to a pipe, so lines from different waiters don't interleave.
+while IFS= read -r -d '' token && IFS= read -r -d '' out && IFS= read -r -d '' err \
+    && IFS= read -r -d '' argc; do
+    args=()
+    for ((i = 0; i < argc; i++)); do
+        IFS= read -r -d '' arg
+        args+=("$arg")
+    done
+    if [[ ${#args[@]} -eq 0 ]] || ! type -P -- "${args[0]}" > /dev/null; then
+        printf 'F %s %s\n' "$token" "Cannot run program \"${args[0]}\": No such file or directory"
+        continue
+    fi
+    {
+        if [[ -n $err ]]; then
+            "${args[@]}" < /dev/null > "$out" 2> "$err" &
+        else
+            "${args[@]}" < /dev/null > "$out" 2>&1 &
+        fi
+        pid=$!
+        printf 'S %s %s\n' "$token" "$pid"
+        wait "$pid"
+        printf 'E %s %s\n' "$token" "$?"
+    } &
+done
@@ -0,0 +1,197 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the EventDispatcher
+ */
+public class EventDispatcherTest {
+
+    private final Map<Long, Job> jobs = new HashMap<>();
+
+    private EventDispatcher newDispatcher(int bufferSize) {
+        return new EventDispatcher(64, bufferSize, 60000, id -> jobs.get(id), new Metrics());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 250 && !condition.getAsBoolean(); ++i) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    /**
+     * Polls events until count have arrived or it takes too long
+     */
+    private static List<EventDispatcher.Event> take(EventDispatcher.Subscription subscription, int count)
+        throws InterruptedException {
+
+        List<EventDispatcher.Event> events = new ArrayList<>();
+        waitFor(() -> {
+            for (EventDispatcher.Event event = subscription.poll(); event != null; event = subscription.poll()) {
+                events.add(event);
+            }
+            return events.size() >= count;
+        });
+        return events;
+    }
+
+    /**
+     * Test events reach every subscription whose ids and statuses match, in order
+     */
+    @Test
+    public void dispatcherShouldFilterEvents() throws InterruptedException {
+        EventDispatcher dispatcher = newDispatcher(16);
+        EventDispatcher.Subscription all = dispatcher.subscribe(null, null, true, () -> { });
+        EventDispatcher.Subscription finished = dispatcher.subscribe(Collections.singleton(2L),
+            EnumSet.of(Job.JobStatus.FINISHED), true, () -> { });
+        waitFor(() -> dispatcher.getSubscriberCount() == 2);
+
+        Job job1 = new Job("echo foo");
+        Job job2 = new Job("echo bar");
+        dispatcher.statusChanged(1, job1, Job.JobStatus.RUNNING, 10);
+        dispatcher.statusChanged(2, job2, Job.JobStatus.RUNNING, 11);
+        dispatcher.statusChanged(2, job2, Job.JobStatus.FINISHED, 12);
+
+        List<EventDispatcher.Event> events = take(all, 3);
+        assertEquals(events.size(), 3);
+        assertEquals(events.get(0).getId(), 1);
+        assertEquals(events.get(2).getStatus(), Job.JobStatus.FINISHED);
+        assertTrue(events.get(1).getSequence() < events.get(2).getSequence());
+        events = take(finished, 1);
+        assertEquals(events.size(), 1);
+        assertEquals(events.get(0).getId(), 2);
+        assertEquals(events.get(0).getTime(), 12);
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Test subscriptions for specific jobs start with their current status
+     */
+    @Test
+    public void dispatcherShouldSendCurrentStatus() throws InterruptedException {
+        Job job = new Job("echo foo");
+        job.setStatus(Job.JobStatus.RUNNING);
+        jobs.put(7L, job);
+        EventDispatcher dispatcher = newDispatcher(16);
+        EventDispatcher.Subscription subscription = dispatcher.subscribe(Collections.singleton(7L), null, false,
+            () -> { });
+
+        List<EventDispatcher.Event> events = take(subscription, 1);
+        assertEquals(events.get(0).getType(), EventDispatcher.STATUS);
+        assertEquals(events.get(0).getStatus(), Job.JobStatus.RUNNING);
+        assertEquals(events.get(0).getTime(), job.getStatusTime(Job.JobStatus.RUNNING));
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Test output notices for a job are merged while one is buffered
+     */
+    @Test
+    public void dispatcherShouldCoalesceOutput() throws InterruptedException {
+        EventDispatcher dispatcher = newDispatcher(16);
+        AtomicInteger added = new AtomicInteger();
+        EventDispatcher.Subscription subscription = dispatcher.subscribe(null, null, true, added::incrementAndGet);
+        waitFor(() -> dispatcher.getSubscriberCount() == 1);
+
+        Job job = new Job("echo foo");
+        for (int i = 0; i < 1000; ++i) {
+            dispatcher.outputChanged(1, job);
+        }
+        dispatcher.statusChanged(1, job, Job.JobStatus.FINISHED, 10);
+        // Nothing is polled until everything was dispatched, so the buffered notice covers all the others
+        waitFor(() -> added.get() == 2);
+
+        List<EventDispatcher.Event> events = take(subscription, 2);
+        assertEquals(events.size(), 2);
+        assertEquals(events.get(0).getType(), EventDispatcher.OUTPUT);
+        assertEquals(events.get(1).getType(), EventDispatcher.STATUS);
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Test a subscriber that doesn't keep up is dropped instead of holding events back
+     */
+    @Test
+    public void dispatcherShouldDropSlowSubscribers() throws InterruptedException {
+        EventDispatcher dispatcher = newDispatcher(2);
+        EventDispatcher.Subscription slow = dispatcher.subscribe(null, null, false, () -> { });
+        EventDispatcher.Subscription fast = dispatcher.subscribe(null, null, false, () -> { });
+        waitFor(() -> dispatcher.getSubscriberCount() == 2);
+
+        Job job = new Job("echo foo");
+        List<EventDispatcher.Event> events = new ArrayList<>();
+        dispatcher.statusChanged(1, job, Job.JobStatus.QUEUED, 10);
+        events.addAll(take(fast, 1));
+        dispatcher.statusChanged(1, job, Job.JobStatus.LAUNCHING, 11);
+        events.addAll(take(fast, 1));
+        dispatcher.statusChanged(1, job, Job.JobStatus.RUNNING, 12);
+        events.addAll(take(fast, 1));
+
+        waitFor(slow::isClosed);
+        assertTrue(slow.isSlow());
+        assertNull(slow.poll());
+        assertFalse(fast.isClosed());
+        assertEquals(events.size(), 3);
+        assertEquals(dispatcher.getSubscriberCount(), 1);
+        dispatcher.shutdown();
+    }
+
+    /**
+     * Test subscribers are dropped when a status event they could have matched didn't fit in the queue,
+     * and subscribers that came after it aren't
+     */
+    @Test
+    public void dispatcherShouldDropSubscribersThatMissedStatus() throws InterruptedException {
+        EventDispatcher dispatcher = new EventDispatcher(1, 16, 60000, id -> jobs.get(id), new Metrics());
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean block = new AtomicBoolean();
+        EventDispatcher.Subscription lossy = dispatcher.subscribe(null, null, false, () -> {
+            if (block.compareAndSet(true, false)) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        waitFor(() -> dispatcher.getSubscriberCount() == 1);
+
+        // Hold the dispatcher thread so the queue fills up
+        Job job = new Job("echo foo");
+        block.set(true);
+        dispatcher.statusChanged(1, job, Job.JobStatus.QUEUED, 10);
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        dispatcher.statusChanged(1, job, Job.JobStatus.LAUNCHING, 11);
+        dispatcher.statusChanged(1, job, Job.JobStatus.RUNNING, 12);
+        release.countDown();
+
+        waitFor(lossy::isClosed);
+        assertTrue(lossy.isSlow());
+        EventDispatcher.Subscription later = dispatcher.subscribe(null, null, false, () -> { });
+        waitFor(() -> dispatcher.getSubscriberCount() == 1);
+        dispatcher.statusChanged(1, job, Job.JobStatus.FINISHED, 13);
+        assertEquals(take(later, 1).get(0).getStatus(), Job.JobStatus.FINISHED);
+        assertFalse(later.isClosed());
+        dispatcher.shutdown();
+    }
+}
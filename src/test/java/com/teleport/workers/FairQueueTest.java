@@ -0,0 +1,163 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for the FairQueue
+ */
+public class FairQueueTest {
+
+    /**
+     * Test jobs of one tenant come out by priority, then in the order they were added
+     */
+    @Test
+    public void queueShouldOrderByPriority() {
+        FairQueue queue = new FairQueue();
+        queue.add(1, "a", 0);
+        queue.add(2, "a", 5);
+        queue.add(3, "a", 0);
+        queue.add(4, "a", 5);
+        assertEquals(queue.size(), 4);
+        assertEquals(queue.poll(), 2);
+        assertEquals(queue.poll(), 4);
+        assertEquals(queue.poll(), 1);
+        assertEquals(queue.poll(), 3);
+        assertEquals(queue.poll(), -1);
+        assertEquals(queue.getTenantCount(), 0);
+    }
+
+    /**
+     * Test a tenant with a big backlog doesn't hold up another tenant's jobs
+     */
+    @Test
+    public void queueShouldAlternateBetweenTenants() {
+        FairQueue queue = new FairQueue();
+        for (long id = 1; id <= 100; ++id) {
+            queue.add(id, "bulk", 0);
+        }
+        queue.add(101, "interactive", 0);
+        queue.add(102, "interactive", 0);
+        assertEquals(queue.getTenantCount(), 2);
+        assertEquals(queue.poll(), 1);
+        assertEquals(queue.poll(), 101);
+        assertEquals(queue.poll(), 2);
+        assertEquals(queue.poll(), 102);
+        assertEquals(queue.poll(), 3);
+        assertEquals(queue.getTenantCount(), 1);
+    }
+
+    /**
+     * Test tenants are served in proportion to their weights
+     */
+    @Test
+    public void queueShouldShareByWeight() {
+        FairQueue queue = new FairQueue(Collections.singletonMap("heavy", 3));
+        for (long id = 0; id < 100; ++id) {
+            queue.add(id, "light", 0);
+            queue.add(1000 + id, "heavy", 0);
+        }
+        int heavy = 0;
+        for (int i = 0; i < 40; ++i) {
+            if (queue.poll() >= 1000) {
+                ++heavy;
+            }
+        }
+        assertEquals(heavy, 30);
+    }
+
+    /**
+     * Test a tenant that was idle rejoins at the current pass instead of catching up on what it missed
+     */
+    @Test
+    public void idleTenantShouldNotBankCredit() {
+        FairQueue queue = new FairQueue();
+        queue.add(1, "idle", 0);
+        assertEquals(queue.poll(), 1);
+        for (long id = 10; id < 20; ++id) {
+            queue.add(id, "busy", 0);
+        }
+        for (long id = 10; id < 15; ++id) {
+            assertEquals(queue.poll(), id);
+        }
+        queue.add(2, "idle", 0);
+        queue.add(3, "idle", 0);
+        assertEquals(queue.poll(), 2);
+        assertEquals(queue.poll(), 15);
+        assertEquals(queue.poll(), 3);
+    }
+
+    /**
+     * Test weights that would give a tenant a stride of 0 are rejected and the largest one is still served in turn
+     */
+    @Test
+    public void queueShouldBoundWeights() {
+        try {
+            new FairQueue(Collections.singletonMap("heavy", FairQueue.MAX_WEIGHT + 1));
+            fail("weight above the maximum was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            new JobManagerConfig().setTenantWeight("heavy", FairQueue.MAX_WEIGHT + 1);
+            fail("weight above the maximum was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        FairQueue queue = new FairQueue(Collections.singletonMap("heavy", FairQueue.MAX_WEIGHT));
+        queue.add(1, "light", 0);
+        queue.add(2, "heavy", 0);
+        queue.add(3, "heavy", 0);
+        assertEquals(queue.poll(), 1);
+        assertEquals(queue.poll(), 2);
+        assertEquals(queue.poll(), 3);
+        assertEquals(queue.poll(), -1);
+    }
+
+    /**
+     * Test removed jobs are never handed out
+     */
+    @Test
+    public void removedJobsShouldBeSkipped() {
+        FairQueue queue = new FairQueue();
+        queue.add(1, "a", 0);
+        queue.add(2, "b", 0);
+        queue.add(3, "a", 0);
+        assertTrue(queue.remove(1));
+        assertFalse(queue.remove(1));
+        assertTrue(queue.remove(2));
+        assertEquals(queue.getTenantCount(), 1);
+        assertEquals(queue.size(), 1);
+        assertEquals(queue.poll(), 3);
+        assertEquals(queue.poll(), -1);
+    }
+
+    /**
+     * Test a tenant that queues its next job as soon as one is taken still only gets its share
+     */
+    @Test
+    public void queueShouldKeepPassOfRequeuingTenant() {
+        FairQueue queue = new FairQueue();
+        for (long id = 1; id <= 100; ++id) {
+            queue.add(id, "bulk", 0);
+        }
+        long next = 1000;
+        queue.add(next++, "chatty", 0);
+        int chatty = 0;
+        for (int i = 0; i < 50; ++i) {
+            if (queue.poll() >= 1000) {
+                ++chatty;
+                queue.add(next++, "chatty", 0);
+            }
+        }
+        assertEquals(chatty, 25);
+        assertEquals(queue.getTenantCount(), 2);
+    }
+}
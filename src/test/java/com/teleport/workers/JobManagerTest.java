@@ -2,6 +2,20 @@ package com.teleport.workers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
@@ -29,4 +43,502 @@ public class JobManagerTest {
         assertEquals(result.getOutput(), "foobar");
         assertEquals(job2.getStatus(), Job.JobStatus.FINISHED);
     }
+
+    /**
+     * Test pumps are released once jobs finish
+     */
+    @Test
+    public void jobManagerReleasesPumps() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setVirtualPumps(false).setMaxPumpThreads(2));
+        Job job1 = new Job("echo foo");
+        Job job2 = new Job("echo bar");
+        Job job3 = new Job("echo baz");
+        manager.addJob(job1);
+        manager.addJob(job2);
+        manager.addJob(job3);
+        WorkerTest.waitOnStatus(job1, 5);
+        WorkerTest.waitOnStatus(job2, 5);
+        WorkerTest.waitOnStatus(job3, 5);
+        assertEquals(job3.getResult().getOutput(), "baz");
+        // Pumps reap their process after publishing the result
+        for (int i = 0; i < 10 && manager.getActivePumps() > 0; ++i) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertEquals(manager.getActivePumps(), 0);
+        assertEquals(manager.getCompletedPumps(), 3);
+        manager.shutdown();
+    }
+
+    /**
+     * Test jobs beyond the running cap are queued and started as slots free up
+     */
+    @Test
+    public void jobManagerQueuesJobsOverCap() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRunningJobs(1).setMaxQueuedJobs(2));
+        Job longJob = new Job("./test_apps/loop.sh");
+        Job job1 = new Job("echo foo");
+        Job job2 = new Job("echo bar");
+        long longId = manager.addJob(longJob);
+        long id1 = manager.addJob(job1);
+        manager.addJob(job2);
+        assertEquals(job1.getStatus(), Job.JobStatus.QUEUED);
+        assertEquals(job2.getStatus(), Job.JobStatus.QUEUED);
+        assertEquals(manager.getQueuedCount(), 2);
+
+        manager.stopJob(longId);
+        WorkerTest.waitOnStatus(job1, 5);
+        WorkerTest.waitOnStatus(job2, 5);
+        assertEquals(manager.queryJob(id1).getResult().getOutput(), "foo");
+        assertEquals(job2.getResult().getOutput(), "bar");
+        assertEquals(manager.getQueuedCount(), 0);
+    }
+
+    /**
+     * Test queued jobs are handed slots by tenant share and priority
+     */
+    @Test
+    public void jobManagerSchedulesQueuedJobsFairly() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRunningJobs(1));
+        long longId = manager.addJob(new Job("./test_apps/loop.sh"));
+        Job bulk = new Job("sleep 0.2", "bulk", 0);
+        manager.addJob(bulk);
+        for (int i = 0; i < 5; ++i) {
+            manager.addJob(new Job("sleep 0.2", "bulk", 0));
+        }
+        Job urgent = new Job("echo urgent", "interactive", 10);
+        manager.addJob(urgent);
+        assertEquals(manager.getQueuedCount(), 7);
+        assertEquals(manager.getQueuedTenantCount(), 2);
+
+        // The interactive job only waits for the first bulk job, not the whole batch
+        manager.stopJob(longId);
+        WorkerTest.waitOnStatus(urgent, 5);
+        assertEquals(urgent.getResult().getOutput(), "urgent");
+        assertTrue(bulk.isDone());
+        assertTrue(manager.getQueuedCount() >= 4);
+        manager.stopJobs(Job.JobStatus.QUEUED, 0);
+    }
+
+    /**
+     * Test jobs are rejected once the queue is full
+     */
+    @Test(expected = RejectedExecutionException.class)
+    public void jobManagerRejectsWhenQueueFull() {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRunningJobs(1).setMaxQueuedJobs(1));
+        long longId = manager.addJob(new Job("./test_apps/loop.sh"));
+        try {
+            manager.addJob(new Job("echo foo"));
+            manager.addJob(new Job("echo bar"));
+        } finally {
+            manager.stopJob(longId);
+        }
+    }
+
+    /**
+     * Test jobs rejected by a full queue never show up in status events
+     */
+    @Test
+    public void jobManagerDoesNotPublishRejectedJobs() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRunningJobs(1).setMaxQueuedJobs(1));
+        EventDispatcher.Subscription subscription = manager.subscribe(null, null, false, () -> { });
+        long longId = manager.addJob(new Job("./test_apps/loop.sh"));
+        Job queued = new Job("echo foo");
+        Job rejected = new Job("echo bar");
+        manager.addJob(queued);
+        try {
+            manager.addJob(rejected);
+            fail("job was admitted past a full queue");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        rejected.setStatus(Job.JobStatus.ERROR);
+        manager.stopJob(longId);
+        WorkerTest.waitOnStatus(queued, 5);
+
+        // Events are dispatched in order, so once the queued job's finish is in, so is anything about the other one
+        List<EventDispatcher.Event> events = new ArrayList<>();
+        boolean finished = false;
+        for (int i = 0; i < 250 && !finished; ++i) {
+            for (EventDispatcher.Event event = subscription.poll(); event != null; event = subscription.poll()) {
+                events.add(event);
+                finished |= event.getJob() == queued && event.getStatus() == Job.JobStatus.FINISHED;
+            }
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertTrue(finished);
+        for (EventDispatcher.Event event : events) {
+            assertNotSame(event.getJob(), rejected);
+        }
+        subscription.close();
+        manager.shutdown();
+    }
+
+    /**
+     * Test job ids are unique, increasing and small enough for JavaScript clients
+     */
+    @Test
+    public void jobIdsShouldIncrease() {
+        JobIds ids = new JobIds();
+        long previous = ids.next();
+        for (int i = 0; i < 10000; ++i) {
+            long id = ids.next();
+            assertTrue(id > previous);
+            previous = id;
+        }
+        assertTrue(previous <= JobIds.MAX_ID);
+        assertTrue(Math.abs(JobIds.timestampOf(previous) - System.currentTimeMillis()) < 60000);
+    }
+
+    /**
+     * Test sharded job ids increase and all carry their shard, also after advancing past another shard's id
+     */
+    @Test
+    public void jobIdsShouldCarryShard() {
+        JobIds ids = new JobIds(5, 3);
+        long previous = ids.next();
+        assertEquals(JobIds.shardOf(previous, 3), 5);
+        ids.advancePast(previous + 10);
+        for (int i = 0; i < 10000; ++i) {
+            long id = ids.next();
+            assertTrue(id > previous);
+            assertEquals(JobIds.shardOf(id, 3), 5);
+            previous = id;
+        }
+        assertTrue(Math.abs(JobIds.timestampOf(previous) - System.currentTimeMillis()) < 60000);
+    }
+
+    /**
+     * Test finished jobs are evicted once more than the retained count have finished
+     */
+    @Test
+    public void jobManagerEvictsFinishedJobs() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRetainedJobs(1));
+        Job job1 = new Job("echo foo");
+        long id1 = manager.addJob(job1);
+        WorkerTest.waitOnStatus(job1, 5);
+        for (int i = 0; i < 10 && manager.getRetainedCount() < 1; ++i) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        Job job2 = new Job("echo bar");
+        long id2 = manager.addJob(job2);
+        WorkerTest.waitOnStatus(job2, 5);
+        for (int i = 0; i < 10 && manager.queryJob(id1) != null; ++i) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertNull(manager.queryJob(id1));
+        assertEquals(manager.queryJob(id2).getResult().getOutput(), "bar");
+        assertEquals(manager.getJobCount(), 1);
+        manager.shutdown();
+    }
+
+    /**
+     * Test finished jobs expire after the TTL
+     */
+    @Test
+    public void jobManagerExpiresFinishedJobs() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setRetentionTtlMillis(200));
+        Job job = new Job("echo foo");
+        long id = manager.addJob(job);
+        WorkerTest.waitOnStatus(job, 5);
+        for (int i = 0; i < 20 && manager.queryJob(id) != null; ++i) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertNull(manager.queryJob(id));
+        manager.shutdown();
+    }
+
+    /**
+     * Test finished output is compressed in the background and still reads back the same
+     */
+    @Test
+    public void jobManagerCompressesFinishedOutput() throws InterruptedException {
+        JobManager manager = new JobManager();
+        Job job = new Job("./test_apps/log_output.sh");
+        long id = manager.addJob(job);
+        WorkerTest.waitOnStatus(job, 5);
+        String expected = job.getResult().getOutput();
+        long size = job.getOutput().size();
+        for (int i = 0; i < 20 && (!(job.getOutput() instanceof CompressedOutput)
+            || manager.getRetainedBytes() >= size); ++i) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertTrue(job.getOutput() instanceof CompressedOutput);
+        assertTrue(manager.getRetainedBytes() * 3 < size);
+        assertEquals(manager.queryJob(id).getResult().getOutput(), expected);
+        assertTrue(expected.endsWith("request 5000 handled in 3ms"));
+        manager.shutdown();
+    }
+
+    /**
+     * Test spooled output is written to a file and deleted once the job is evicted
+     */
+    @Test
+    public void jobManagerSpoolsOutput() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("spool-test");
+        JobManager manager = new JobManager(new JobManagerConfig().setSpoolOutput(true)
+            .setSpoolDirectory(directory.toString()).setMaxRetainedJobs(1));
+        Job job1 = new Job("echo foobar");
+        manager.addJob(job1);
+        WorkerTest.waitOnStatus(job1, 5);
+        assertEquals(job1.getStatus(), Job.JobStatus.FINISHED);
+        assertEquals(job1.getResult().getOutput(), "foobar");
+        assertTrue(job1.getOutput().isSpooled());
+        Path path = ((SpoolFile) job1.getOutput()).getPath();
+        assertTrue(Files.exists(path));
+
+        Job job2 = new Job("echo bar");
+        manager.addJob(job2);
+        WorkerTest.waitOnStatus(job2, 5);
+        for (int i = 0; i < 10 && Files.exists(path); ++i) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertFalse(Files.exists(path));
+        manager.shutdown();
+    }
+
+    /**
+     * Test jobs started by the fork server report their output, stderr, spawn failures and stops
+     */
+    @Test
+    public void jobManagerUsesForkServer() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("fork-test");
+        JobManager manager = new JobManager(new JobManagerConfig().setForkServer(true).setSeparateStderr(true)
+            .setSpoolDirectory(directory.toString()));
+        Job job = new Job("echo foo bar");
+        Job errorJob = new Job("./test_apps/error.sh");
+        Job badJob = new Job("foobar123app");
+        Job longJob = new Job("./test_apps/loop.sh");
+        long id = manager.addJob(job);
+        manager.addJob(errorJob);
+        manager.addJobAsync(badJob);
+        long longId = manager.addJob(longJob);
+        WorkerTest.waitOnStatus(job, 5);
+        WorkerTest.waitOnStatus(errorJob, 5);
+        WorkerTest.waitOnStatus(badJob, 5);
+        assertEquals(manager.queryJob(id).getResult().getOutput(), "foo bar");
+        assertEquals(errorJob.getResult().getErrorOutput(), "error message");
+        assertEquals(badJob.getStatus(), Job.JobStatus.ERROR);
+        assertNotNull(badJob.getError());
+
+        assertEquals(longJob.getStatus(), Job.JobStatus.RUNNING);
+        manager.stopJob(longId);
+        WorkerTest.waitOnStatus(longJob, 5);
+        assertEquals(longJob.getStatus(), Job.JobStatus.STOPPED);
+        manager.shutdown();
+    }
+
+    /**
+     * Test bulk stops by status and command prefix
+     */
+    @Test
+    public void jobManagerStopsJobsInBulk() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRunningJobs(2));
+        Job loop1 = new Job("./test_apps/loop.sh");
+        Job loop2 = new Job("./test_apps/loop.sh");
+        Job queued = new Job("./test_apps/slow_output.sh");
+        manager.addJob(loop1);
+        manager.addJob(loop2);
+        manager.addJob(queued);
+        assertEquals(queued.getStatus(), Job.JobStatus.QUEUED);
+
+        assertEquals(manager.stopJobs(Job.JobStatus.QUEUED, 0), 1);
+        assertEquals(queued.getStatus(), Job.JobStatus.STOPPED);
+        assertEquals(manager.stopJobsByCommand("./test_apps/loop", 1000), 2);
+        WorkerTest.waitOnStatus(loop1, 5);
+        WorkerTest.waitOnStatus(loop2, 5);
+        assertEquals(loop1.getStatus(), Job.JobStatus.STOPPED);
+        assertEquals(loop2.getStatus(), Job.JobStatus.STOPPED);
+        assertEquals(manager.stopJobsByCommand("./test_apps/loop", 1000), 0);
+        manager.shutdown();
+    }
+
+    /**
+     * Test usage is sampled for running jobs and jobs over a limit are stopped
+     */
+    @Test
+    public void jobManagerEnforcesLimits() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setUsageIntervalMillis(50)
+            .setMaxCpuMillis(200).setMaxWallMillis(1500));
+        Job busy = new Job("./test_apps/busy.sh");
+        Job sleeping = new Job("./test_apps/loop.sh");
+        manager.addJob(busy);
+        manager.addJob(sleeping);
+        WorkerTest.waitOnStatus(busy, 5);
+        assertEquals(busy.getStatus(), Job.JobStatus.STOPPED);
+        assertEquals(busy.getError(), "cpu limit exceeded");
+        assertTrue(busy.getUsage().getCpuMillis() > 200);
+        assertTrue(busy.getUsage().getPeakRssBytes() > 0);
+
+        WorkerTest.waitOnStatus(sleeping, 5);
+        assertEquals(sleeping.getStatus(), Job.JobStatus.STOPPED);
+        assertEquals(sleeping.getError(), "wall clock limit exceeded");
+        assertTrue(sleeping.getUsage().getSampledAt() > 0);
+        manager.shutdown();
+    }
+
+    /**
+     * Test async launches return right away and report spawn failures through status
+     */
+    @Test
+    public void jobManagerLaunchesAsync() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setLauncherThreads(2));
+        Job job = new Job("echo foobar");
+        Job badJob = new Job("foobar123app");
+        long id = manager.addJobAsync(job);
+        long badId = manager.addJobAsync(badJob);
+        assertTrue(id != badId);
+        WorkerTest.waitOnStatus(job, 5);
+        WorkerTest.waitOnStatus(badJob, 5);
+        assertEquals(manager.queryJob(id).getResult().getOutput(), "foobar");
+        assertEquals(manager.queryJob(badId).getStatus(), Job.JobStatus.ERROR);
+        assertNotNull(badJob.getError());
+        manager.shutdown();
+    }
+
+    /**
+     * Test batches are admitted in order, rejecting what doesn't fit in the queue
+     */
+    @Test
+    public void jobManagerAddsBatches() throws InterruptedException {
+        JobManager manager = new JobManager(new JobManagerConfig().setMaxRunningJobs(1).setMaxQueuedJobs(1));
+        List<Job> batch = Arrays.asList(new Job("echo foo"), new Job("echo bar"), new Job("echo baz"));
+        long[] ids = manager.addJobsAsync(batch);
+        assertTrue(ids[0] != -1);
+        assertTrue(ids[1] != -1);
+        assertEquals(ids[2], -1);
+
+        List<Job> jobs = manager.queryJobs(new long[]{ids[0], ids[1], 12345});
+        assertNull(jobs.get(2));
+        WorkerTest.waitOnStatus(jobs.get(0), 5);
+        WorkerTest.waitOnStatus(jobs.get(1), 5);
+        assertEquals(jobs.get(0).getResult().getOutput(), "foo");
+        assertEquals(jobs.get(1).getResult().getOutput(), "bar");
+        manager.shutdown();
+    }
+
+    /**
+     * Test manager records job metrics
+     */
+    @Test
+    public void jobManagerRecordsMetrics() throws InterruptedException, IOException {
+        JobManager manager = new JobManager();
+        Job job = new Job("echo foobar");
+        manager.addJob(job);
+        WorkerTest.waitOnStatus(job, 5);
+
+        StringWriter out = new StringWriter();
+        manager.getMetrics().writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text.contains("worker_jobs_started_total 1\n"));
+        assertTrue(text.contains("worker_spawn_duration_seconds_count 1\n"));
+        assertTrue(text.contains("worker_output_bytes_total 7\n"));
+        assertTrue(text.contains("worker_jobs_running "));
+        manager.shutdown();
+    }
+
+    /**
+     * Test finished jobs survive a restart, and jobs that were running come back as errors
+     */
+    @Test
+    public void jobManagerRecoversFromJournal() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("journal-test");
+        JobManagerConfig config = new JobManagerConfig().setJournal(true).setJournalDirectory(directory.toString())
+            .setMaxRetainedJobs(3).setJournalCompactBytes(1024);
+        JobManager manager = new JobManager(config);
+        long runningId = manager.addJob(new Job("test_apps/slow_output.sh"));
+        long evictedId = manager.addJob(new Job("echo evicted"));
+        long finishedId = manager.addJob(new Job("echo foo", "team", 3));
+        long errorId = manager.addJobAsync(new Job("foobar123app"));
+        for (int i = 0; i < 100 && manager.getRetainedCount() < 3; ++i) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        manager.addJob(new Job("echo bar"));
+        // Querying would make the job recently used, so wait on the count instead
+        for (int i = 0; i < 100 && manager.getJobCount() > 4; ++i) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        manager.syncJournal();
+        manager.shutdown();
+        TimeUnit.MILLISECONDS.sleep(20);
+        long restartedAt = System.currentTimeMillis();
+
+        // Garbage from a write torn by the crash is dropped
+        Files.write(directory.resolve("journal.log"), new byte[]{0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+        // Room for the interrupted job too, it's the oldest so it would be evicted first
+        JobManager recovered = new JobManager(config.setMaxRetainedJobs(4));
+        assertNull(recovered.queryJob(evictedId));
+        Job finished = recovered.queryJob(finishedId);
+        assertEquals(finished.getStatus(), Job.JobStatus.FINISHED);
+        assertEquals(finished.getResult().getOutput(), "foo");
+        assertEquals(finished.getTenant(), "team");
+        assertEquals(finished.getPriority(), 3);
+        assertTrue(finished.getStatusTime(Job.JobStatus.FINISHED) < restartedAt);
+        assertEquals(recovered.queryJob(errorId).getStatus(), Job.JobStatus.ERROR);
+        Job running = recovered.queryJob(runningId);
+        assertEquals(running.getStatus(), Job.JobStatus.ERROR);
+        assertEquals(running.getError(), "interrupted by restart");
+        assertTrue(recovered.addJob(new Job("echo baz")) > errorId);
+        recovered.shutdown();
+    }
+
+    /**
+     * Test only the end of a big output is journaled
+     */
+    @Test
+    public void jobManagerJournalsOutputTail() throws InterruptedException, IOException {
+        Path directory = Files.createTempDirectory("journal-test");
+        JobManagerConfig config = new JobManagerConfig().setJournal(true).setJournalDirectory(directory.toString())
+            .setJournalOutputBytes(4);
+        JobManager manager = new JobManager(config);
+        long id = manager.addJob(new Job("echo foobar"));
+        WorkerTest.waitOnStatus(manager.queryJob(id), 5);
+        manager.syncJournal();
+        manager.shutdown();
+
+        JobManager recovered = new JobManager(config);
+        Job job = recovered.queryJob(id);
+        assertEquals(job.getResult().getOutput(), "bar");
+        assertEquals(job.getOutput().getTotalBytes(), 7);
+        assertTrue(job.getOutput().isTruncated());
+        recovered.shutdown();
+    }
+
+    /**
+     * Test syncing a closed journal fails instead of waiting on a writer that's gone
+     */
+    @Test(expected = IllegalStateException.class)
+    public void jobManagerRejectsSyncAfterShutdown() throws IOException {
+        Path directory = Files.createTempDirectory("journal-test");
+        JobManager manager = new JobManager(new JobManagerConfig().setJournal(true)
+            .setJournalDirectory(directory.toString()));
+        manager.addJob(new Job("echo foo"));
+        manager.syncJournal();
+        manager.shutdown();
+        manager.syncJournal();
+    }
+
+    /**
+     * Test identical cacheable jobs share one process while in flight and reuse its result once finished
+     */
+    @Test
+    public void jobManagerCachesResults() throws InterruptedException {
+        JobManager manager = new JobManager();
+        Job first = new Job("sleep 0.5");
+        long id = manager.addCacheableJob(first, 60000);
+        assertEquals(manager.addCacheableJob(new Job("sleep  0.5"), 60000), id);
+        WorkerTest.waitOnStatus(first, 5);
+        assertEquals(first.getStatus(), Job.JobStatus.FINISHED);
+        assertEquals(manager.addCacheableJob(new Job("sleep 0.5"), 60000), id);
+
+        // Too old for the caller, so it runs again and the new job is what gets reused from then on
+        TimeUnit.MILLISECONDS.sleep(50);
+        long rerun = manager.addCacheableJob(new Job("sleep 0.5"), 10);
+        assertTrue(rerun != id);
+        assertEquals(manager.addCacheableJob(new Job("sleep 0.5"), 60000), rerun);
+        // Plain submissions never use the cache
+        assertTrue(manager.addJobAsync(new Job("sleep 0.5")) != rerun);
+        manager.shutdown();
+    }
 }
@@ -2,6 +2,8 @@ package com.teleport.workers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import org.junit.Test;
 
@@ -39,4 +41,65 @@ public class JobTest {
         j.setResult(new Result(""));
         j.setResult(new Result("invalid"));
     }
+
+    /**
+     * Test only legal status transitions are applied
+     */
+    @Test
+    public void statusShouldOnlyMoveForward() {
+        Job j = new Job("ls");
+        assertEquals(j.getStatus(), Job.JobStatus.STOPPED);
+        assertFalse(j.isDone());
+        assertFalse(j.setStatus(Job.JobStatus.FINISHED));
+        assertTrue(j.setStatus(Job.JobStatus.QUEUED));
+        assertFalse(j.compareAndSetStatus(Job.JobStatus.RUNNING, Job.JobStatus.FINISHED));
+        assertTrue(j.compareAndSetStatus(Job.JobStatus.QUEUED, Job.JobStatus.RUNNING));
+        assertTrue(j.setStatus(Job.JobStatus.FINISHED));
+        assertTrue(j.isDone());
+
+        // A finished job can't be stopped or restarted
+        assertFalse(j.setStatus(Job.JobStatus.STOPPED));
+        assertFalse(j.setStatus(Job.JobStatus.RUNNING));
+        assertEquals(j.getStatus(), Job.JobStatus.FINISHED);
+    }
+
+    /**
+     * Test stopped jobs stay stopped
+     */
+    @Test
+    public void stoppedJobShouldNotRestart() {
+        Job j = new Job("ls");
+        assertTrue(j.setStatus(Job.JobStatus.RUNNING));
+        assertTrue(j.setStatus(Job.JobStatus.STOPPED));
+        assertTrue(j.isDone());
+        assertFalse(j.setStatus(Job.JobStatus.RUNNING));
+        assertFalse(j.setStatus(Job.JobStatus.FINISHED));
+        assertEquals(j.getStatus(), Job.JobStatus.STOPPED);
+    }
+
+    /**
+     * Test status change times are recorded
+     */
+    @Test
+    public void statusTimesShouldBeRecorded() {
+        Job j = new Job("ls");
+        assertEquals(j.getStatusTime(Job.JobStatus.RUNNING), 0);
+        j.setStatus(Job.JobStatus.RUNNING);
+        assertTrue(j.getStatusTime(Job.JobStatus.RUNNING) >= j.getCreatedAt());
+    }
+
+    /**
+     * Test completion only fires once the job is done
+     */
+    @Test
+    public void completionShouldWaitForFinalStatus() {
+        Job j = new Job("ls");
+        j.setStatus(Job.JobStatus.RUNNING);
+        j.complete();
+        assertFalse(j.getCompletion().isDone());
+        j.setStatus(Job.JobStatus.FINISHED);
+        j.complete();
+        assertTrue(j.getCompletion().isDone());
+        assertEquals(j.getCompletion().join(), j);
+    }
 }
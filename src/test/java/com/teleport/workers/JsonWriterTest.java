@@ -0,0 +1,85 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Unit tests for JsonWriter
+ */
+public class JsonWriterTest {
+
+    private static String write(byte[] output, boolean closed, boolean stripNewline) throws IOException {
+        OutputBuffer buffer = new OutputBuffer(output.length + 1, OutputBuffer.Retain.HEAD);
+        buffer.write(output, 0, output.length);
+        if (closed) {
+            buffer.close();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter writer = new JsonWriter(bytes, 0)) {
+            writer.beginObject().name("output").value(buffer, stripNewline).endObject();
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Test objects, arrays and escapes are written compactly
+     */
+    @Test
+    public void writerShouldWriteCompactJson() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter writer = new JsonWriter(bytes, 0)) {
+            writer.beginObject()
+                .name("status").value("fin\"ished\\")
+                .name("id").value(42)
+                .name("jobs").beginArray().beginObject().endObject().value(true).endArray()
+                .name("text").value("tab\there \u00e9 \ud83d\ude00 \u0001")
+                .endObject();
+        }
+        assertEquals(new String(bytes.toByteArray(), StandardCharsets.UTF_8),
+            "{\"status\":\"fin\\\"ished\\\\\",\"id\":42,\"jobs\":[{},true],"
+            + "\"text\":\"tab\\there \u00e9 \ud83d\ude00 \\u0001\"}");
+    }
+
+    /**
+     * Test pretty-printing with an indent
+     */
+    @Test
+    public void writerShouldIndent() {
+        assertEquals(new String(JsonWriter.toBytes(2, "error", "invalid request", "retry_after", 1),
+            StandardCharsets.UTF_8), "{\n  \"error\": \"invalid request\",\n  \"retry_after\": 1\n}");
+        assertEquals(new String(JsonWriter.toBytes(2), StandardCharsets.UTF_8), "{}");
+    }
+
+    /**
+     * Test output is decoded the same way as Result.getOutput(), including the final newline being dropped
+     */
+    @Test
+    public void outputShouldMatchResult() throws IOException {
+        byte[] output = "line one\n\"quoted\" \u00fcml\u00e4ut\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals(new JSONObject(write(output, true, true)).getString("output"),
+            new Result(new String(output, StandardCharsets.UTF_8)).getOutput().replaceAll("\n$", ""));
+        assertEquals(new JSONObject(write(output, false, false)).getString("output"),
+            new String(output, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Test invalid UTF-8 is replaced like String decoding does
+     */
+    @Test
+    public void invalidOutputShouldBeReplaced() throws IOException {
+        Random random = new Random(7);
+        for (int i = 0; i < 200; ++i) {
+            // Some outputs span several buffer chunks, so sequences get split across writes
+            byte[] output = new byte[random.nextInt(i % 10 == 0 ? 20000 : 64)];
+            random.nextBytes(output);
+            String expected = new String(output, StandardCharsets.UTF_8);
+            assertEquals(new JSONObject(write(output, true, false)).getString("output"), expected);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for Metrics
+ */
+public class MetricsTest {
+
+    /**
+     * Test histogram buckets are cumulative in the exported text
+     */
+    @Test
+    public void histogramShouldExportCumulativeBuckets() throws IOException {
+        Metrics metrics = new Metrics();
+        Metrics.Histogram histogram = metrics.histogram("test_seconds", "Test histogram");
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(20));
+        histogram.record(TimeUnit.SECONDS.toNanos(1000));
+        assertEquals(histogram.getCount(), 3);
+
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"5.0E-4\"} 1\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"0.025\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"300.0\"} 2\n"));
+        assertTrue(text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("test_seconds_count 3\n"));
+    }
+
+    /**
+     * Test labelled series share one HELP/TYPE header
+     */
+    @Test
+    public void labelledSeriesShouldShareHeader() throws IOException {
+        Metrics metrics = new Metrics();
+        metrics.counter("test_total", "endpoint=\"a\"", "Test counter").add(2);
+        metrics.counter("test_total", "endpoint=\"b\"", "Test counter").increment();
+        metrics.gauge("test_gauge", "Test gauge", () -> 7);
+
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        assertEquals(out.toString(),
+            "# HELP test_total Test counter\n"
+            + "# TYPE test_total counter\n"
+            + "test_total{endpoint=\"a\"} 2\n"
+            + "test_total{endpoint=\"b\"} 1\n"
+            + "# HELP test_gauge Test gauge\n"
+            + "# TYPE test_gauge gauge\n"
+            + "test_gauge 7\n");
+    }
+}
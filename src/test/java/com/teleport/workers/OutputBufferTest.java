@@ -0,0 +1,253 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for OutputBuffers
+ */
+public class OutputBufferTest {
+
+    private static byte[] sequence(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) i;
+        }
+        return bytes;
+    }
+
+    /**
+     * Test output spanning several chunks is read back unchanged
+     */
+    @Test
+    public void bufferShouldKeepOutputUnderCap() throws IOException {
+        byte[] bytes = sequence(OutputBuffer.CHUNK_SIZE * 3 + 17);
+        OutputBuffer buffer = new OutputBuffer(1 << 20, OutputBuffer.Retain.TAIL);
+        assertEquals(buffer.readFrom(new ByteArrayInputStream(bytes)), bytes.length);
+        assertArrayEquals(buffer.toByteArray(), bytes);
+        assertFalse(buffer.isTruncated());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+        assertArrayEquals(out.toByteArray(), bytes);
+    }
+
+    /**
+     * Test HEAD retention keeps the first bytes and counts the rest
+     */
+    @Test
+    public void headBufferShouldKeepFirstBytes() throws IOException {
+        byte[] bytes = sequence(OutputBuffer.CHUNK_SIZE * 2 + 5);
+        OutputBuffer buffer = new OutputBuffer(OutputBuffer.CHUNK_SIZE + 3, OutputBuffer.Retain.HEAD);
+        buffer.readFrom(new ByteArrayInputStream(bytes));
+        assertArrayEquals(buffer.toByteArray(), Arrays.copyOf(bytes, OutputBuffer.CHUNK_SIZE + 3));
+        assertEquals(buffer.getTotalBytes(), bytes.length);
+        assertTrue(buffer.isTruncated());
+    }
+
+    /**
+     * Test TAIL retention keeps the last bytes
+     */
+    @Test
+    public void tailBufferShouldKeepLastBytes() throws IOException {
+        byte[] bytes = sequence(OutputBuffer.CHUNK_SIZE * 4 + 11);
+        int cap = OutputBuffer.CHUNK_SIZE + 100;
+        OutputBuffer buffer = new OutputBuffer(cap, OutputBuffer.Retain.TAIL);
+        buffer.readFrom(new ByteArrayInputStream(bytes));
+        assertArrayEquals(buffer.toByteArray(), Arrays.copyOfRange(bytes, bytes.length - cap, bytes.length));
+        assertEquals(buffer.size(), cap);
+        assertEquals(buffer.getTotalBytes(), bytes.length);
+
+        buffer.write(bytes, 0, 10);
+        byte[] expected = new byte[cap];
+        System.arraycopy(bytes, bytes.length - cap + 10, expected, 0, cap - 10);
+        System.arraycopy(bytes, 0, expected, cap - 10, 10);
+        assertArrayEquals(buffer.toByteArray(), expected);
+    }
+
+    /**
+     * Test chunks dropped by TAIL retention are written over cleanly when they're reused
+     */
+    @Test
+    public void tailBufferShouldReuseDroppedChunks() {
+        byte[] bytes = new byte[OutputBuffer.CHUNK_SIZE * 6 + 333];
+        new Random(42).nextBytes(bytes);
+        int cap = OutputBuffer.CHUNK_SIZE * 2 + 50;
+        OutputBuffer buffer = new OutputBuffer(cap, OutputBuffer.Retain.TAIL);
+        for (int offset = 0; offset < bytes.length; offset += 1000) {
+            buffer.write(bytes, offset, Math.min(1000, bytes.length - offset));
+        }
+        assertArrayEquals(buffer.toByteArray(), Arrays.copyOfRange(bytes, bytes.length - cap, bytes.length));
+        assertArrayEquals(buffer.read(bytes.length - cap + 10, 5000).getBytes(),
+            Arrays.copyOfRange(bytes, bytes.length - cap + 10, bytes.length - cap + 5010));
+    }
+
+    /**
+     * Test reads with a negative length are rejected instead of failing to allocate
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void bufferShouldRejectNegativeReadLength() {
+        OutputBuffer buffer = new OutputBuffer(100, OutputBuffer.Retain.TAIL);
+        buffer.write(new byte[10], 0, 10);
+        buffer.read(0, -1);
+    }
+
+    /**
+     * Test closed buffers can't be written to
+     */
+    @Test(expected = IllegalStateException.class)
+    public void closedBufferShouldRejectWrites() {
+        OutputBuffer buffer = new OutputBuffer(10, OutputBuffer.Retain.HEAD);
+        buffer.close();
+        buffer.write(new byte[1], 0, 1);
+    }
+
+    /**
+     * Test offset reads continue where the previous read left off and skip discarded bytes
+     */
+    @Test
+    public void bufferShouldReadFromOffsets() throws IOException {
+        byte[] bytes = sequence(OutputBuffer.CHUNK_SIZE * 2 + 7);
+        OutputBuffer buffer = new OutputBuffer(OutputBuffer.CHUNK_SIZE, OutputBuffer.Retain.TAIL);
+        buffer.write(bytes, 0, 100);
+        OutputBuffer.Slice slice = buffer.read(0, 60);
+        assertArrayEquals(slice.getBytes(), Arrays.copyOf(bytes, 60));
+        assertEquals(slice.getNextOffset(), 60);
+
+        buffer.write(bytes, 100, bytes.length - 100);
+        slice = buffer.read(slice.getNextOffset(), Integer.MAX_VALUE);
+        long first = bytes.length - OutputBuffer.CHUNK_SIZE;
+        assertEquals(slice.getOffset(), first);
+        assertArrayEquals(slice.getBytes(), Arrays.copyOfRange(bytes, (int) first, bytes.length));
+        assertEquals(slice.getNextOffset(), bytes.length);
+        assertEquals(buffer.read(bytes.length, 10).getBytes().length, 0);
+    }
+
+    /**
+     * Test listeners hear about new output
+     */
+    @Test
+    public void bufferShouldNotifyListeners() {
+        OutputBuffer buffer = new OutputBuffer(100, OutputBuffer.Retain.HEAD);
+        int[] calls = new int[1];
+        buffer.addListener(() -> calls[0]++);
+        buffer.write(new byte[3], 0, 3);
+        buffer.close();
+        assertEquals(calls[0], 2);
+    }
+
+    private static String lines(int from, int to) {
+        StringBuilder text = new StringBuilder();
+        for (int i = from; i < to; ++i) {
+            text.append("line ").append(i).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static List<String> visit(LineIndex index, JobOutput output, long first, long end) throws IOException {
+        List<String> visited = new ArrayList<>();
+        index.forEach(output, first, end, (line, bytes, offset, length) -> {
+            visited.add(line + ":" + new String(bytes, offset, length, StandardCharsets.UTF_8));
+            return true;
+        });
+        return visited;
+    }
+
+    /**
+     * Test lines are indexed as output arrives, across chunks and with a last line that isn't finished yet
+     */
+    @Test
+    public void bufferShouldIndexLines() throws IOException {
+        byte[] bytes = (lines(0, 5000) + "partial").getBytes(StandardCharsets.UTF_8);
+        OutputBuffer buffer = new OutputBuffer(1 << 20, OutputBuffer.Retain.TAIL, true);
+        buffer.readFrom(new ByteArrayInputStream(bytes));
+        LineIndex index = buffer.getLineIndex();
+        assertEquals(index.getLineCount(), 5001);
+        assertEquals(visit(index, buffer, 4998, 5001),
+            Arrays.asList("4998:line 4998", "4999:line 4999", "5000:partial"));
+        assertEquals(visit(index, buffer, 0, 2), Arrays.asList("0:line 0", "1:line 1"));
+        assertEquals(visit(index, buffer, 6000, 7000).size(), 0);
+    }
+
+    /**
+     * Test line numbers stay the same after TAIL retention discards the first lines
+     */
+    @Test
+    public void tailBufferShouldKeepLineNumbers() throws IOException {
+        byte[] bytes = lines(0, 10000).getBytes(StandardCharsets.UTF_8);
+        OutputBuffer buffer = new OutputBuffer(OutputBuffer.CHUNK_SIZE, OutputBuffer.Retain.TAIL, true);
+        buffer.readFrom(new ByteArrayInputStream(bytes));
+        LineIndex index = buffer.getLineIndex();
+        assertEquals(index.getLineCount(), 10000);
+        assertTrue(index.getFirstLine() > 0);
+        assertEquals(visit(index, buffer, 9999, 10000), Arrays.asList("9999:line 9999"));
+        // Discarded lines are skipped, the first one left may only be partly there
+        List<String> all = visit(index, buffer, 0, 10000);
+        assertEquals(all.get(all.size() - 1), "9999:line 9999");
+        assertTrue(all.size() <= 10000 - index.getFirstLine());
+
+        OutputBuffer restored = OutputBuffer.restore(buffer.toByteArray(), buffer.getTotalBytes(),
+            OutputBuffer.Retain.TAIL);
+        List<String> restoredLines = visit(restored.getLineIndex(), restored, 0, 10000);
+        assertEquals(restoredLines.get(restoredLines.size() - 1).split(":")[1], "line 9999");
+    }
+
+    /**
+     * Test compressed output reads back the same bytes and offsets, and its blocks make a valid gzip stream
+     */
+    @Test
+    public void compressedOutputShouldMatchBuffer() throws IOException {
+        byte[] bytes = lines(0, 50000).getBytes(StandardCharsets.UTF_8);
+        OutputBuffer buffer = new OutputBuffer(bytes.length - 1000, OutputBuffer.Retain.TAIL, true);
+        buffer.readFrom(new ByteArrayInputStream(bytes));
+        buffer.close();
+        Metrics metrics = new Metrics();
+        CompressedOutput compressed = CompressedOutput.compress(buffer, new DecodedCache(1 << 20, metrics));
+        assertTrue(compressed.getCompressedSize() * 3 < buffer.size());
+        assertEquals(compressed.getFirstOffset(), 1000);
+        assertEquals(compressed.getTotalBytes(), buffer.getTotalBytes());
+        assertArrayEquals(compressed.toByteArray(), buffer.toByteArray());
+
+        long[] offsets = {0, 1000, CompressedOutput.BLOCK_SIZE - 5, 3L * CompressedOutput.BLOCK_SIZE + 7,
+            bytes.length - 3};
+        for (long offset : offsets) {
+            JobOutput.Slice expected = buffer.read(offset, CompressedOutput.BLOCK_SIZE + 100);
+            JobOutput.Slice actual = compressed.read(offset, CompressedOutput.BLOCK_SIZE + 100);
+            assertEquals(actual.getOffset(), expected.getOffset());
+            assertEquals(actual.getNextOffset(), expected.getNextOffset());
+            assertArrayEquals(actual.getBytes(), expected.getBytes());
+        }
+        assertEquals(visit(compressed.getLineIndex(), compressed, 49999, 50000), Arrays.asList("49999:line 49999"));
+        StringWriter exported = new StringWriter();
+        metrics.writePrometheus(exported);
+        assertFalse(exported.toString().contains("worker_decoded_cache_hits_total 0\n"));
+        assertFalse(exported.toString().contains("worker_decoded_cache_misses_total 0\n"));
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        compressed.writeGzipTo(gzip);
+        assertEquals(gzip.size(), compressed.getGzipSize());
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))) {
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                decoded.write(chunk, 0, read);
+            }
+        }
+        assertArrayEquals(decoded.toByteArray(), buffer.toByteArray());
+    }
+}
@@ -0,0 +1,28 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for Route
+ */
+public class RouteTest {
+
+    /**
+     * Test ids are parsed up to 19 digits, and numbers past Long.MAX_VALUE are invalid instead of overflowing
+     */
+    @Test
+    public void routeShouldParseLongIds() {
+        Route route = Route.parse("/worker/query/1000000000000000000");
+        assertTrue(route.getEndpoint() == Route.QUERY);
+        assertEquals(route.getId(), 1000000000000000000L);
+        assertEquals(Route.parse("/worker/stop/" + Long.MAX_VALUE + "/").getId(), Long.MAX_VALUE);
+        assertEquals(Route.parse("/worker/query/9223372036854775808").getId(), -1);
+        assertEquals(Route.parse("/worker/query/99999999999999999999").getId(), -1);
+        assertEquals(Route.parse("/worker/query/12a").getId(), -1);
+        assertNull(Route.parse("/worker/query/1/2").getEndpoint());
+    }
+}
@@ -0,0 +1,203 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit tests for ShardRouter, in front of two local worker instances
+ */
+public class ShardRouterTest {
+
+    private StandaloneServer[] shards;
+    private StandaloneServer router;
+
+    @Before
+    public void startServers() throws IOException, ServletException {
+        shards = new StandaloneServer[2];
+        StringBuilder urls = new StringBuilder();
+        for (int i = 0; i < shards.length; ++i) {
+            Properties params = new Properties();
+            params.setProperty("http.port", "0");
+            params.setProperty("http.maxThreads", "8");
+            params.setProperty("shard.id", Integer.toString(i));
+            params.setProperty("shard.bits", "1");
+            shards[i] = new StandaloneServer(params);
+            shards[i].start();
+            urls.append(i == 0 ? "" : ",").append("http://localhost:").append(shards[i].getPort());
+        }
+        Properties params = new Properties();
+        params.setProperty("http.port", "0");
+        params.setProperty("http.maxThreads", "8");
+        params.setProperty("router.shards", urls.toString());
+        params.setProperty("router.loadIntervalMillis", "60000");
+        router = new StandaloneServer(params);
+        router.start();
+    }
+
+    @After
+    public void stopServers() {
+        router.stop();
+        for (StandaloneServer shard : shards) {
+            shard.stop();
+        }
+    }
+
+    private HttpURLConnection open(StandaloneServer server, String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private JSONObject get(String path) throws IOException {
+        return new JSONObject(read(open(router, path)));
+    }
+
+    private JSONObject post(String path, JSONObject body) throws IOException {
+        HttpURLConnection connection = open(router, path);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return new JSONObject(read(connection));
+    }
+
+    /**
+     * Test starts are spread over both shards and every job is found through the shard in its id
+     */
+    @Test
+    public void routerSpreadsStartsAndForwardsById() throws IOException {
+        long[] ids = new long[4];
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = post("/worker/start", new JSONObject().put("file_path", "echo job" + i)).getLong("id");
+            used.add(JobIds.shardOf(ids[i], 1));
+        }
+        assertEquals(used.size(), 2);
+
+        for (int i = 0; i < ids.length; ++i) {
+            JSONObject waited = get("/worker/wait/" + ids[i] + "?timeout=5");
+            assertEquals(waited.getString("status"), "finished");
+            assertEquals(waited.getString("output"), "job" + i);
+            HttpURLConnection output = open(router, "/worker/output/" + ids[i]);
+            assertEquals(read(output), "job" + i + "\n");
+            assertEquals(output.getHeaderField("X-Output-Complete"), "true");
+        }
+        assertEquals(get("/worker/query/" + (ids[0] + 200)).getString("error"), "job does not exist");
+        assertEquals(get("/worker/query/foo").getString("error"), "invalid request");
+        assertTrue(read(open(router, "/worker/metrics")).contains("worker_router_forwarded_total{shard=\"1\"}"));
+    }
+
+    /**
+     * Test batch queries and stops are split between the shards and merged back in order
+     */
+    @Test
+    public void routerSplitsBatches() throws IOException, InterruptedException {
+        long[] ids = new long[4];
+        for (int i = 0; i < ids.length; ++i) {
+            ids[i] = post("/worker/start", new JSONObject().put("file_path", "sleep 30")).getLong("id");
+        }
+        for (long id : ids) {
+            for (int i = 0; i < 250 && !get("/worker/query/" + id).getString("status").equals("running"); ++i) {
+                TimeUnit.MILLISECONDS.sleep(20);
+            }
+        }
+        JSONObject stopped = post("/worker/batch/stop", new JSONObject().put("status", "running"));
+        assertEquals(stopped.getLong("stopped"), ids.length);
+
+        JSONArray queried = post("/worker/batch/query",
+            new JSONObject().put("ids", new JSONArray(ids)).put("status_only", true)).getJSONArray("jobs");
+        assertEquals(queried.length(), ids.length);
+        for (int i = 0; i < ids.length; ++i) {
+            assertEquals(queried.getJSONObject(i).getLong("id"), ids[i]);
+            assertEquals(queried.getJSONObject(i).getString("status"), "stopped");
+        }
+    }
+
+    /**
+     * Test a shard answering a batch stop with something that isn't JSON is reported as unavailable, and the
+     * other shards' stops are still counted
+     */
+    @Test
+    public void routerReportsShardsWithBadAnswers() throws IOException, InterruptedException, ServletException {
+        HttpServer broken = HttpServer.create(new InetSocketAddress(0), 0);
+        broken.createContext("/", exchange -> {
+            byte[] body = "not json".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        broken.start();
+        Properties params = new Properties();
+        params.setProperty("http.port", "0");
+        params.setProperty("http.maxThreads", "8");
+        params.setProperty("router.shards",
+            "http://localhost:" + shards[0].getPort() + ",http://localhost:" + broken.getAddress().getPort());
+        params.setProperty("router.loadIntervalMillis", "60000");
+        StandaloneServer partial = new StandaloneServer(params);
+        partial.start();
+        try {
+            HttpURLConnection start = open(shards[0], "/worker/start");
+            start.setRequestMethod("POST");
+            start.setRequestProperty("Content-Type", "application/json");
+            start.setDoOutput(true);
+            try (OutputStream out = start.getOutputStream()) {
+                out.write(new JSONObject().put("file_path", "sleep 30").toString().getBytes(StandardCharsets.UTF_8));
+            }
+            long id = new JSONObject(read(start)).getLong("id");
+            for (int i = 0; i < 250 && !new JSONObject(read(open(shards[0], "/worker/query/" + id)))
+                .getString("status").equals("running"); ++i) {
+                TimeUnit.MILLISECONDS.sleep(20);
+            }
+
+            HttpURLConnection stop = open(partial, "/worker/batch/stop");
+            stop.setRequestMethod("POST");
+            stop.setRequestProperty("Content-Type", "application/json");
+            stop.setDoOutput(true);
+            try (OutputStream out = stop.getOutputStream()) {
+                out.write(new JSONObject().put("status", "running").toString().getBytes(StandardCharsets.UTF_8));
+            }
+            JSONObject stopped = new JSONObject(read(stop));
+            assertEquals(stopped.getLong("stopped"), 1);
+            assertEquals(stopped.getJSONArray("unavailable_shards").getInt(0), 1);
+        } finally {
+            partial.stop();
+            broken.stop(0);
+        }
+    }
+}
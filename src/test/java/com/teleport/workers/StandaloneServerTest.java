@@ -0,0 +1,141 @@
+package com.teleport.workers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.servlet.ServletException;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit tests for StandaloneServer
+ */
+public class StandaloneServerTest {
+
+    private StandaloneServer server;
+
+    @Before
+    public void startServer() throws IOException, ServletException {
+        Properties params = new Properties();
+        params.setProperty("http.port", "0");
+        params.setProperty("http.maxThreads", "8");
+        server = new StandaloneServer(params);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path).openConnection();
+    }
+
+    private static String read(HttpURLConnection connection) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private JSONObject get(String path) throws IOException {
+        return new JSONObject(read(open(path)));
+    }
+
+    private long start(String command) throws IOException {
+        HttpURLConnection connection = open("/worker/start");
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(new JSONObject().put("file_path", command).toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return new JSONObject(read(connection)).getLong("id");
+    }
+
+    /**
+     * Test jobs can be started, waited on and queried like on the servlet container
+     */
+    @Test
+    public void standaloneServerRunsJobs() throws IOException {
+        long id = start("echo foobar");
+        JSONObject waited = get("/worker/wait/" + id + "?timeout=5");
+        assertEquals(waited.getString("status"), "finished");
+        assertEquals(waited.getString("output"), "foobar");
+        assertEquals(get("/worker/query/" + id + "/").getString("output"), "foobar");
+        assertEquals(get("/worker/query/" + id + "?tail=1").getJSONArray("lines").getJSONObject(0).getString("text"),
+            "foobar");
+        assertEquals(get("/worker/query/" + id + "?tail=-1").getString("error"), "invalid request");
+        assertEquals(get("/worker/output/" + id + "?offset=x").getString("error"), "invalid request");
+        assertEquals(get("/worker/output/" + id + "?limit=-1").getString("error"), "invalid request");
+        assertEquals(get("/worker/output/" + id + "?limit=0").getString("error"), "invalid request");
+        assertEquals(get("/worker/wait/" + id + "?timeout=x").getString("error"), "invalid request");
+        assertEquals(get("/worker/query/foo").getString("error"), "invalid request");
+        assertEquals(get("/worker/query/" + (id + 100)).getString("error"), "job does not exist");
+        assertTrue(read(open("/worker/metrics")).contains("worker_http_request_duration_seconds"));
+    }
+
+    /**
+     * Test output can be followed until the job ends, and waits time out with the job's current status,
+     * straight away with a zero timeout
+     */
+    @Test
+    public void standaloneServerParksAsyncRequests() throws IOException {
+        long id = start("test_apps/slow_output.sh");
+        assertEquals(get("/worker/wait/" + id + "?timeout=1").getString("status"), "running");
+        assertEquals(get("/worker/wait/" + id + "?timeout=0").getString("status"), "running");
+
+        HttpURLConnection follow = open("/worker/output/" + id + "?follow=true");
+        String output = read(follow);
+        assertEquals(follow.getResponseCode(), 200);
+        assertEquals(output, "started\ndone\n");
+        assertEquals(get("/worker/wait/" + id + "?timeout=5").getString("status"), "finished");
+    }
+
+    /**
+     * Test a job's status changes are pushed to an event stream subscribed to it
+     */
+    @Test
+    public void standaloneServerStreamsEvents() throws IOException {
+        long id = start("test_apps/slow_output.sh");
+        HttpURLConnection events = open("/worker/events?ids=" + id + "&output=false");
+        assertEquals(events.getContentType(), "text/event-stream;charset=UTF-8");
+        List<String> statuses = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+            new InputStreamReader(events.getInputStream(), StandardCharsets.UTF_8))) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.startsWith("data: ")) {
+                    JSONObject data = new JSONObject(line.substring(6));
+                    assertEquals(data.getLong("id"), id);
+                    statuses.add(data.getString("status"));
+                    if (data.getString("status").equals("finished")) {
+                        break;
+                    }
+                }
+            }
+        }
+        assertEquals(statuses.get(statuses.size() - 1), "finished");
+        assertTrue(statuses.contains("running"));
+    }
+}
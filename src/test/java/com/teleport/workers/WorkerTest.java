@@ -1,9 +1,17 @@
 package com.teleport.workers;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.Test;
 
@@ -21,11 +29,23 @@ public class WorkerTest {
         return true;
     }
 
+    /**
+     * Orphaned grandchildren are reaped by init, which may take a while in containers, so zombies count as gone
+     */
+    private static boolean isRunning(ProcessHandle process) {
+        try {
+            String stat = new String(Files.readAllBytes(Paths.get("/proc", Long.toString(process.pid()), "stat")));
+            return stat.charAt(stat.lastIndexOf(')') + 2) != 'Z';
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     public static void waitOnStatus(Job job, int secs) throws InterruptedException {
-        int count = secs * 2;
-        while (job.getStatus() == Job.JobStatus.RUNNING && count > 0) {
-            TimeUnit.MILLISECONDS.sleep(500);
-            --count;
+        try {
+            job.getCompletion().get(secs, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // Callers assert on the status themselves
         }
     }
 
@@ -62,6 +82,56 @@ public class WorkerTest {
         assertEquals(errorJob.getStatus(), Job.JobStatus.FINISHED);
     }
 
+    /**
+     * Test error streams are kept apart from the output when they're captured separately
+     */
+    @Test
+    public void workerShouldSeparateErrorStream() throws InterruptedException {
+        Worker worker = new Worker(PumpExecutor.getDefault(), new JobManagerConfig().setSeparateStderr(true));
+        Job errorJob = new Job("./test_apps/error.sh");
+        worker.execute(errorJob);
+        WorkerTest.waitOnStatus(errorJob, 5);
+        assertEquals(errorJob.getResult().getOutput(), "");
+        assertEquals(errorJob.getResult().getErrorOutput(), "error message");
+    }
+
+    /**
+     * Test stdout and stderr are captured apart, with a timeline of when each chunk arrived
+     */
+    @Test
+    public void workerShouldRecordOutputTimeline() throws InterruptedException, IOException {
+        Worker worker = new Worker(PumpExecutor.getDefault(), new JobManagerConfig().setSeparateStderr(true).setOutputTimestamps(true));
+        Job job = new Job("./test_apps/mixed_output.sh");
+        worker.execute(job);
+        WorkerTest.waitOnStatus(job, 5);
+        assertEquals(job.getResult().getOutput(), "first\nsecond");
+        assertEquals(job.getResult().getErrorOutput(), "oops");
+
+        StringBuilder streams = new StringBuilder();
+        long[] lastTime = {0};
+        job.getTimeline().forEach((time, stream, offset, length) -> {
+            assertTrue(time >= lastTime[0]);
+            lastTime[0] = time;
+            streams.append(stream == OutputTimeline.STDERR ? "E" : "O").append(offset).append('+').append(length).append(' ');
+        });
+        assertEquals(streams.toString(), "O0+6 E0+5 O6+7 ");
+    }
+
+    /**
+     * Test stderr has its own cap
+     */
+    @Test
+    public void workerShouldCapErrorOutput() throws InterruptedException {
+        JobManagerConfig config = new JobManagerConfig().setSeparateStderr(true).setMaxErrorBytes(5).setOutputRetention(OutputBuffer.Retain.HEAD);
+        Worker worker = new Worker(PumpExecutor.getDefault(), config);
+        Job errorJob = new Job("./test_apps/error.sh");
+        worker.execute(errorJob);
+        WorkerTest.waitOnStatus(errorJob, 5);
+        assertEquals(errorJob.getResult().getErrorOutput(), "error");
+        assertTrue(errorJob.getResult().isErrorTruncated());
+        assertEquals(errorJob.getResult().getErrorJobOutput().getTotalBytes(), 14);
+    }
+
     /**
      * Test worker stops process
      */
@@ -80,6 +150,35 @@ public class WorkerTest {
         assertEquals(longJob.getStatus(), Job.JobStatus.STOPPED);
     }
 
+    /**
+     * Test stop returns right away and kills the whole process tree, escalating to SIGKILL after the grace period
+     */
+    @Test
+    public void workerShouldKillProcessTree() throws InterruptedException {
+        JobMetrics metrics = new JobMetrics(new Metrics());
+        Worker worker = new Worker(PumpExecutor.getDefault(), null, metrics, new JobManagerConfig());
+        Job job = new Job("./test_apps/ignore_term.sh");
+        worker.execute(job);
+        List<ProcessHandle> tree = new ArrayList<>();
+        for (int i = 0; i < 50 && tree.isEmpty(); ++i) {
+            TimeUnit.MILLISECONDS.sleep(20);
+            worker.getProcess().descendants().forEach(tree::add);
+        }
+        assertEquals(tree.size(), 1);
+
+        long start = System.nanoTime();
+        worker.stopProcess(ProcessKiller.getDefault(), 300);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(200));
+        WorkerTest.waitOnStatus(job, 5);
+        assertEquals(job.getStatus(), Job.JobStatus.STOPPED);
+        assertTrue(waitOnProcess(worker.getProcess()));
+        for (int i = 0; i < 50 && isRunning(tree.get(0)); ++i) {
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+        assertFalse(isRunning(tree.get(0)));
+        assertEquals(metrics.stopEscalations.get(), 1);
+    }
+
     /**
      * Test workers should not overwrite Results
      */
@@ -107,6 +206,36 @@ public class WorkerTest {
         assertEquals(timeJob.getStatus(), Job.JobStatus.FINISHED);
     }
 
+    /**
+     * Test output is visible on the job while the process is still running
+     */
+    @Test
+    public void workerShouldExposeLiveOutput() throws InterruptedException, IOException {
+        Worker worker = new Worker();
+        Job job = new Job("./test_apps/slow_output.sh");
+        worker.execute(job);
+        JobOutput output = job.getOutput();
+        for (int i = 0; i < 50 && output.size() == 0; ++i) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+        assertEquals(job.getStatus(), Job.JobStatus.RUNNING);
+        assertEquals(new String(output.read(0, 100).getBytes()), "started\n");
+        worker.stopProcess();
+    }
+
+    /**
+     * Test stopped jobs complete once the process exits
+     */
+    @Test
+    public void stoppedJobShouldComplete() throws Exception {
+        Worker worker = new Worker();
+        Job longJob = new Job("./test_apps/loop.sh");
+        worker.execute(longJob);
+        worker.stopProcess();
+        assertEquals(longJob.getCompletion().get(5, TimeUnit.SECONDS), longJob);
+        assertEquals(longJob.getStatus(), Job.JobStatus.STOPPED);
+    }
+
     /**
      * Test invalid command should set status to -1
      */
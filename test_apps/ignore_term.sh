@@ -0,0 +1,3 @@
+#!/bin/bash
+trap "" TERM
+sleep 100
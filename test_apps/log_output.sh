@@ -0,0 +1,4 @@
+#!/bin/bash
+for i in $(seq 1 5000); do
+    echo "2024-01-01 12:00:00 INFO worker request $i handled in 3ms"
+done
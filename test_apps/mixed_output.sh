@@ -0,0 +1,6 @@
+#!/bin/bash
+echo first
+sleep 0.2
+echo oops >&2
+sleep 0.2
+echo second